@@ -0,0 +1,60 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.Block;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Block#verifyHeader()} on freshly received headers and {@link Block#verifyTransactions()} on blocks
+ * of different sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBenchmark {
+    @Param({"10", "500"})
+    public int numTransactions;
+
+    private byte[] headerBytes;
+    private Block block;
+
+    @Setup
+    public void setUp() {
+        block = Fixtures.block(numTransactions);
+        headerBytes = Arrays.copyOf(block.cloneAsHeader().peercoinSerialize(), Block.HEADER_SIZE);
+    }
+
+    @Benchmark
+    public Block verifyHeader() {
+        // Parse the header each time, as a header received from the network has no cached hash.
+        Block header = new Block(Fixtures.PARAMS, headerBytes);
+        header.verifyHeader();
+        return header;
+    }
+
+    @Benchmark
+    public void verifyTransactions() {
+        block.verifyTransactions();
+    }
+}
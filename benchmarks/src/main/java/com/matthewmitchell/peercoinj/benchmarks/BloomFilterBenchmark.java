@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.BloomFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures inserting into and querying a {@link BloomFilter} the size a wallet with a few thousand keys would use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BloomFilterBenchmark {
+    private static final int ELEMENTS = 4096;
+
+    private BloomFilter filter;
+    private byte[][] inserted;
+    private byte[][] missing;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        filter = new BloomFilter(ELEMENTS, 0.0005, 12345);
+        inserted = new byte[ELEMENTS][];
+        missing = new byte[ELEMENTS][];
+        for (int j = 0; j < ELEMENTS; j++) {
+            inserted[j] = Fixtures.key(j).getPubKeyHash();
+            missing[j] = Fixtures.key(ELEMENTS + j).getPubKeyHash();
+            filter.insert(inserted[j]);
+        }
+    }
+
+    @Benchmark
+    public void insert() {
+        filter.insert(inserted[i++ & (ELEMENTS - 1)]);
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return filter.contains(inserted[i++ & (ELEMENTS - 1)]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return filter.contains(missing[i++ & (ELEMENTS - 1)]);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.*;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.script.ScriptBuilder;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the SHA-256 hashing behind transaction and block hashes and message checksums. Run it with different
+ * thread counts (eg {@code java -jar benchmarks/target/benchmarks.jar DigestBenchmark -t 1} and then {@code -t 4})
+ * to see how throughput scales across cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestBenchmark {
+    private final OutputStream nullStream = ByteStreams.nullOutputStream();
+    private final byte[] out = new byte[32];
+    private PeercoinSerializer serializer;
+    private byte[] txBytes;
+    private Block block;
+    private long nonce;
+
+    @Setup
+    public void setUp() {
+        NetworkParameters params = UnitTestParams.get();
+        serializer = new PeercoinSerializer(params);
+        Address to = new ECKey().toAddress(params);
+        Transaction tx = new Transaction(params);
+        tx.addInput(Sha256Hash.create(new byte[] { 1 }), 0, ScriptBuilder.createOutputScript(to));
+        tx.addOutput(Coin.COIN, to);
+        tx.addOutput(Coin.CENT, new ECKey().toAddress(params));
+        txBytes = tx.peercoinSerialize();
+        block = params.getGenesisBlock().createNextBlock(to);
+    }
+
+    @Benchmark
+    public Sha256Hash transactionHash() {
+        // This is what Transaction.getHash() does once the transaction has been serialized.
+        return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(txBytes)));
+    }
+
+    @Benchmark
+    public byte[] transactionHashIntoBuffer() {
+        Utils.doubleDigest(txBytes, 0, txBytes.length, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public Sha256Hash blockHash() {
+        // Changing the nonce throws away the cached hash.
+        block.setNonce(nonce++);
+        return block.getHash();
+    }
+
+    @Benchmark
+    public void messageChecksum() throws IOException {
+        serializer.serialize("tx", txBytes, nullStream);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.ECKey;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ECKey#verify(byte[], byte[], byte[])} on a DER encoded signature, with the public key already in
+ * {@link ECKey#getPubKeyCache()} as it is for a key that signs often, and with a key seen for the first time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ECKeyBenchmark {
+    private byte[] hash;
+    private byte[] signature;
+    private byte[] pubKey;
+
+    @Setup
+    public void setUp() {
+        ECKey key = Fixtures.key(1);
+        Sha256Hash sigHash = Sha256Hash.create(new byte[] { 1, 2, 3 });
+        hash = sigHash.getBytes();
+        signature = key.sign(sigHash).encodeToDER();
+        pubKey = key.getPubKey();
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return ECKey.verify(hash, signature, pubKey);
+    }
+
+    @Benchmark
+    public boolean verifyColdKey() {
+        ECKey.getPubKeyCache().clear();
+        return ECKey.verify(hash, signature, pubKey);
+    }
+}
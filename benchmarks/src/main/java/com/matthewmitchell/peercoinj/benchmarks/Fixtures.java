@@ -0,0 +1,86 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.*;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.script.ScriptBuilder;
+import com.matthewmitchell.peercoinj.wallet.DeterministicSeed;
+
+/**
+ * Generates the keys, transactions, blocks and wallets the benchmarks work on. Everything is derived from fixed
+ * seeds, so the benchmarks run offline and see the same data every time.
+ */
+public class Fixtures {
+    public static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    /** Returns the key whose private key is the hash of the given number. */
+    public static ECKey key(int i) {
+        return ECKey.fromPrivate(hashOf(i).getBytes());
+    }
+
+    /** Returns a transaction that pays the given value to the given key, spending a made up output. */
+    public static Transaction payTo(ECKey key, Coin value, int i) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(hashOf(-i - 1), 0, new ScriptBuilder().build());
+        tx.addOutput(value, key.toAddress(PARAMS));
+        return tx;
+    }
+
+    /**
+     * Returns a transaction with one signed pay-to-address input that spends the first output of the given
+     * transaction, which has to pay to the given key.
+     */
+    public static Transaction spend(Transaction from, ECKey key, Address to) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(from.getOutput(0).getValue(), to);
+        tx.addSignedInput(from.getOutput(0), key);
+        return tx;
+    }
+
+    /** Returns a block on top of the genesis block holding a coinbase and the given number of signed transactions. */
+    public static Block block(int numTransactions) {
+        Address to = key(0).toAddress(PARAMS);
+        Block block = PARAMS.getGenesisBlock().createNextBlock(to);
+        for (int i = 0; i < numTransactions; i++) {
+            ECKey key = key(i + 1);
+            block.addTransaction(spend(payTo(key, Coin.CENT, i), key, to));
+        }
+        return block;
+    }
+
+    /**
+     * Returns a wallet created from a fixed seed, with the given number of issued receive keys and a pending
+     * transaction paying to each of the first numTransactions of them.
+     */
+    public static Wallet wallet(int numKeys, int numTransactions) {
+        byte[] entropy = Sha256Hash.create(new byte[] { 42 }).getBytes();
+        Wallet wallet = Wallet.fromSeed(PARAMS, new DeterministicSeed(entropy, "", 0));
+        for (int i = 0; i < numKeys; i++) {
+            ECKey key = wallet.freshReceiveKey();
+            if (i < numTransactions)
+                wallet.receivePending(payTo(key, Coin.CENT, i), null);
+        }
+        return wallet;
+    }
+
+    private static Sha256Hash hashOf(int i) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayLE(i, bytes, 0);
+        return Sha256Hash.create(bytes);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.*;
+import com.matthewmitchell.peercoinj.script.ScriptBuilder;
+import com.matthewmitchell.peercoinj.store.BlockStoreException;
+import com.matthewmitchell.peercoinj.store.FullPrunedBlockStore;
+import com.matthewmitchell.peercoinj.store.H2FullPrunedBlockStore;
+import com.matthewmitchell.peercoinj.store.LogFullPrunedBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the writes a {@link FullPrunedBlockStore} gets while a chain is fully verified, comparing the H2 store
+ * with the log store on the same chain. Each block spends an output of each transaction of the block before it and
+ * creates two more, and is written in one batch the way FullPrunedBlockChain does. Every iteration starts from an
+ * empty store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FullPrunedBlockStoreBenchmark {
+    private static final int BLOCKS = 200;
+    private static final int TRANSACTIONS_PER_BLOCK = 100;
+    private static final int FULL_STORE_DEPTH = 100;
+
+    @Param({ "h2", "log" })
+    public String storeType;
+
+    private List<StoredBlock> blocks;
+    private List<TransactionOutputChanges> changes;
+    private File dir;
+    private FullPrunedBlockStore store;
+
+    @Setup(Level.Trial)
+    public void createChain() {
+        Address to = Fixtures.key(0).toAddress(Fixtures.PARAMS);
+        byte[] script = ScriptBuilder.createOutputScript(to).getProgram();
+        blocks = new ArrayList<StoredBlock>(BLOCKS);
+        changes = new ArrayList<TransactionOutputChanges>(BLOCKS);
+        Block genesis = Fixtures.PARAMS.getGenesisBlock();
+        StoredBlock prev = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0);
+        List<StoredTransactionOutput> prevCreated = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < BLOCKS; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+            List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+            for (int j = 0; j < TRANSACTIONS_PER_BLOCK; j++) {
+                Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8), (byte) j });
+                created.add(new StoredTransactionOutput(hash, 0, Coin.CENT, block.getHeight(), false, script));
+                created.add(new StoredTransactionOutput(hash, 1, Coin.CENT, block.getHeight(), false, script));
+                if (!prevCreated.isEmpty())
+                    spent.add(prevCreated.get(j * 2));
+            }
+            blocks.add(block);
+            changes.add(new TransactionOutputChanges(created, spent));
+            prev = block;
+            prevCreated = created;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void openStore() throws IOException, BlockStoreException {
+        dir = File.createTempFile("fullprunedblockstore", null);
+        dir.delete();
+        dir.mkdir();
+        if (storeType.equals("h2"))
+            store = new H2FullPrunedBlockStore(Fixtures.PARAMS, new File(dir, "h2").getPath(), FULL_STORE_DEPTH);
+        else
+            store = new LogFullPrunedBlockStore(Fixtures.PARAMS, new File(dir, "log"), FULL_STORE_DEPTH);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeStore() throws BlockStoreException {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public StoredBlock connectChain() throws BlockStoreException {
+        for (int i = 0; i < BLOCKS; i++) {
+            StoredBlock block = blocks.get(i);
+            TransactionOutputChanges blockChanges = changes.get(i);
+            store.beginDatabaseBatchWrite();
+            for (StoredTransactionOutput out : blockChanges.txOutsSpent) {
+                if (store.getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                    throw new IllegalStateException("Missing output");
+                store.removeUnspentTransactionOutput(out);
+            }
+            for (StoredTransactionOutput out : blockChanges.txOutsCreated)
+                store.addUnspentTransactionOutput(out);
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), blockChanges));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+        }
+        return store.getVerifiedChainHead();
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.crypto.DeterministicKey;
+import com.matthewmitchell.peercoinj.crypto.HDKeyDerivation;
+import com.matthewmitchell.peercoinj.wallet.DeterministicKeyChain;
+import com.matthewmitchell.peercoinj.wallet.KeyChain;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures deriving child keys directly and issuing fresh keys from a {@link DeterministicKeyChain}, which also
+ * keeps the lookahead zone filled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyChainBenchmark {
+    private byte[] entropy;
+    private DeterministicKey parent;
+    private DeterministicKeyChain chain;
+    private int i;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        entropy = Sha256Hash.create(new byte[] { 42 }).getBytes();
+        chain = new DeterministicKeyChain(entropy, "", 0);
+        parent = chain.getWatchingKey();
+    }
+
+    @Benchmark
+    public DeterministicKey deriveChildKey() {
+        return HDKeyDerivation.deriveChildKey(parent, i++ & 0x7fffffff);
+    }
+
+    @Benchmark
+    public DeterministicKey freshKey() {
+        return chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+    }
+}
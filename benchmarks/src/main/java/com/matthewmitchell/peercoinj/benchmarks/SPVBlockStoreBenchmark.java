@@ -0,0 +1,94 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.Address;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.StoredBlock;
+import com.matthewmitchell.peercoinj.store.BlockStoreException;
+import com.matthewmitchell.peercoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up headers in a full {@link SPVBlockStore} from several threads at once. The store holds more
+ * headers than its cache, so most lookups of the whole ring read the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SPVBlockStoreBenchmark {
+    private static final int HEADERS = 4096;
+    // Few enough to all stay in the cache.
+    private static final int RECENT_HEADERS = 1024;
+
+    private File file;
+    private SPVBlockStore store;
+    private Sha256Hash[] hashes;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+    }
+
+    @Setup
+    public void setUp() throws IOException, BlockStoreException {
+        file = File.createTempFile("spvblockstore", null);
+        file.delete();
+        store = new SPVBlockStore(Fixtures.PARAMS, file, HEADERS);
+        Address to = Fixtures.key(0).toAddress(Fixtures.PARAMS);
+        hashes = new Sha256Hash[HEADERS];
+        StoredBlock prev = store.getChainHead();
+        for (int j = 0; j < HEADERS; j++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            hashes[j] = block.getHeader().getHash();
+            prev = block;
+        }
+        store.setChainHead(prev);
+    }
+
+    @TearDown
+    public void tearDown() throws BlockStoreException {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public StoredBlock getRecent(Cursor cursor) throws BlockStoreException {
+        return store.get(hashes[HEADERS - RECENT_HEADERS + (cursor.i++ & (RECENT_HEADERS - 1))]);
+    }
+
+    @Benchmark
+    public StoredBlock getAny(Cursor cursor) throws BlockStoreException {
+        // Step through the ring so that neighbouring lookups don't share a cache entry.
+        cursor.i += 2053;
+        return store.get(hashes[cursor.i & (HEADERS - 1)]);
+    }
+
+    @Benchmark
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+}
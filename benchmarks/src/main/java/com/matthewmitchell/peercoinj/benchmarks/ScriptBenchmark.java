@@ -0,0 +1,54 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.Coin;
+import com.matthewmitchell.peercoinj.core.ECKey;
+import com.matthewmitchell.peercoinj.core.Transaction;
+import com.matthewmitchell.peercoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Script#correctlySpends(Transaction, long, Script)} for a signed pay-to-address input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmark {
+    private Transaction tx;
+    private Script scriptSig;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        ECKey key = Fixtures.key(1);
+        Transaction from = Fixtures.payTo(key, Coin.CENT, 1);
+        tx = Fixtures.spend(from, key, Fixtures.key(2).toAddress(Fixtures.PARAMS));
+        scriptSig = tx.getInput(0).getScriptSig();
+        scriptPubKey = from.getOutput(0).getScriptPubKey();
+    }
+
+    @Benchmark
+    public void correctlySpends() {
+        scriptSig.correctlySpends(tx, 0, scriptPubKey);
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.Block;
+import com.matthewmitchell.peercoinj.core.Message;
+import com.matthewmitchell.peercoinj.core.PeercoinSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PeercoinSerializer#deserialize(ByteBuffer)} for transaction and block messages, including the
+ * header and checksum.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+    @Param({"10", "500"})
+    public int numTransactions;
+
+    private PeercoinSerializer serializer;
+    private byte[] txMessage;
+    private byte[] blockMessage;
+
+    @Setup
+    public void setUp() throws IOException {
+        serializer = new PeercoinSerializer(Fixtures.PARAMS);
+        Block block = Fixtures.block(numTransactions);
+        txMessage = serialize(block.getTransactions().get(1));
+        blockMessage = serialize(block);
+    }
+
+    private byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(message, bos);
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public Message deserializeTransaction() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(txMessage));
+    }
+
+    @Benchmark
+    public Message deserializeBlock() throws IOException {
+        return serializer.deserialize(ByteBuffer.wrap(blockMessage));
+    }
+}
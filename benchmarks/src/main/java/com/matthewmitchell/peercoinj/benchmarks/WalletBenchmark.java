@@ -0,0 +1,62 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.Coin;
+import com.matthewmitchell.peercoinj.core.ECKey;
+import com.matthewmitchell.peercoinj.core.Transaction;
+import com.matthewmitchell.peercoinj.core.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Wallet#receivePending(Transaction, java.util.List)} for transactions paying to one of the wallet's
+ * keys. The wallet is recreated for each iteration so it doesn't grow without bound.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletBenchmark {
+    @Param({"100", "1000"})
+    public int numTransactions;
+
+    private Wallet wallet;
+    private ECKey key;
+    private Transaction tx;
+    private int i;
+
+    @Setup(Level.Iteration)
+    public void setUpWallet() {
+        wallet = Fixtures.wallet(numTransactions, numTransactions);
+        key = wallet.currentReceiveKey();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpTransaction() {
+        tx = Fixtures.payTo(key, Coin.CENT, numTransactions + i++);
+    }
+
+    @Benchmark
+    public Wallet receivePending() {
+        wallet.receivePending(tx, null);
+        return wallet;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.benchmarks;
+
+import com.matthewmitchell.peercoinj.core.Wallet;
+import com.matthewmitchell.peercoinj.store.UnreadableWalletException;
+import com.matthewmitchell.peercoinj.store.WalletProtobufSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing and reading back a wallet with {@link WalletProtobufSerializer}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletProtobufBenchmark {
+    @Param({"100", "1000"})
+    public int numTransactions;
+
+    private WalletProtobufSerializer serializer;
+    private Wallet wallet;
+    private byte[] walletBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        serializer = new WalletProtobufSerializer();
+        wallet = Fixtures.wallet(numTransactions, numTransactions);
+        walletBytes = write();
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(walletBytes == null ? 1024 : walletBytes.length);
+        serializer.writeWallet(wallet, bos);
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public Wallet read() throws UnreadableWalletException {
+        return serializer.readWallet(new ByteArrayInputStream(walletBytes));
+    }
+}
@@ -19,11 +19,15 @@ package com.matthewmitchell.peercoinj.core;
 
 import com.matthewmitchell.peercoinj.store.BlockStore;
 import com.matthewmitchell.peercoinj.store.BlockStoreException;
+import com.matthewmitchell.peercoinj.store.HeightIndexedBlockStore;
 import com.matthewmitchell.peercoinj.store.ValidHashStore;
 import com.matthewmitchell.peercoinj.utils.ListenerRegistration;
 import com.matthewmitchell.peercoinj.utils.Threading;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
@@ -31,9 +35,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -98,14 +104,10 @@ public abstract class AbstractBlockChain {
      * greater work than the one obtained by following this one down. In that case a reorganize is triggered,
      * potentially invalidating transactions in our wallet.
      */
-    protected StoredBlock chainHead;
-
-    // TODO: Scrap this and use a proper read/write for all of the block chain objects.
-    // The chainHead field is read/written synchronized with this object rather than BlockChain. However writing is
-    // also guaranteed to happen whilst BlockChain is synchronized (see setChainHead). The goal of this is to let
-    // clients quickly access the chain head even whilst the block chain is downloading and thus the BlockChain is
-    // locked most of the time.
-    private final Object chainHeadLock = new Object();
+    protected volatile StoredBlock chainHead;
+    // The chainHead field is only written whilst the lock is held (see setChainHead) but is volatile so it can be read
+    // without it. A StoredBlock is immutable, so readers always see a consistent snapshot of the chain head and don't
+    // have to wait behind block connection whilst the chain is downloading and thus locked most of the time.
 
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
@@ -115,18 +117,68 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Approximately how many bytes the block takes up.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
-            Preconditions.checkArgument((block.transactions == null && filtered)
-                                        || (block.transactions != null && !filtered));
+            Preconditions.checkArgument(block.transactions == null || !filtered);
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            if (block.transactions != null) {
+                size = block.getOptimalEncodingMessageSize();
+            } else if (filtered) {
+                int size = Block.HEADER_SIZE + filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getMessageSize();
+                this.size = size;
+            } else {
+                size = Block.HEADER_SIZE;
+            }
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    // were downloading the block chain. Kept in least recently used order so the stalest are thrown away first when
+    // there are too many, and indexed by the hash of the block each one builds on, so connecting a block only has to
+    // look at its own children.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>(16, 0.75f, true);
+    private final ArrayListMultimap<Sha256Hash, OrphanBlock> orphanBlocksByPrev = ArrayListMultimap.create();
+    // The approximate number of bytes taken up by the blocks in orphanBlocks.
+    private long orphanBlockBytes;
+
+    /** The most orphan blocks that will be held before the least recently used are thrown away. */
+    public static final int MAX_ORPHAN_BLOCKS = 750;
+    /** The most bytes of orphan blocks that will be held before the least recently used are thrown away. */
+    public static final long MAX_ORPHAN_BLOCK_BYTES = 16 * 1024 * 1024;
+
+    // Holds a block that connects to the chain but whose hash the valid hash store doesn't know about yet, along with
+    // the valid hash sync that was requested for it. The result is set once the block has been connected or thrown
+    // away, outside of the chain lock.
+    class PendingBlock extends OrphanBlock {
+        final ListenableFuture<Void> sync;
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        PendingBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                     ListenableFuture<Void> sync) {
+            super(block, filteredTxHashes, filteredTxn);
+            this.sync = sync;
+        }
+    }
+    // Holds blocks that are waiting for the valid hash store to synchronise with the servers in the background. They
+    // are connected, or thrown away, once it has.
+    private final LinkedHashMap<Sha256Hash, PendingBlock> pendingBlocks = new LinkedHashMap<Sha256Hash, PendingBlock>();
+    // All of the blocks in orphanBlocks and pendingBlocks, so they can be looked up without taking the lock. It is
+    // only modified whilst the lock is held, alongside the other two.
+    private final ConcurrentHashMap<Sha256Hash, OrphanBlock> unconnectedBlocks = new ConcurrentHashMap<Sha256Hash, OrphanBlock>();
+    // The last valid hash sync that pendingBlocks are waiting for.
+    private ListenableFuture<Void> awaitedValidHashSync;
+    // The height of the chain head when the valid hashes were last fetched ahead of it.
+    private int validHashPrefetchHeight = -1;
+
+    /**
+     * When the chain head gets within this many blocks of the last valid hash, the valid hashes are synchronised in
+     * the background so that blocks don't have to wait for them.
+     */
+    public static final int VALID_HASH_PREFETCH_DISTANCE = 500;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -345,118 +397,332 @@ public abstract class AbstractBlockChain {
      */
     protected abstract TransactionOutputChanges connectTransactions(StoredBlock newBlock) throws VerificationException, BlockStoreException, PrunedException;    
     
-    // Stat counters.
-    private long statsLastTime = System.currentTimeMillis();
+    // Stat counters: the blocks added since the current measuring window started, and the rate over the last one.
+    private static final long STATS_WINDOW_MILLIS = 1000;
+    private volatile long statsLastTime = System.currentTimeMillis();
     private long statsBlocksAdded;
+    private volatile double blocksPerSecond;
+
+    // The smallest number of headers worth handing to a worker thread in verifyHeaders.
+    private static final int MIN_HEADERS_PER_TASK = 100;
 
     // filteredTxHashList contains all transactions, filteredTxn just a subset
     private boolean add(Block block, boolean tryConnecting,
                         @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn)
             throws BlockStoreException, VerificationException, PrunedException {
+        // Quick check for duplicates, so that blocks we already have, such as those announced by several peers, aren't
+        // verified again.
         lock.lock();
         try {
-            // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
-            if (System.currentTimeMillis() - statsLastTime > 1000) {
-                // More than a second passed since last stats logging.
-                if (statsBlocksAdded > 1)
-                    log.info("{} blocks per second", statsBlocksAdded);
-                statsLastTime = System.currentTimeMillis();
-                statsBlocksAdded = 0;
-            }
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
-            if (block.equals(getChainHead().getHeader())) {
-                return true;
-            }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
-                return false;
-            }
+            Boolean added = checkAlreadySeen(block, tryConnecting);
+            if (added != null)
+                return added;
+        } finally {
+            lock.unlock();
+        }
 
-            // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
-            if (shouldVerifyTransactions() && block.transactions == null)
-                throw new VerificationException("Got a block header while running in full-block mode");
+        // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
+        if (shouldVerifyTransactions() && block.transactions == null)
+            throw new VerificationException("Got a block header while running in full-block mode");
 
-            // Check for already-seen block, but only for full pruned mode, where the DB is
-            // more likely able to handle these queries quickly.
-            if (shouldVerifyTransactions() && blockStore.get(block.getHash()) != null) {
-                return true;
-            }
+        // Verifying the block doesn't depend on the chain, so do it before taking the lock to keep the time spent
+        // holding it short.
+        verifyBlock(block);
 
-            // Does this block contain any transactions we might care about? Check this up front before verifying the
-            // blocks validity so we can skip the merkle root verification if the contents aren't interesting. This saves
-            // a lot of time for big blocks.
-            boolean contentsImportant = shouldVerifyTransactions();
-            if (block.transactions != null) {
-                contentsImportant = contentsImportant || containsRelevantTransactions(block);
-            }
+        lock.lock();
+        try {
+            return addVerified(block, tryConnecting, false, filteredTxHashList, filteredTxn);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
-            // if there is a tx sending or receiving coins using an address in one of our wallets. And those transactions
-            // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
-            // article here for more details: http://code.google.com/p/bitcoinj/wiki/SecurityModel
-            try {
+    private void verifyBlock(Block block) throws VerificationException {
+        // Does this block contain any transactions we might care about? Check this up front before verifying the
+        // blocks validity so we can skip the merkle root verification if the contents aren't interesting. This saves
+        // a lot of time for big blocks.
+        boolean contentsImportant = shouldVerifyTransactions();
+        if (block.transactions != null) {
+            contentsImportant = contentsImportant || containsRelevantTransactions(block);
+        }
+
+        // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
+        // if there is a tx sending or receiving coins using an address in one of our wallets. And those transactions
+        // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
+        // article here for more details: http://code.google.com/p/bitcoinj/wiki/SecurityModel
+        try {
+            // Headers handed to verifyHeaders() first have been checked already.
+            if (!block.isHeaderVerified())
                 block.verifyHeader();
-                if (contentsImportant)
-                    block.verifyTransactions();
-            } catch (VerificationException e) {
-                log.error("Failed to verify block: ", e);
-                log.error(block.getHashAsString());
-                throw e;
-            }
+            if (contentsImportant)
+                block.verifyTransactions();
+        } catch (VerificationException e) {
+            log.error("Failed to verify block: ", e);
+            log.error(block.getHashAsString());
+            throw e;
+        }
+    }
 
-            // Try linking it to a place in the currently known blocks.
-            StoredBlock storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
+    /**
+     * Verifies the headers of the given blocks on the worker pool, which also computes and caches their hashes. Doing
+     * this ahead of {@link #add(Block)} for a batch of blocks, such as the headers received during chain download,
+     * means the work is spread over all cores rather than being done one block at a time as they are linked into the
+     * chain.
+     *
+     * @throws VerificationException if any of the headers are invalid.
+     */
+    public void verifyHeaders(List<Block> blocks) throws VerificationException {
+        int numChunks = Math.min(Runtime.getRuntime().availableProcessors(), blocks.size() / MIN_HEADERS_PER_TASK);
+        if (numChunks <= 1) {
+            for (Block block : blocks)
+                block.verifyHeader();
+            return;
+        }
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>(numChunks);
+        for (int i = 0; i < numChunks; i++) {
+            final List<Block> chunk = blocks.subList(blocks.size() * i / numChunks, blocks.size() * (i + 1) / numChunks);
+            futures.add(Threading.THREAD_POOL.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws VerificationException {
+                    for (Block block : chunk)
+                        block.verifyHeader();
+                    return null;
+                }
+            }));
+        }
+        try {
+            Futures.allAsList(futures).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), VerificationException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of blocks added to the chain per second, measured over the last second in which blocks were
+     * added. Returns zero if no blocks have been added recently.
+     */
+    public double getBlocksPerSecond() {
+        if (System.currentTimeMillis() - statsLastTime > 2 * STATS_WINDOW_MILLIS)
+            return 0;
+        return blocksPerSecond;
+    }
 
-            if (storedPrev == null) {
-                // We can't find the previous block. Probably we are still in the process of downloading the chain and a
-                // block was solved whilst we were doing it. We put it to one side and try to connect it later when we
-                // have more blocks.
-                checkState(tryConnecting, "bug in tryConnectingOrphans");
-                log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+    private void updateStats() {
+        statsBlocksAdded++;
+        long now = System.currentTimeMillis();
+        if (now - statsLastTime >= STATS_WINDOW_MILLIS) {
+            blocksPerSecond = statsBlocksAdded * 1000.0 / (now - statsLastTime);
+            statsLastTime = now;
+            statsBlocksAdded = 0;
+        }
+    }
+
+    // Links a block that has already been verified into the chain. If hashValidated is true the valid hash store has
+    // already been found to accept the block.
+    private boolean addVerified(Block block, boolean tryConnecting, boolean hashValidated,
+                                @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn)
+            throws BlockStoreException, VerificationException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        // Check again, as another thread may have added the block whilst it was being verified.
+        Boolean added = checkAlreadySeen(block, tryConnecting);
+        if (added != null)
+            return added;
+
+        // Try linking it to a place in the currently known blocks.
+        StoredBlock storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
+
+        if (storedPrev == null) {
+            // We can't find the previous block. Probably we are still in the process of downloading the chain and a
+            // block was solved whilst we were doing it. We put it to one side and try to connect it later when we
+            // have more blocks.
+            checkState(tryConnecting, "bug in tryConnectingOrphans");
+            log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
+            addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
+            return false;
+        } else {
+            // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
+
+            // Determine if centrally trusted hash. If we don't know yet, put the block to one side until the valid
+            // hashes have been synchronised with the servers in the background, rather than waiting for them here.
+            if (validHashStore != null && !hashValidated
+                    && (validHashStore.isInvalidated() || !validHashStore.isValidHash(block.getHash()))) {
+                // Give the server a while to see the block if it is less than three hours old
+                boolean waitForServer = block.getTimeSeconds() > Utils.currentTimeSeconds() - 60*60*3;
+                ListenableFuture<Void> sync = validHashStore.requestSync(this, waitForServer);
+                log.info("Block {} is waiting for valid hashes", block.getHashAsString());
+                PendingBlock pendingBlock = new PendingBlock(block, filteredTxHashList, filteredTxn, sync);
+                pendingBlocks.put(block.getHash(), pendingBlock);
+                unconnectedBlocks.put(block.getHash(), pendingBlock);
+                if (sync != awaitedValidHashSync) {
+                    awaitedValidHashSync = sync;
+                    sync.addListener(new Runnable() {
+                        @Override
+                        public void run() {
+                            tryConnectingPendingBlocks();
+                        }
+                    }, Threading.SAME_THREAD);
+                }
                 return false;
-            } else {
-                // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-            	
-            	// Determine if centrally trusted hash
-                // Wait a while for the server if the block is less than three hours old
-    		    try {
-			    if (validHashStore != null && !validHashStore.isValidHash(block.getHash(), this, block.getTimeSeconds() > Utils.currentTimeSeconds() - 60*60*3)) {
-			       throw new VerificationException("Invalid hash received");
-			    }
-		    } catch (IOException e) {
-			    log.error("IO Error when determining valid hashes: ", e);
-			    return false;
-		    }
-            	
-                checkDifficultyTransitions(storedPrev, block);
-                connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
-            if (tryConnecting)
-                tryConnectingOrphans();
+            checkDifficultyTransitions(storedPrev, block);
+            connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
+            if (validHashStore != null)
+                prefetchValidHashes();
+        }
+
+        if (tryConnecting)
+            tryConnectingOrphans(block.getHash());
+
+        updateStats();
+        return true;
+    }
 
-            statsBlocksAdded++;
+    // Returns whether the given block was connected if it has been seen before, or null if it is new. Saves the
+    // expensive work of verifying and linking blocks we already have.
+    @Nullable
+    private Boolean checkAlreadySeen(Block block, boolean tryConnecting) throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        if (block.equals(getChainHead().getHeader())) {
+            return true;
+        }
+        if (tryConnecting && orphanBlocks.get(block.getHash()) != null) {
+            return false;
+        }
+        if (pendingBlocks.containsKey(block.getHash())) {
+            return false;
+        }
+
+        // Check for already-seen block, but only for full pruned mode, where the DB is
+        // more likely able to handle these queries quickly.
+        if (shouldVerifyTransactions() && blockStore.get(block.getHash()) != null) {
             return true;
+        }
+        return null;
+    }
+
+    /**
+     * Requests the valid hashes ahead of the chain head when it gets close to the last one, so that downloaded blocks
+     * don't have to wait for them.
+     */
+    private void prefetchValidHashes() {
+        checkState(lock.isHeldByCurrentThread());
+        int height = getChainHead().getHeight();
+        int highest = validHashStore.getHighestHeight();
+        // Only fetch once for each stretch of the chain, in case the servers have nothing further to give us.
+        if (highest != -1 && highest - height < VALID_HASH_PREFETCH_DISTANCE
+                && height >= validHashPrefetchHeight + VALID_HASH_PREFETCH_DISTANCE) {
+            validHashPrefetchHeight = height;
+            validHashStore.requestSync(this, false);
+        }
+    }
+
+    /**
+     * Called on the valid hash sync thread once hashes have been received. Connects the pending blocks the servers
+     * consider valid, and throws away those they don't, failing their futures with a {@link VerificationException}.
+     */
+    private void tryConnectingPendingBlocks() {
+        List<PendingBlock> doneBlocks = new ArrayList<PendingBlock>();
+        Set<PendingBlock> connectedBlocks = new HashSet<PendingBlock>();
+        Map<PendingBlock, VerificationException> failedBlocks = new HashMap<PendingBlock, VerificationException>();
+        lock.lock();
+        try {
+            List<PendingBlock> validBlocks = new ArrayList<PendingBlock>();
+            Iterator<PendingBlock> iter = pendingBlocks.values().iterator();
+            while (iter.hasNext()) {
+                PendingBlock pendingBlock = iter.next();
+                // The hashes can be relied upon once the servers have been asked since the block was received, even
+                // if the servers have been invalidated again since.
+                boolean synced = pendingBlock.sync.isDone();
+                if (validHashStore.isValidHash(pendingBlock.block.getHash()) && (synced || !validHashStore.isInvalidated())) {
+                    validBlocks.add(pendingBlock);
+                } else if (synced) {
+                    // The servers were asked after we received the block, so they don't consider it valid.
+                    log.warn("Invalid hash received: {}", pendingBlock.block.getHashAsString());
+                    failedBlocks.put(pendingBlock, new VerificationException("Invalid hash received"));
+                } else {
+                    continue;
+                }
+                iter.remove();
+                unconnectedBlocks.remove(pendingBlock.block.getHash());
+                doneBlocks.add(pendingBlock);
+            }
+            for (PendingBlock pendingBlock : validBlocks) {
+                log.info("Connecting block {} now that its hash is valid", pendingBlock.block.getHashAsString());
+                try {
+                    if (addVerified(pendingBlock.block, true, true, pendingBlock.filteredTxHashes, pendingBlock.filteredTxn))
+                        connectedBlocks.add(pendingBlock);
+                } catch (VerificationException e) {
+                    log.error("Could not verify block " + pendingBlock.block.getHashAsString(), e);
+                    failedBlocks.put(pendingBlock, e);
+                    notSettingChainHead();
+                } catch (PrunedException e) {
+                    log.error("Could not connect block " + pendingBlock.block.getHashAsString(), e);
+                    notSettingChainHead();
+                }
+            }
+        } catch (BlockStoreException e) {
+            log.error("Block store error whilst connecting blocks waiting for valid hashes", e);
         } finally {
             lock.unlock();
         }
+        for (PendingBlock pendingBlock : doneBlocks) {
+            VerificationException failure = failedBlocks.get(pendingBlock);
+            if (failure != null)
+                pendingBlock.result.setException(failure);
+            else
+                pendingBlock.result.set(connectedBlocks.contains(pendingBlock));
+        }
+    }
+
+    /**
+     * Returns true if the given block connects to the chain but is waiting for the valid hash store to synchronise
+     * with the servers before it can be added.
+     */
+    public boolean isAwaitingValidHash(Sha256Hash block) {
+        return unconnectedBlocks.get(block) instanceof PendingBlock;
+    }
+
+    /**
+     * Returns a future for a block that is waiting for the valid hash store to synchronise with the servers, or null
+     * if the block isn't waiting. The future gives true once the block has been connected to the chain, or false if
+     * it was thrown away unchecked. It fails with a {@link VerificationException} if the servers reject the block or
+     * it can't be verified, as {@link #add(Block)} would have thrown if the hash had been known. It completes on the
+     * valid hash sync thread without the chain lock held, so listeners may download more blocks from it.
+     */
+    @Nullable
+    public ListenableFuture<Boolean> getValidHashFuture(Sha256Hash block) {
+        OrphanBlock orphanBlock = unconnectedBlocks.get(block);
+        return orphanBlock instanceof PendingBlock ? ((PendingBlock) orphanBlock).result : null;
     }
 
     /**
      * Returns the hashes of the currently stored orphan blocks and then deletes them from this objects storage.
      * Used by Peer when a filter exhaustion event has occurred and thus any orphan blocks that have been downloaded
-     * might be inaccurate/incomplete.
+     * might be inaccurate/incomplete. Blocks waiting for valid hashes are included.
      */
     public Set<Sha256Hash> drainOrphanBlocks() {
+        List<PendingBlock> drainedPendingBlocks;
+        Set<Sha256Hash> hashes;
         lock.lock();
         try {
-            Set<Sha256Hash> hashes = new HashSet<Sha256Hash>(orphanBlocks.keySet());
+            hashes = new HashSet<Sha256Hash>(orphanBlocks.keySet());
+            hashes.addAll(pendingBlocks.keySet());
+            drainedPendingBlocks = new ArrayList<PendingBlock>(pendingBlocks.values());
             orphanBlocks.clear();
-            return hashes;
+            orphanBlocksByPrev.clear();
+            orphanBlockBytes = 0;
+            pendingBlocks.clear();
+            unconnectedBlocks.clear();
         } finally {
             lock.unlock();
         }
+        for (PendingBlock pendingBlock : drainedPendingBlocks)
+            pendingBlock.result.set(false);
+        return hashes;
     }
 
     // expensiveChecks enables checks that require looking at blocks further back in the chain
@@ -803,48 +1069,61 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
-        synchronized (chainHeadLock) {
-            this.chainHead = chainHead;
+        this.chainHead = chainHead;
+    }
+
+    private void addOrphan(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        Sha256Hash hash = orphanBlock.block.getHash();
+        orphanBlocks.put(hash, orphanBlock);
+        orphanBlocksByPrev.put(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        unconnectedBlocks.put(hash, orphanBlock);
+        orphanBlockBytes += orphanBlock.size;
+        // Throw away the least recently used orphans if there are too many, which could happen if a peer is feeding
+        // us junk. They will be downloaded again if they turn out to be needed.
+        Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
+        while ((orphanBlocks.size() > MAX_ORPHAN_BLOCKS || orphanBlockBytes > MAX_ORPHAN_BLOCK_BYTES)
+                && iter.hasNext()) {
+            OrphanBlock eldest = iter.next();
+            if (eldest == orphanBlock)
+                break;
+            log.info("Too many orphan blocks, throwing away {}", eldest.block.getHashAsString());
+            iter.remove();
+            removeOrphanReferences(eldest);
         }
     }
 
+    // Removes an orphan block from everywhere but orphanBlocks, which the caller has already removed it from.
+    private void removeOrphanReferences(OrphanBlock orphanBlock) {
+        orphanBlocksByPrev.remove(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        unconnectedBlocks.remove(orphanBlock.block.getHash());
+        orphanBlockBytes -= orphanBlock.size;
+    }
+
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that build on the given block, which has just been added, and then any that build on
+     * those in turn.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash parent) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
-                }
-
-                // Otherwise we can connect it now.
+        int blocksConnected = 0;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(parent);
+        while (!parents.isEmpty()) {
+            for (OrphanBlock orphanBlock : orphanBlocksByPrev.removeAll(parents.poll())) {
+                orphanBlocks.remove(orphanBlock.block.getHash());
+                removeOrphanReferences(orphanBlock);
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                if (addVerified(orphanBlock.block, false, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn)) {
+                    log.info("Connected orphan {}", orphanBlock.block.getHash());
+                    parents.add(orphanBlock.block.getHash());
+                    blocksConnected++;
+                }
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
     }
 
     // February 16th 2012
@@ -882,9 +1161,7 @@ public abstract class AbstractBlockChain {
      * amount of cumulative work done.
      */
     public StoredBlock getChainHead() {
-        synchronized (chainHeadLock) {
-            return chainHead;
-        }
+        return chainHead;
     }
 
     /**
@@ -893,48 +1170,45 @@ public abstract class AbstractBlockChain {
      * if a block is solved whilst we are downloading. It's possible that we see a small amount of orphan blocks which
      * chain together, this method tries walking backwards through the known orphan blocks to find the bottom-most.
      *
+     * Blocks waiting for valid hashes are treated as orphans here, as they are not yet part of the chain either.
+     *
      * @return from or one of froms parents, or null if "from" does not identify an orphan block
      */
     @Nullable
     public Block getOrphanRoot(Sha256Hash from) {
-        lock.lock();
-        try {
-            OrphanBlock cursor = orphanBlocks.get(from);
-            if (cursor == null)
-                return null;
-            OrphanBlock tmp;
-            while ((tmp = orphanBlocks.get(cursor.block.getPrevBlockHash())) != null) {
-                cursor = tmp;
-            }
-            return cursor.block;
-        } finally {
-            lock.unlock();
+        OrphanBlock cursor = unconnectedBlocks.get(from);
+        if (cursor == null)
+            return null;
+        OrphanBlock tmp;
+        while ((tmp = unconnectedBlocks.get(cursor.block.getPrevBlockHash())) != null) {
+            cursor = tmp;
         }
+        return cursor.block;
     }
 
-    /** Returns true if the given block is currently in the orphan blocks list. */
+    /** Returns true if the given block is currently in the orphan blocks list, or is waiting for valid hashes. */
     public boolean isOrphan(Sha256Hash block) {
-        lock.lock();
-        try {
-            return orphanBlocks.containsKey(block);
-        } finally {
-            lock.unlock();
-        }
+        return unconnectedBlocks.containsKey(block);
     }
 
     /**
      * Returns an estimate of when the given block will be reached, assuming a perfect 10 minute average for each
-     * block. This is useful for turning transaction lock times into human readable times. Note that a height in
-     * the past will still be estimated, even though the time of solving is actually known (we won't scan backwards
-     * through the chain to obtain the right answer).
+     * block. This is useful for turning transaction lock times into human readable times. For a height in the past
+     * the time of the block is returned if the block store is a {@link HeightIndexedBlockStore} that has already
+     * indexed it, otherwise it is estimated too (we won't scan backwards through the chain to obtain the right
+     * answer). Either way this doesn't wait for the store's lock, so it can be called whilst blocks are connected.
      */
     public Date estimateBlockTime(int height) {
-        synchronized (chainHeadLock) {
-            long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
-            long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
-            return new Date(estimated);
+        StoredBlock chainHead = getChainHead();
+        if (height <= chainHead.getHeight() && blockStore instanceof HeightIndexedBlockStore) {
+            long time = ((HeightIndexedBlockStore) blockStore).getTimeByHeight(height);
+            if (time >= 0)
+                return new Date(time * 1000);
         }
+        long offset = height - chainHead.getHeight();
+        long headTime = chainHead.getHeader().getTimeSeconds();
+        long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
+        return new Date(estimated);
     }
 
     /**
@@ -943,7 +1217,7 @@ public abstract class AbstractBlockChain {
      */
     public ListenableFuture<StoredBlock> getHeightFuture(final int height) {
         final SettableFuture<StoredBlock> result = SettableFuture.create();
-        addListener(new AbstractBlockChainListener() {
+        BlockChainListener listener = new AbstractBlockChainListener() {
             @Override
             public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
                 if (block.getHeight() >= height) {
@@ -951,10 +1225,34 @@ public abstract class AbstractBlockChain {
                     result.set(block);
                 }
             }
-        }, Threading.SAME_THREAD);
+        };
+        addListener(listener, Threading.SAME_THREAD);
+        // If the chain has already reached the height there may never be another new best block to tell us.
+        StoredBlock chainHead = getChainHead();
+        if (chainHead.getHeight() >= height) {
+            removeListener(listener);
+            StoredBlock block = getBlockByHeight(height);
+            result.set(block != null ? block : chainHead);
+        }
         return result;
     }
 
+    /**
+     * Returns the block of the best chain at the given height, if the block store can find blocks by height and has
+     * already indexed this one. It never walks back through the chain, which could mean a query for each block.
+     */
+    @Nullable
+    private StoredBlock getBlockByHeight(int height) {
+        if (!(blockStore instanceof HeightIndexedBlockStore))
+            return null;
+        try {
+            return ((HeightIndexedBlockStore) blockStore).getIndexedByHeight(height);
+        } catch (BlockStoreException e) {
+            log.warn("Failed to look up the block at height " + height, e);
+            return null;
+        }
+    }
+
 
 
     /**
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * <p>Collects the signature checks of the inputs of a block and verifies them together, spread over the threads of an
+ * executor. Public keys are decoded through {@link ECKey#getPubKeyCache()}, so a key that signs many of the inputs is
+ * decoded only once.</p>
+ *
+ * <p>The checks come from {@link com.matthewmitchell.peercoinj.script.Script#getStandardSignatureCheck(Transaction, int,
+ * com.matthewmitchell.peercoinj.script.Script)}, which runs everything about a standard input apart from the
+ * signature check itself. Used by the {@link FullPrunedBlockChain}. Instances are not thread safe.</p>
+ */
+public class BatchSignatureVerifier {
+    // Fewer checks than this are verified on the calling thread.
+    private static final int MIN_CHECKS_PER_BATCH = 32;
+
+    /** A signature over a hash, to be verified against an encoded public key, found in the given input. */
+    public static class Check {
+        final Sha256Hash hash;
+        final ECKey.ECDSASignature signature;
+        final byte[] pubKey;
+        final Transaction tx;
+        final int inputIndex;
+
+        public Check(Sha256Hash hash, ECKey.ECDSASignature signature, byte[] pubKey, Transaction tx, int inputIndex) {
+            this.hash = hash;
+            this.signature = signature;
+            this.pubKey = pubKey;
+            this.tx = tx;
+            this.inputIndex = inputIndex;
+        }
+    }
+
+    private final Executor executor;
+    private final List<Check> checks = new ArrayList<Check>();
+
+    public BatchSignatureVerifier(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void add(Check check) {
+        checks.add(check);
+    }
+
+    public void addAll(List<Check> checks) {
+        this.checks.addAll(checks);
+    }
+
+    /** Returns how many checks are waiting to be verified. */
+    public int size() {
+        return checks.size();
+    }
+
+    /**
+     * Verifies all the checks added since the last call and forgets them. Returns an exception naming the input of
+     * the first check to fail, in the order they were added, or null if all the signatures are valid.
+     */
+    @Nullable
+    public VerificationException verify() {
+        try {
+            int numBatches = Math.min(Runtime.getRuntime().availableProcessors(), checks.size() / MIN_CHECKS_PER_BATCH);
+            int failed = -1;
+            if (numBatches <= 1) {
+                failed = verify(0, checks.size());
+            } else {
+                List<FutureTask<Integer>> futures = new ArrayList<FutureTask<Integer>>(numBatches);
+                for (int i = 0; i < numBatches; i++) {
+                    final int from = checks.size() * i / numBatches, to = checks.size() * (i + 1) / numBatches;
+                    FutureTask<Integer> future = new FutureTask<Integer>(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            return verify(from, to);
+                        }
+                    });
+                    executor.execute(future);
+                    futures.add(future);
+                }
+                // The batches are in order, so the first one with a failure has the first failure.
+                for (FutureTask<Integer> future : futures) {
+                    failed = future.get();
+                    if (failed >= 0)
+                        break;
+                }
+            }
+            if (failed < 0)
+                return null;
+            Check check = checks.get(failed);
+            return new VerificationException("Invalid signature for input " + check.inputIndex + " of " + check.tx.getHash());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e); // Shouldn't happen
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            checks.clear();
+        }
+    }
+
+    // Returns the index of the first of the checks between from and to that fails, or -1.
+    private int verify(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!verify(checks.get(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean verify(Check check) {
+        try {
+            return ECKey.verify(check.hash.getBytes(), check.signature, check.pubKey);
+        } catch (Exception e) {
+            // A public key that doesn't decode fails the check, as it does when a script is run.
+            return false;
+        }
+    }
+}
@@ -97,6 +97,9 @@ public class Block extends Message {
 
     private transient boolean headerBytesValid;
     private transient boolean transactionBytesValid;
+
+    // Set once verifyHeader() has passed, and cleared whenever the header changes.
+    private transient boolean headerVerified;
     
     // Blocks can be encoded in a way that will use more bytes than is optimal (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -495,6 +498,7 @@ public class Block extends Message {
             payload = null;
         hash = null;
         checksum = null;
+        headerVerified = false;
     }
 
     private void unCacheTransactions() {
@@ -769,6 +773,12 @@ public class Block extends Message {
         maybeParseHeader();
         checkProofOfWork(true);
         checkTimestamp();
+        headerVerified = true;
+    }
+
+    /** Returns true if {@link #verifyHeader()} has passed since the header was last changed. */
+    boolean isHeaderVerified() {
+        return headerVerified;
     }
 
     /**
@@ -18,14 +18,25 @@ package com.matthewmitchell.peercoinj.core;
 
 import com.matthewmitchell.peercoinj.script.Script;
 import com.matthewmitchell.peercoinj.script.ScriptChunk;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.Math.*;
@@ -39,6 +50,10 @@ import static java.lang.Math.*;
  * match transactions that weren't inserted into it, but it will never fail to match transactions that were. This is
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
+ *
+ * <p>All methods of this class synchronize on it. To test many transactions against one filter from several threads,
+ * take a {@link #snapshot()}, which is immutable and can be read without locking, and share it through an
+ * {@link Updater} if matches should update it.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -54,12 +69,16 @@ public class BloomFilter extends Message {
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
+    // Scratch space for hashing objects, only used with the lock held. See mixBlocks.
+    private transient int[] hashWords;
 
     // Same value as the reference client
     // A filter of 20,000 items and a false positive rate of 0.1% or one of 10,000 items and 0.0001% is just under 36,000 bytes
     private static final long MAX_FILTER_SIZE = 36000;
     // There is little reason to ever have more hash functions than 50 given a limit of 36,000 bytes
     private static final int MAX_HASH_FUNCS = 50;
+    // Blocks with fewer transactions than this per core are matched on the calling thread.
+    private static final int MIN_TRANSACTIONS_PER_TASK = 250;
 
     /**
      * Construct a BloomFilter by deserializing payloadBytes
@@ -218,14 +237,97 @@ public class BloomFilter extends Message {
         
         return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
     }
+
+    /**
+     * Works out the bit index of each hash function for the given object in a filter of filterBits bits, giving the
+     * same results as calling {@link #murmurHash3(byte[], long, int, byte[])} with hashNum from 0 up to
+     * bitIndexes.length - 1, but reading and mixing the object only once rather than once per hash function.
+     *
+     * @param words scratch space of at least {@code object.length / 4 + 1} ints, so that nothing is allocated.
+     */
+    public static void murmurHash3(byte[] object, long nTweak, int filterBits, int[] words, int[] bitIndexes) {
+        int numWords = mixBlocks(object, words);
+        for (int i = 0; i < bitIndexes.length; i++)
+            bitIndexes[i] = murmurHash3(words, numWords, object.length, nTweak, i, filterBits);
+    }
+
+    /**
+     * Runs the part of MurmurHash3 (x86_32) that doesn't depend on the seed: each 4 byte block of the object is read
+     * and mixed into words, followed by the mixed tail if there is one. Returns how many words were used. As the
+     * seed is the only thing that differs between the filter's hash functions, this only has to be done once.
+     */
+    private static int mixBlocks(byte[] object, int[] words) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+        int numBlocks = object.length / 4;
+        for (int i = 0, j = 0; i < numBlocks; i++, j += 4) {
+            int k1 = (object[j] & 0xFF) |
+                  ((object[j+1] & 0xFF) << 8) |
+                  ((object[j+2] & 0xFF) << 16) |
+                  ((object[j+3] & 0xFF) << 24);
+            k1 *= c1;
+            k1 = rotateLeft32(k1, 15);
+            k1 *= c2;
+            words[i] = k1;
+        }
+        int tail = numBlocks * 4;
+        int k1 = 0;
+        switch(object.length & 3)
+        {
+            case 3:
+                k1 ^= (object[tail + 2] & 0xff) << 16;
+                // Fall through.
+            case 2:
+                k1 ^= (object[tail + 1] & 0xff) << 8;
+                // Fall through.
+            case 1:
+                k1 ^= (object[tail] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
+                words[numBlocks] = k1;
+                return numBlocks + 1;
+            default:
+                return numBlocks;
+        }
+    }
+
+    // The rest of MurmurHash3 (x86_32), over the words from mixBlocks.
+    private static int murmurHash3(int[] words, int numWords, int length, long nTweak, int hashNum, int filterBits) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        int numBlocks = length / 4;
+        for (int i = 0; i < numBlocks; i++) {
+            h1 ^= words[i];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        if (numWords > numBlocks)
+            h1 ^= words[numBlocks];
+
+        // finalization
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+
+        return (int)((h1&0xFFFFFFFFL) % filterBits);
+    }
+
+    // Returns scratch space big enough to mix the object into, reusing the given array when it is.
+    private static int[] wordsFor(byte[] object, @Nullable int[] words) {
+        int needed = object.length / 4 + 1;
+        return words != null && words.length >= needed ? words : new int[Math.max(needed, 16)];
+    }
     
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
     public synchronized boolean contains(byte[] object) {
+        int[] words = hashWords = wordsFor(object, hashWords);
+        int numWords = mixBlocks(object, words);
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+            if (!Utils.checkBitLE(data, murmurHash3(words, numWords, object.length, nTweak, i, data.length * 8)))
                 return false;
         }
         return true;
@@ -233,8 +335,10 @@ public class BloomFilter extends Message {
 
     /** Insert the given arbitrary data into the filter */
     public synchronized void insert(byte[] object) {
+        int[] words = hashWords = wordsFor(object, hashWords);
+        int numWords = mixBlocks(object, words);
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+            Utils.setBitLE(data, murmurHash3(words, numWords, object.length, nTweak, i, data.length * 8));
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
@@ -296,21 +400,35 @@ public class BloomFilter extends Message {
             throw new IllegalStateException("Unknown flag combination");
     }
 
+    /** Returns an immutable copy of this filter as it is now. */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(data.clone(), (int) hashFuncs, nTweak, getUpdateFlag());
+    }
+
     /**
      * Creates a new FilteredBlock from the given Block, using this filter to select transactions. Matches can cause the
      * filter to be updated with the matched element, this ensures that when a filter is applied to a block, spends of
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
      * filtered block already has the matched transactions associated with it.
+     *
+     * <p>Large blocks are matched on all cores, with the same result as matching the transactions one at a time.</p>
      */
     public synchronized FilteredBlock applyAndUpdate(Block block) {
+        int numTxns = block.getTransactions().size();
+        return applyAndUpdate(block, Math.min(Runtime.getRuntime().availableProcessors(), numTxns / MIN_TRANSACTIONS_PER_TASK));
+    }
+
+    @VisibleForTesting
+    synchronized FilteredBlock applyAndUpdate(Block block, int numChunks) {
         List<Transaction> txns = block.getTransactions();
         List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(txns.size());
         List<Transaction> matched = Lists.newArrayList();
         byte[] bits = new byte[(int) Math.ceil(txns.size() / 8.0)];
+        boolean[] matches = applyAndUpdate(txns, numChunks);
         for (int i = 0; i < txns.size(); i++) {
             Transaction tx = txns.get(i);
             txHashes.add(tx.getHash());
-            if (applyAndUpdate(tx)) {
+            if (matches[i]) {
                 Utils.setBitLE(bits, i);
                 matched.add(tx);
             }
@@ -322,6 +440,70 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
+    // Works out which of the transactions match, updating the filter as applyAndUpdate(Transaction) does for each in turn.
+    private boolean[] applyAndUpdate(List<Transaction> txns, int numChunks) {
+        boolean[] matches = new boolean[txns.size()];
+        if (numChunks > 1) {
+            Snapshot before = snapshot();
+            List<List<byte[]>> updates = match(before, txns, numChunks);
+            boolean updated = false;
+            for (int i = 0; i < txns.size(); i++) {
+                if (updates.get(i) == null)
+                    continue;
+                matches[i] = true;
+                for (byte[] element : updates.get(i)) {
+                    insert(element);
+                    updated = true;
+                }
+            }
+            // Matching against the filter as it was before the block misses anything that only matches because of an
+            // element inserted for an earlier transaction, which can only happen through a false positive. Inserting
+            // only ever makes more things match, so matching again against the filter as it is after the block shows
+            // whether that happened. Only then is the block matched again one transaction at a time.
+            if (!updated || isSameMatch(updates, match(snapshot(), txns, numChunks)))
+                return matches;
+            data = before.data.clone();
+        }
+        for (int i = 0; i < txns.size(); i++)
+            matches[i] = applyAndUpdate(txns.get(i));
+        return matches;
+    }
+
+    // Matches the transactions against the snapshot on the thread pool, in chunks.
+    private static List<List<byte[]>> match(final Snapshot filter, List<Transaction> txns, int numChunks) {
+        List<ListenableFuture<List<List<byte[]>>>> futures = new ArrayList<ListenableFuture<List<List<byte[]>>>>(numChunks);
+        for (int i = 0; i < numChunks; i++) {
+            final List<Transaction> chunk = txns.subList(txns.size() * i / numChunks, txns.size() * (i + 1) / numChunks);
+            futures.add(Threading.THREAD_POOL.submit(new Callable<List<List<byte[]>>>() {
+                @Override
+                public List<List<byte[]>> call() {
+                    List<List<byte[]>> updates = new ArrayList<List<byte[]>>(chunk.size());
+                    for (Transaction tx : chunk)
+                        updates.add(filter.match(tx));
+                    return updates;
+                }
+            }));
+        }
+        try {
+            List<List<byte[]>> updates = new ArrayList<List<byte[]>>(txns.size());
+            for (List<List<byte[]>> chunkUpdates : Futures.allAsList(futures).get())
+                updates.addAll(chunkUpdates);
+            return updates;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static boolean isSameMatch(List<List<byte[]>> a, List<List<byte[]>> b) {
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) == null ? b.get(i) != null : b.get(i) == null || a.get(i).size() != b.get(i).size())
+                return false;
+        }
+        return true;
+    }
+
     public synchronized boolean applyAndUpdate(Transaction tx) {
         if (contains(tx.getHash().getBytes()))
             return true;
@@ -357,4 +539,117 @@ public class BloomFilter extends Message {
     public synchronized int hashCode() {
         return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(data));
     }
+
+    /**
+     * An immutable copy of a {@link BloomFilter}, made with {@link BloomFilter#snapshot()}. As it never changes it can
+     * be used from any number of threads without locking.
+     */
+    public static final class Snapshot {
+        private final byte[] data;
+        private final int hashFuncs;
+        private final long nTweak;
+        private final BloomUpdate updateFlag;
+        // Snapshots are read from many threads at once, so each thread has its own scratch space for hashing.
+        private static final ThreadLocal<int[]> hashWords = new ThreadLocal<int[]>();
+
+        private Snapshot(byte[] data, int hashFuncs, long nTweak, BloomUpdate updateFlag) {
+            this.data = data;
+            this.hashFuncs = hashFuncs;
+            this.nTweak = nTweak;
+            this.updateFlag = updateFlag;
+        }
+
+        /** See {@link BloomFilter#contains(byte[])}. */
+        public boolean contains(byte[] object) {
+            int[] words = wordsFor(object, hashWords.get());
+            hashWords.set(words);
+            int numWords = mixBlocks(object, words);
+            for (int i = 0; i < hashFuncs; i++) {
+                if (!Utils.checkBitLE(data, murmurHash3(words, numWords, object.length, nTweak, i, data.length * 8)))
+                    return false;
+            }
+            return true;
+        }
+
+        /** Returns true if the transaction matches, without working out how the filter would be updated. */
+        public boolean matches(Transaction tx) {
+            return match(tx) != null;
+        }
+
+        /**
+         * Returns null if the transaction doesn't match, otherwise the elements that
+         * {@link BloomFilter#applyAndUpdate(Transaction)} would insert for it, as the update flag says.
+         */
+        @Nullable
+        List<byte[]> match(Transaction tx) {
+            if (contains(tx.getHash().getBytes()))
+                return Collections.emptyList();
+            List<byte[]> updates = null;
+            for (TransactionOutput output : tx.getOutputs()) {
+                Script script = output.getScriptPubKey();
+                for (ScriptChunk chunk : script.getChunks()) {
+                    if (!chunk.isPushData() || !contains(chunk.data))
+                        continue;
+                    if (updates == null)
+                        updates = new ArrayList<byte[]>(1);
+                    boolean isSendingToPubKeys = script.isSentToRawPubKey() || script.isSentToMultiSig();
+                    if (updateFlag == BloomUpdate.UPDATE_ALL || (updateFlag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys))
+                        updates.add(output.getOutPointFor().peercoinSerialize());
+                }
+            }
+            return updates;
+        }
+
+        /** Returns a snapshot with the given objects inserted as well, or this one if it already contains them all. */
+        public Snapshot withInserted(Collection<byte[]> objects) {
+            byte[] newData = null;
+            for (byte[] object : objects) {
+                if (newData == null && contains(object))
+                    continue;
+                if (newData == null)
+                    newData = data.clone();
+                int[] words = wordsFor(object, hashWords.get());
+                hashWords.set(words);
+                int numWords = mixBlocks(object, words);
+                for (int i = 0; i < hashFuncs; i++)
+                    Utils.setBitLE(newData, murmurHash3(words, numWords, object.length, nTweak, i, newData.length * 8));
+            }
+            return newData == null ? this : new Snapshot(newData, hashFuncs, nTweak, updateFlag);
+        }
+
+        public BloomUpdate getUpdateFlag() {
+            return updateFlag;
+        }
+    }
+
+    /**
+     * Keeps a {@link Snapshot} up to date as transactions are matched against it, copying it whenever a match inserts
+     * new elements (for filters with {@link BloomUpdate#UPDATE_ALL} this is every match that isn't on the transaction
+     * hash). Readers get the current snapshot without locking, and matching from several threads at once is safe: an
+     * update made from an out of date snapshot is tried again on the newer one.
+     */
+    public static class Updater {
+        private final AtomicReference<Snapshot> current;
+
+        public Updater(Snapshot snapshot) {
+            current = new AtomicReference<Snapshot>(snapshot);
+        }
+
+        public Snapshot get() {
+            return current.get();
+        }
+
+        /** Returns true if the transaction matches, inserting whatever the update flag says into the filter. */
+        public boolean applyAndUpdate(Transaction tx) {
+            while (true) {
+                Snapshot snapshot = current.get();
+                List<byte[]> updates = snapshot.match(tx);
+                if (updates == null)
+                    return false;
+                Snapshot updated = snapshot.withInserted(updates);
+                if (updated == snapshot || current.compareAndSet(snapshot, updated))
+                    return true;
+            }
+        }
+    }
 }
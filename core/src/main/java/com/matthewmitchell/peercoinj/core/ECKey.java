@@ -125,6 +125,8 @@ public class ECKey implements EncryptableItem, Serializable {
     public static final BigInteger HALF_CURVE_ORDER;
 
     private static final SecureRandom secureRandom;
+    // Decoded public keys, so that keys which sign many times are only decoded once.
+    private static final ECPointCache pubKeyCache = new ECPointCache();
     private static final long serialVersionUID = -728224901792295832L;
 
     static {
@@ -272,7 +274,12 @@ public class ECKey implements EncryptableItem, Serializable {
      * The compression state of pub will be preserved.
      */
     public static ECKey fromPublicOnly(byte[] pub) {
-        return new ECKey(null, CURVE.getCurve().decodePoint(pub));
+        return new ECKey(null, pubKeyCache.decode(pub));
+    }
+
+    /** Returns the cache of decoded public keys used when verifying signatures and creating public only keys. */
+    public static ECPointCache getPubKeyCache() {
+        return pubKeyCache;
     }
 
     /**
@@ -633,8 +640,23 @@ public class ECKey implements EncryptableItem, Serializable {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
+        return verify(data, signature, pubKeyCache.decode(pub));
+    }
+
+    /**
+     * Verifies the given ECDSA signature against the message bytes using an already decoded public key. This saves
+     * decoding the key again when it signs many times. Always done in Java, even if native verification is enabled.
+     *
+     * @param data      Hash of the data to verify.
+     * @param signature ASN.1 encoded signature.
+     * @param pub       The public key point to use.
+     */
+    public static boolean verify(byte[] data, ECDSASignature signature, ECPoint pub) {
+        if (FAKE_SIGNATURES)
+            return true;
+
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
+        ECPublicKeyParameters params = new ECPublicKeyParameters(pub, CURVE);
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
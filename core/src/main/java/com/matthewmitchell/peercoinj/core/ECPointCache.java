@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A bounded cache from encoded public keys to decoded curve points, safe for use from many threads. Decoding a
+ * compressed key takes a square root in the field, which is a noticeable part of verifying a signature, and the keys
+ * of exchanges and pools sign thousands of inputs. The least recently used points are evicted first.</p>
+ *
+ * <p>Bouncy Castle keeps the window table it precomputes for a point on the point itself, so a cached key also keeps
+ * its precomputation for the next signature it verifies. The cache used by {@link ECKey} can be reached with
+ * {@link ECKey#getPubKeyCache()}, for example to log its hit rate.</p>
+ */
+public class ECPointCache {
+    /** Enough for the keys busy at any one time, at a few kilobytes each with precomputation. */
+    public static final int DEFAULT_MAX_SIZE = 2048;
+
+    private final Cache<ByteBuffer, ECPoint> cache;
+
+    public ECPointCache(int maxSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(Math.max(4, Runtime.getRuntime().availableProcessors()))
+                .recordStats()
+                .build();
+    }
+
+    public ECPointCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Returns the point for the given encoded public key, decoding it if it isn't in the cache.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid encoding of a point on the curve.
+     */
+    public ECPoint decode(byte[] encoded) {
+        ECPoint point = cache.getIfPresent(ByteBuffer.wrap(encoded));
+        if (point == null) {
+            point = ECKey.CURVE.getCurve().decodePoint(encoded);
+            // Copy the key as the caller is free to reuse its array.
+            cache.put(ByteBuffer.wrap(encoded.clone()), point);
+        }
+        return point;
+    }
+
+    /** Returns the hit and miss counts since the cache was created. */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /** Returns the fraction of lookups that found the point in the cache, or 1 if there have been none. */
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    /** Returns roughly how many points are cached. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Forgets all the cached points. The statistics are kept. */
+    public void clear() {
+        cache.invalidateAll();
+    }
+}
@@ -125,11 +125,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // TODO: execute in order of largest transaction (by input count) first
     ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
-    /** A job submitted to the executor which verifies signatures. */
+    /**
+     * A job submitted to the executor which verifies the scripts of a transaction. The signatures of standard inputs
+     * are left in signatureChecks, to be verified with those of the rest of the block.
+     */
     private static class Verifier implements Callable<VerificationException> {
         final Transaction tx;
         final List<Script> prevOutScripts;
         final Set<VerifyFlag> verifyFlags;
+        final List<BatchSignatureVerifier.Check> signatureChecks = new ArrayList<BatchSignatureVerifier.Check>();
 
         public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
             this.tx = tx; this.prevOutScripts = prevOutScripts; this.verifyFlags = verifyFlags;
@@ -139,9 +143,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         @Override
         public VerificationException call() throws Exception {
             try{
+                // Working out the signature hashes edits the transaction, so do it on a copy.
+                Transaction txCopy = new Transaction(tx.getParams(), tx.peercoinSerialize());
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
                 for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+                    Script scriptSig = tx.getInputs().get(index).getScriptSig();
+                    Script prevOutScript = prevOutIt.next();
+                    BatchSignatureVerifier.Check check = scriptSig.getStandardSignatureCheck(txCopy, index, prevOutScript);
+                    if (check != null)
+                        signatureChecks.add(check);
+                    else
+                        scriptSig.correctlySpends(tx, index, prevOutScript, verifyFlags);
                 }
             } catch (VerificationException e) {
                 return e;
@@ -149,7 +161,35 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             return null;
         }
     }
-    
+
+    /**
+     * Waits for the verifiers in order, then verifies the signatures they left in parallel batches. Throws the first
+     * failure by transaction order, so a bad signature is reported ahead of a script failure in a later transaction.
+     */
+    private void verifyScripts(List<Verifier> verifiers, List<Future<VerificationException>> futures)
+            throws VerificationException {
+        BatchSignatureVerifier signatureVerifier = new BatchSignatureVerifier(scriptVerificationExecutor);
+        VerificationException scriptFailure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                scriptFailure = futures.get(i).get();
+            } catch (InterruptedException thrownE) {
+                throw new RuntimeException(thrownE); // Shouldn't happen
+            } catch (ExecutionException thrownE) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            }
+            if (scriptFailure != null)
+                break;
+            signatureVerifier.addAll(verifiers.get(i).signatureChecks);
+        }
+        VerificationException signatureFailure = signatureVerifier.verify();
+        if (signatureFailure != null)
+            throw signatureFailure;
+        if (scriptFailure != null)
+            throw scriptFailure;
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -172,6 +212,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         
         List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        List<Verifier> verifiers = new ArrayList<Verifier>(block.transactions.size());
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -239,24 +280,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
+                    Verifier verifier = new Verifier(tx, prevOutScripts, verifyFlags);
+                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(verifier);
                     scriptVerificationExecutor.execute(future);
                     listScriptVerificationResults.add(future);
+                    verifiers.add(verifier);
                 }
             }
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            verifyScripts(verifiers, listScriptVerificationResults);
         } catch (VerificationException e) {
             scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
@@ -307,6 +338,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (scriptVerificationExecutor.isShutdown())
                     scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
                 List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                List<Verifier> verifiers = new ArrayList<Verifier>(transactions.size());
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
@@ -352,25 +384,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
+                        Verifier verifier = new Verifier(tx, prevOutScripts, verifyFlags);
+                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(verifier);
                         scriptVerificationExecutor.execute(future);
                         listScriptVerificationResults.add(future);
+                        verifiers.add(verifier);
                     }
                 }
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                verifyScripts(verifiers, listScriptVerificationResults);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+/**
+ * A {@link PeerFilterProvider} that can bring a filter it made earlier up to date, by inserting only the elements it
+ * added since. The {@link com.matthewmitchell.peercoinj.net.FilterMerger} uses this where it can, and asks other
+ * providers for a whole new filter each time. Both methods are called with the lock from {@link #getLock()} held.
+ */
+public interface IncrementalPeerFilterProvider extends PeerFilterProvider {
+    /**
+     * Returns how far this provider has got in adding filter elements. Read before calling
+     * {@link #getBloomFilter(int, double, long)}, it can later be passed to
+     * {@link #insertBloomFilterElements(BloomFilter, long)} to bring that filter up to date.
+     */
+    public long getBloomFilterPosition();
+
+    /**
+     * Inserts the elements added to this provider since the given position into a filter made with the same size,
+     * false positive rate and tweak as before, and returns the position reached. The number of elements inserted is
+     * the difference between the two positions. Returns -1 instead if the new elements can't be told apart, in which
+     * case a whole new filter has to be made with {@link #getBloomFilter(int, double, long)}.
+     */
+    public long insertBloomFilterElements(BloomFilter filter, long position);
+}
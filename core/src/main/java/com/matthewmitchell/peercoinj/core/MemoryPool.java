@@ -21,15 +21,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -43,10 +44,30 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The pool is split into shards by transaction hash, each with its own lock, so that peers reporting different
+ * transactions don't contend with each other. Entries are forgotten once they are older than the expiry time, or
+ * oldest first once the pool uses more than its memory budget. This happens whenever the pool is updated, so how much
+ * memory the pool holds on to doesn't depend on the garbage collector.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
-    protected ReentrantLock lock = Threading.lock("mempool");
+
+    /** The max size of a memory pool created with the no-args constructor, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    /** How long a memory pool created with the no-args constructor remembers a transaction for. */
+    public static final long DEFAULT_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    /**
+     * The max number of transactions tracked by a memory pool created with {@link #MemoryPool(int)}, which is
+     * kept for backwards compatibility.
+     */
+    public static final int MAX_SIZE = 1000;
+
+    // An estimate of the memory taken by an entry apart from the transaction or the bits recording which peers
+    // announced it. It covers the hash, the map entry and the objects themselves.
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+    // Must be a power of two.
+    private static final int NUM_SHARDS = 16;
 
     // For each transaction we may have seen:
     //   - only its hash in an inv packet
@@ -56,110 +77,175 @@ public class MemoryPool {
     // Before we see the full transaction, we need to track how many peers advertised it, so we can estimate its
     // confidence pre-chain inclusion assuming an un-tampered with network connection. After we see the full transaction
     // we need to switch from tracking that data in the Entry to tracking it in the TransactionConfidence object itself.
-    private static class WeakTransactionReference extends WeakReference<Transaction> {
-        public Sha256Hash hash;
-        public WeakTransactionReference(Transaction tx, ReferenceQueue<Transaction> queue) {
-            super(tx, queue);
-            hash = tx.getHash();
+    private static class Entry {
+        // Invariants: one of peers and tx must be null, to indicate which is used.
+        // The ids from PeerIds of the connected peers that announced the transaction.
+        BitSet peers;
+        // The other peers that announced it, which had no id or have disconnected since. Created when needed.
+        @Nullable List<PeerAddress> otherPeers;
+        Transaction tx;
+        // When the entry was created, for expiry.
+        final long createdMillis;
+        // Our estimate of the memory used by the entry.
+        int bytes;
+
+        Entry(long createdMillis) {
+            this.createdMillis = createdMillis;
+        }
+
+        int numPeers() {
+            return peers.cardinality() + (otherPeers == null ? 0 : otherPeers.size());
+        }
+
+        boolean isOtherPeer(PeerAddress address) {
+            if (otherPeers == null)
+                return false;
+            InetSocketAddress socketAddress = address.toSocketAddress();
+            for (PeerAddress peer : otherPeers) {
+                if (peer.toSocketAddress().equals(socketAddress))
+                    return true;
+            }
+            return false;
+        }
+
+        void addOtherPeer(PeerAddress address) {
+            if (otherPeers == null)
+                otherPeers = new ArrayList<PeerAddress>(2);
+            otherPeers.add(address);
         }
     }
-    private static class Entry {
-        // Invariants: one of the two fields must be null, to indicate which is used.
-        Set<PeerAddress> addresses;
-        // We keep a weak reference to the transaction. This means that if no other bit of code finds the transaction
-        // worth keeping around it will drop out of memory and we will, at some point, forget about it, which means
-        // both addresses and tx.get() will be null. When this happens the WeakTransactionReference appears in the queue
-        // allowing us to delete the associated entry (the tx itself has already gone away).
-        WeakTransactionReference tx;
+
+    private static class Shard {
+        final ReentrantLock lock = Threading.lock("mempool");
+        // Kept in insertion order, so the oldest entries are the first ones.
+        final LinkedHashMap<Sha256Hash, Entry> entries = new LinkedHashMap<Sha256Hash, Entry>();
+        long bytes;
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
 
-    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
-    // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    private final Shard[] shards;
+    private final PeerIds peerIds = new PeerIds();
+    private final long maxBytesPerShard;
+    private final int maxEntriesPerShard;
+    private final long expiryMillis;
 
-    /** The max size of a memory pool created with the no-args constructor. */
-    public static final int MAX_SIZE = 1000;
+    /**
+     * Creates a memory pool that will use at most about the given number of bytes, and forget transactions once it
+     * has known about them for the given time.
+     * @param maxBytes Max number of bytes used by tracked transactions and announcements.
+     * @param expiryMillis How long to remember a transaction for, in milliseconds.
+     */
+    public MemoryPool(long maxBytes, long expiryMillis) {
+        this(maxBytes, Integer.MAX_VALUE, expiryMillis);
+    }
 
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
-     * usage).
-     * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
+     * usage), as well as using at most {@link #DEFAULT_MAX_BYTES}.
+     * @param size Max number of transactions to track. The pool will fill up to this size then forget the oldest.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<Transaction>();
+        this(DEFAULT_MAX_BYTES, size, DEFAULT_EXPIRY_MILLIS);
     }
 
     /**
-     * Creates a memory pool that will track at most {@link MemoryPool#MAX_SIZE} entries. You should normally use
-     * this constructor.
+     * Creates a memory pool that will use at most {@link #DEFAULT_MAX_BYTES} and remember transactions for
+     * {@link #DEFAULT_EXPIRY_MILLIS}. You should normally use this constructor.
      */
     public MemoryPool() {
-        this(MAX_SIZE);
+        this(DEFAULT_MAX_BYTES, DEFAULT_EXPIRY_MILLIS);
+    }
+
+    private MemoryPool(long maxBytes, int maxEntries, long expiryMillis) {
+        checkArgument(maxBytes > 0 && maxEntries > 0 && expiryMillis > 0);
+        shards = new Shard[NUM_SHARDS];
+        for (int i = 0; i < NUM_SHARDS; i++)
+            shards[i] = new Shard();
+        // Hashes are random, so the shards fill up evenly.
+        this.maxBytesPerShard = Math.max(1, maxBytes / NUM_SHARDS);
+        this.maxEntriesPerShard = Math.max(1, maxEntries / NUM_SHARDS);
+        this.expiryMillis = expiryMillis;
+    }
+
+    private Shard shardFor(Sha256Hash hash) {
+        return shards[hash.hashCode() & (NUM_SHARDS - 1)];
     }
 
     /**
-     * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
-     * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
-     * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
+     * Forgets entries in the given shard that have expired, then the oldest ones while the shard is over budget.
      */
-    private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
+    private void cleanShard(Shard shard) {
+        checkState(shard.lock.isHeldByCurrentThread());
+        long expiredBefore = Utils.currentTimeMillis() - expiryMillis;
+        Iterator<Entry> it = shard.entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.createdMillis > expiredBefore && shard.bytes <= maxBytesPerShard &&
+                    shard.entries.size() <= maxEntriesPerShard)
+                break;
+            it.remove();
+            shard.bytes -= entry.bytes;
+            if (entry.tx != null)
+                releasePeerIds(entry.tx.getConfidence());
+        }
+    }
+
+    // Moves the peers recorded by id in the confidence of a transaction that is being forgotten over to their
+    // addresses, as their ids won't be released there when they disconnect.
+    private void releasePeerIds(TransactionConfidence confidence) {
+        BitSet ids = confidence.getBroadcastPeerIds();
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            PeerAddress address = peerIds.addressOf(id);
+            if (address != null)
+                confidence.releasePeerId(id, address);
         }
     }
 
+    private boolean isExpired(Entry entry) {
+        return entry.createdMillis <= Utils.currentTimeMillis() - expiryMillis;
+    }
+
+    private void updateBytes(Shard shard, Entry entry) {
+        int bytes = ENTRY_OVERHEAD_BYTES;
+        if (entry.tx != null) {
+            bytes += entry.tx.getMessageSize();
+        } else {
+            bytes += (entry.peers.length() + 7) / 8;
+            // A reference each, the addresses are shared.
+            if (entry.otherPeers != null)
+                bytes += entry.otherPeers.size() * 8;
+        }
+        shard.bytes += bytes - entry.bytes;
+        entry.bytes = bytes;
+    }
+
+    private Entry newEntry(Shard shard, Sha256Hash hash) {
+        Entry entry = new Entry(Utils.currentTimeMillis());
+        shard.entries.put(hash, entry);
+        return entry;
+    }
+
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        Shard shard = shardFor(txHash);
+        shard.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
+            cleanShard(shard);
+            Entry entry = shard.entries.get(txHash);
             if (entry == null) {
                 // No such TX known.
                 return 0;
             } else if (entry.tx == null) {
                 // We've seen at least one peer announce with an inv.
-                checkNotNull(entry.addresses);
-                return entry.addresses.size();
+                checkNotNull(entry.peers);
+                return entry.numPeers();
             } else {
-                final Transaction tx = entry.tx.get();
-                if (tx == null) {
-                    // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
-                    // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
-                    // just delete it from the map.
-                    memoryPool.remove(txHash);
-                    return 0;
-                } else {
-                    checkState(entry.addresses == null);
-                    return tx.getConfidence().numBroadcastPeers();
-                }
+                checkState(entry.peers == null);
+                return entry.tx.getConfidence().numBroadcastPeers();
             }
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
@@ -169,48 +255,54 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
+        Shard shard = shardFor(tx.getHash());
+        shard.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
+            cleanShard(shard);
+            Entry entry = shard.entries.get(tx.getHash());
             if (entry != null) {
                 // This TX or its hash have been previously interned.
                 if (entry.tx != null) {
-                    // We already interned it (but may have thrown it away).
-                    checkState(entry.addresses == null);
+                    // We already interned it.
+                    checkState(entry.peers == null);
                     // We only want one canonical object instance for a transaction no matter how many times it is
-                    // deserialized.
-                    Transaction transaction = entry.tx.get();
-                    if (transaction != null) {
-                        // We saw it before and kept it around. Hand back the canonical copy.
-                        tx = transaction;
-                    }
-                    return tx;
+                    // deserialized. We saw it before, so hand back the canonical copy.
+                    return entry.tx;
                 } else {
                     // We received a transaction that we have previously seen announced but not downloaded until now.
-                    checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
-                    entry.addresses = null;
+                    checkNotNull(entry.peers);
+                    entry.tx = tx;
+                    BitSet peers = entry.peers;
+                    List<PeerAddress> otherPeers = entry.otherPeers;
+                    entry.peers = null;
+                    entry.otherPeers = null;
+                    updateBytes(shard, entry);
                     TransactionConfidence confidence = tx.getConfidence();
                     log.debug("Adding tx [{}] {} to the memory pool",
                             confidence.numBroadcastPeers(), tx.getHashAsString());
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
+                    // The ids are still taken, as peers that disconnect are moved to otherPeers first.
+                    for (int id = peers.nextSetBit(0); id >= 0; id = peers.nextSetBit(id + 1)) {
+                        markBroadcast(id, checkNotNull(peerIds.addressOf(id)), tx);
+                    }
+                    if (otherPeers != null) {
+                        for (PeerAddress address : otherPeers)
+                            markBroadcast(-1, address, tx);
                     }
+                    cleanShard(shard);
                     return tx;
                 }
             } else {
                 // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
                 // dependencies of a relevant transaction (see Peer.downloadDependencies).
                 log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
-                entry = new Entry();
-                entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                entry = newEntry(shard, tx.getHash());
+                entry.tx = tx;
+                updateBytes(shard, entry);
+                cleanShard(shard);
                 return tx;
             }
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
@@ -221,13 +313,14 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
+        Shard shard = shardFor(tx.getHash());
+        shard.lock.lock();
         try {
             final Transaction interned = intern(tx);
-            markBroadcast(byPeer, interned);
+            markBroadcast(peerIds.find(byPeer), byPeer, interned);
             return interned;
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
@@ -236,83 +329,150 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
+        Shard shard = shardFor(hash);
+        shard.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
+            // Looked up with the lock held, so that if the peer is disconnecting its id is either not found or is moved
+            // out of the entry afterwards.
+            int peerId = peerIds.find(byPeer);
+            cleanShard(shard);
+            Entry entry = shard.entries.get(hash);
             if (entry != null) {
                 // This TX or its hash have been previously announced.
                 if (entry.tx != null) {
-                    checkState(entry.addresses == null);
-                    Transaction tx = entry.tx.get();
-                    if (tx != null) {
-                        markBroadcast(byPeer, tx);
-                        log.debug("{}: Peer announced transaction we have seen before [{}] {}",
-                                byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
-                    } else {
-                        // The inv is telling us about a transaction that we previously downloaded, and threw away
-                        // because nothing found it interesting enough to keep around. So do nothing.
-                    }
+                    checkState(entry.peers == null);
+                    Transaction tx = entry.tx;
+                    markBroadcast(peerId, byPeer, tx);
+                    log.debug("{}: Peer announced transaction we have seen before [{}] {}",
+                            byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
                 } else {
-                    checkNotNull(entry.addresses);
-                    entry.addresses.add(byPeer);
+                    checkNotNull(entry.peers);
+                    addPeer(entry, peerId, byPeer);
+                    updateBytes(shard, entry);
+                    cleanShard(shard);
                     log.debug("{}: Peer announced transaction we have seen announced before [{}] {}",
-                            byPeer, entry.addresses.size(), hash);
+                            byPeer, entry.numPeers(), hash);
                 }
             } else {
                 // This TX has never been seen before.
-                entry = new Entry();
-                // TODO: Using hashsets here is inefficient compared to just having an array.
-                entry.addresses = new HashSet<PeerAddress>();
-                entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
+                entry = newEntry(shard, hash);
+                entry.peers = new BitSet();
+                addPeer(entry, peerId, byPeer);
+                updateBytes(shard, entry);
+                cleanShard(shard);
                 log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
             }
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
-    private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
+    // Records that the peer with the given id, or -1 if it has none, announced the transaction of the entry.
+    private void addPeer(Entry entry, int peerId, PeerAddress address) {
+        if (peerId >= 0 && entry.peers.get(peerId))
+            return;
+        // It may have announced it before it got this id, or before it had one at all.
+        if (entry.isOtherPeer(address))
+            return;
+        if (peerId >= 0)
+            entry.peers.set(peerId);
+        else
+            entry.addOtherPeer(address);
+    }
+
+    private void markBroadcast(int peerId, PeerAddress address, Transaction tx) {
+        checkState(shardFor(tx.getHash()).lock.isHeldByCurrentThread());
         final TransactionConfidence confidence = tx.getConfidence();
-        if (confidence.markBroadcastBy(byPeer))
+        boolean marked = peerId >= 0 ? confidence.markBroadcastBy(peerId, address) : confidence.markBroadcastBy(address);
+        if (marked)
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
     }
 
     /**
-     * Returns the {@link Transaction} for the given hash if we have downloaded it, or null if that hash is unknown or
-     * we only saw advertisements for it yet or it has been downloaded but garbage collected due to nowhere else
-     * holding a reference to it.
+     * Gives the peer with the given address an id, so that the transactions it announces can be recorded cheaply.
+     * Called by the {@link PeerGroup} that owns the pool when the peer connects. Announcements by peers that haven't
+     * connected this way are still recorded, by address.
+     */
+    public void peerConnected(PeerAddress address) {
+        peerIds.acquire(address);
+    }
+
+    /**
+     * Frees the id of the peer with the given address once it has disconnected, so that the next peer to connect can
+     * have it.
+     */
+    public void peerDisconnected(PeerAddress address) {
+        int peerId = peerIds.release(address);
+        if (peerId == -1)
+            return;
+        // Announcements recorded by the id have to be moved over to the address before the id is handed out again.
+        PeerAddress peer = checkNotNull(peerIds.addressOf(peerId));
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                for (Entry entry : shard.entries.values()) {
+                    if (entry.tx != null) {
+                        entry.tx.getConfidence().releasePeerId(peerId, peer);
+                    } else if (entry.peers.get(peerId)) {
+                        entry.peers.clear(peerId);
+                        // An announcement since the id was released was already recorded by address.
+                        if (!entry.isOtherPeer(peer))
+                            entry.addOtherPeer(peer);
+                        updateBytes(shard, entry);
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        peerIds.free(peerId);
+    }
+
+    /**
+     * Returns the {@link Transaction} for the given hash if we have downloaded it, or null if that hash is unknown,
+     * we only saw advertisements for it yet, or it has been forgotten because it expired or the pool got full.
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
+        Shard shard = shardFor(hash);
+        shard.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
+            Entry entry = shard.entries.get(hash);
             if (entry == null) return null;  // Unknown.
-            if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
+            if (isExpired(entry)) return null;  // Will be forgotten at the next update.
+            return entry.tx;  // Null if seen but only in advertisements.
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
     /**
-     * Returns true if the TX identified by hash has been seen before (ie, in an inv). Note that a transaction that
-     * was broadcast, downloaded and nothing kept a reference to it will eventually be cleared out by the garbage
-     * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
+     * Returns true if the TX identified by hash has been seen before (ie, in an inv). Note that transactions are
+     * forgotten once they expire or the pool gets full, after which wasSeen() will return false - it does not keep a
+     * permanent record of every hash ever broadcast.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
+        Shard shard = shardFor(hash);
+        shard.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
-            return entry != null;
+            Entry entry = shard.entries.get(hash);
+            return entry != null && !isExpired(entry);
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
+        }
+    }
+
+    /** Returns our estimate of the number of bytes used by the transactions and announcements in the pool. */
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                bytes += shard.bytes;
+            } finally {
+                shard.lock.unlock();
+            }
         }
+        return bytes;
     }
 }
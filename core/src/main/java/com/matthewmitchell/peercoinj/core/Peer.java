@@ -513,6 +513,8 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            // Verify all the headers up front on the worker pool, so they only need linking into the chain below.
+            blockChain.verifyHeaders(m.getBlockHeaders());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -526,9 +528,18 @@ public class Peer extends PeerSocketHandler {
                         log.info("Lost download peer status, throwing away downloaded headers.");
                         return;
                     }
+                    ListenableFuture<Boolean> validHashFuture;
                     if (blockChain.add(header)) {
                         // The block was successfully linked into the chain. Notify the user of our progress.
                         invokeOnBlocksDownloaded(header);
+                    } else if ((validHashFuture = blockChain.getValidHashFuture(header.getHash())) != null) {
+                        // The rest of the headers can't be linked until the valid hashes have been synchronised in
+                        // the background, so throw them away. The download carries on from the chain head once this
+                        // header has been connected.
+                        log.info("Header {} is waiting for valid hashes, discarding {} headers", header.getHashAsString(),
+                                m.getBlockHeaders().size() - i - 1);
+                        awaitValidHashes(validHashFuture, true);
+                        return;
                     } else {
                         // This block is unconnected - we don't know how to get from it back to the genesis block yet.
                         // That must mean that the peer is buggy or malicious because we specifically requested for
@@ -568,6 +579,32 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // Waits for a block that the chain is holding back until the valid hashes have been synchronised. If resumeDownload
+    // is set the chain download carries on once the block has been connected. If the servers reject the block, it is
+    // handled like any other block that fails verification and nothing more is asked of the peer on its account.
+    private void awaitValidHashes(ListenableFuture<Boolean> validHashFuture, final boolean resumeDownload) {
+        Futures.addCallback(validHashFuture, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean connected) {
+                // Runs on the valid hash sync thread. Nothing else asks for the headers that were thrown away, so
+                // request them again unless the header was thrown away as well.
+                if (!resumeDownload || !connected || !vDownloadData)
+                    return;
+                lock.lock();
+                try {
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.warn("{}: Block verification failed", getAddress(), t);
+            }
+        }, Threading.SAME_THREAD);
+    }
+
     private void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -866,6 +903,10 @@ public class Peer extends PeerSocketHandler {
 		    blockResponseTimeout.setTimeoutEnabled(true);
 		
             } else {
+                // A block waiting for valid hashes fails verification later if the servers reject it.
+                ListenableFuture<Boolean> validHashFuture = blockChain.getValidHashFuture(m.getHash());
+                if (validHashFuture != null)
+                    awaitValidHashes(validHashFuture, false);
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
                 // to ask the peer to send them to us. This can happen during the initial block chain download where
@@ -970,6 +1011,10 @@ public class Peer extends PeerSocketHandler {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 invokeOnBlocksDownloaded(m.getBlockHeader());
             } else {
+                // A block waiting for valid hashes fails verification later if the servers reject it.
+                ListenableFuture<Boolean> validHashFuture = blockChain.getValidHashFuture(m.getHash());
+                if (validHashFuture != null)
+                    awaitValidHashes(validHashFuture, false);
                 // This block is an orphan - we don't know how to get from it back to the genesis block yet. That
                 // must mean that there are blocks we are missing, so do another getblocks with a new block locator
                 // to ask the peer to send them to us. This can happen during the initial block chain download where
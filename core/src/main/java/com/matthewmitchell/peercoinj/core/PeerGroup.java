@@ -1216,6 +1216,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             pendingPeers.remove(peer);
             peers.add(peer);
             newSize = peers.size();
+            memoryPool.peerConnected(peer.getAddress());
             // Give the peer a filter that can be used to probabilistically drop transactions that
             // aren't relevant to our wallet. We may still receive some false positives, which is
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
@@ -1393,9 +1394,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         lock.lock();
         try {
             pendingPeers.remove(peer);
-            peers.remove(peer);
-
             PeerAddress address = peer.getAddress();
+            if (peers.remove(peer))
+                memoryPool.peerDisconnected(address);
 
             log.info("{}: Peer died", address);
             if (peer == downloadPeer) {
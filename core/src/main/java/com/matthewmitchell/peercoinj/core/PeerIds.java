@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Gives each peer connected to a {@link PeerGroup} a small integer id, so that the peers that announced a
+ * transaction can be recorded by id rather than by searching a list of addresses. Peers are told apart by their socket
+ * address alone. The lowest free id is handed out and an id is freed once its peer disconnects, so ids stay below the
+ * number of peers connected at once.</p>
+ *
+ * <p>As ids are reused, anything recorded by id that outlives the peer must keep its address as well. The
+ * {@link MemoryPool} of the group owns its ids.</p>
+ */
+class PeerIds {
+    private final ReentrantLock lock = Threading.lock("peerids");
+    private final ConcurrentHashMap<InetSocketAddress, Integer> ids = new ConcurrentHashMap<InetSocketAddress, Integer>();
+    // Indexed by id, null where the id is free. An id stays taken after its address is released until it is freed.
+    private PeerAddress[] addresses = new PeerAddress[16];
+
+    /** Returns the id of the given address, giving it the lowest free one if it doesn't have one yet. */
+    int acquire(PeerAddress address) {
+        InetSocketAddress key = address.toSocketAddress();
+        lock.lock();
+        try {
+            Integer id = ids.get(key);
+            if (id != null)
+                return id;
+            int newId = 0;
+            while (newId < addresses.length && addresses[newId] != null)
+                newId++;
+            if (newId == addresses.length)
+                addresses = Arrays.copyOf(addresses, addresses.length * 2);
+            addresses[newId] = address;
+            ids.put(key, newId);
+            return newId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the given address being found by its id, and returns the id, or -1 if it didn't have one. The id isn't
+     * handed out again until it is passed to {@link #free(int)}, so whatever was recorded by it can be moved over to
+     * the address first.
+     */
+    int release(PeerAddress address) {
+        Integer id = ids.remove(address.toSocketAddress());
+        return id == null ? -1 : id;
+    }
+
+    /** Lets the given id, which has been released, be handed out again. */
+    void free(int id) {
+        lock.lock();
+        try {
+            addresses[id] = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the id of the given address, or -1 if it doesn't have one. */
+    int find(PeerAddress address) {
+        Integer id = ids.get(address.toSocketAddress());
+        return id == null ? -1 : id;
+    }
+
+    /** Returns the address with the given id, or null if the id is free. */
+    @Nullable
+    PeerAddress addressOf(int id) {
+        lock.lock();
+        try {
+            return id < addresses.length ? addresses[id] : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
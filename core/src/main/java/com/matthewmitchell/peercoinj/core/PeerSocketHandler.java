@@ -24,7 +24,6 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -83,11 +82,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // The write target copies the bytes before returning, so the message's own serialized bytes can be passed
+        // straight to it without being copied or joined to the header first.
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            byte[] payload = message.unsafePeercoinSerialize();
+            byte[] header = serializer.serializeHeader(message, payload);
+            if (log.isDebugEnabled())
+                log.debug("Sending {} message: {}", message.getClass().getSimpleName(), Utils.HEX.encode(header) + Utils.HEX.encode(payload));
+            writeTarget.writeBytes(header, payload);
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -142,7 +144,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
+                        // ...processing a message if one is available. The message is parsed straight out of the
+                        // largeReadBuffer rather than being copied again.
                         processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
                         largeReadBuffer = null;
                         header = null;
@@ -99,6 +99,27 @@ public class PeercoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = serializeHeader(name, message);
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    /**
+     * Returns the header, including the checksum, to send before the given payload of the given message. This lets
+     * the header and payload be written out separately rather than joined into one array first.
+     */
+    public byte[] serializeHeader(Message message, byte[] payload) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("PeercoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        return serializeHeader(name, payload);
+    }
+
+    private byte[] serializeHeader(String name, byte[] message) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -112,11 +133,7 @@ public class PeercoinSerializer {
 
         byte[] hash = doubleDigest(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return header;
     }
 
     /**
@@ -167,12 +184,16 @@ public class PeercoinSerializer {
      * {@link PeercoinSerializer#deserializeHeader}.
      */
     public Message deserializePayload(PeercoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
-
-        // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        int payloadStart = in.position();
+        ByteBuffer payload = in.slice();
+        payload.limit(header.size);
+        in.position(payloadStart + header.size);
+
+        // Verify the checksum on the buffer itself, so nothing is copied out of it for a corrupt message.
+        byte[] hash = new byte[32];
+        Utils.doubleDigest(payload, hash, 0);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -180,6 +201,17 @@ public class PeercoinSerializer {
                     " vs " + HEX.encode(header.checksum));
         }
 
+        // Messages are parsed from a byte array. If the buffer wraps one that holds exactly this payload, as the
+        // buffer for messages too large for the network read buffer does, parse that in place. Otherwise copy the
+        // payload out once. Whether the message keeps hold of the bytes after parsing is down to parseRetain.
+        byte[] payloadBytes;
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.array().length == header.size) {
+            payloadBytes = payload.array();
+        } else {
+            payloadBytes = new byte[header.size];
+            payload.get(payloadBytes);
+        }
+
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
                     HEX.encode(payloadBytes));
@@ -18,13 +18,20 @@ package com.matthewmitchell.peercoinj.core;
 
 import com.matthewmitchell.peercoinj.utils.ListenerRegistration;
 import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -59,21 +66,33 @@ import static com.google.common.base.Preconditions.*;
  * To make a copy that won't be changed, use {@link com.matthewmitchell.peercoinj.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
-    private static final long serialVersionUID = 4577920141400556444L;
+    private static final long serialVersionUID = -6390454302395412624L;
 
     /**
-     * The peers that have announced the transaction to us. Network nodes don't have stable identities, so we use
-     * IP address as an approximation. It's obviously vulnerable to being gamed if we allow arbitrary people to connect
-     * to us, so only peers we explicitly connected to should go here.
+     * The peers that have announced the transaction to us. Network nodes don't have stable identities, so we use IP
+     * address as an approximation. It's obviously vulnerable to being gamed if we allow arbitrary people to connect to
+     * us, so only peers we explicitly connected to should go here.
      */
-    private CopyOnWriteArrayList<PeerAddress> broadcastBy;
+    private transient List<PeerAddress> broadcastBy;
+    // The ids given by the MemoryPool of the transaction to the connected peers in broadcastBy, so that seeing the same
+    // announcement again takes one lookup. The pool releases an id here before it stands for another peer, and the
+    // peer moves to broadcastByOthers, along with the peers that had no id. A peer announcing with an id can only
+    // have been seen before as one of those.
+    private transient BitSet broadcastIds;
+    @Nullable private transient List<PeerAddress> broadcastByOthers;
+    private transient volatile int numBroadcastPeers;
     /** The Transaction that this confidence object is associated with. */
     private final Transaction transaction;
     // Lazily created listeners array.
     private transient CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. Once a depth tracker
+    // is attached, the depth is worked out from the best chain height instead and this is only used as a fallback.
     private int depth;
+    // Tells us the height of the best chain, usually the wallet the transaction is in.
+    @Nullable private transient DepthTracker depthTracker;
+    // The depths that futures from getDepthFuture() are waiting for, so the tracker can notify us when we reach them.
+    private transient TreeSet<Integer> awaitedDepths;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -134,10 +153,11 @@ public class TransactionConfidence implements Serializable {
     private Source source = Source.UNKNOWN;
 
     public TransactionConfidence(Transaction tx) {
-        // Assume a default number of peers for our set.
-        broadcastBy = new CopyOnWriteArrayList<PeerAddress>();
+        broadcastBy = new ArrayList<PeerAddress>(2);
+        broadcastIds = new BitSet();
         listeners = new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
         transaction = tx;
+        awaitedDepths = new TreeSet<Integer>();
     }
 
     /**
@@ -209,6 +229,44 @@ public class TransactionConfidence implements Serializable {
         return ListenerRegistration.removeFromList(listener, listeners);
     }
 
+    /**
+     * <p>Something that follows the best chain on behalf of a set of transactions, usually a {@link Wallet}. Rather than
+     * every transaction being told about every new block, the depth of a transaction is worked out from the height of
+     * the best chain whenever it's asked for, and the tracker only invokes listeners with
+     * {@link Listener.ChangeReason#DEPTH} for transactions that cross a depth somebody is interested in.</p>
+     *
+     * <p>Implementations are called without the confidence object being locked, and
+     * {@link #getBestChainHeight()} must not block.</p>
+     */
+    public interface DepthTracker {
+        /** Returns the height of the best chain that depths are measured against, or -1 if it isn't known. */
+        public int getBestChainHeight();
+
+        /**
+         * Called when somebody starts waiting for the transaction to reach the given depth, so that listeners can be
+         * invoked when it does.
+         */
+        public void onDepthAwaited(Transaction tx, int depth);
+    }
+
+    /**
+     * Sets the tracker that the depth of the transaction is worked out from. This is called by the {@link Wallet} when
+     * the transaction is added to it. If the transaction is in more than one wallet, the last one wins, which is fine
+     * as long as they follow the same chain.
+     */
+    public synchronized void setDepthTracker(@Nullable DepthTracker depthTracker) {
+        this.depthTracker = depthTracker;
+    }
+
+    /**
+     * Returns the smallest depth greater than the given one that a future from {@link #getDepthFuture(int)} is
+     * waiting for, or null if there isn't one.
+     */
+    @Nullable
+    public synchronized Integer getNextAwaitedDepth(int depth) {
+        return awaitedDepths.higher(depth);
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -245,6 +303,10 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        if (this.confidenceType == ConfidenceType.BUILDING) {
+            // Remember how deep we got, as the depth can't be worked out from the chain height any more.
+            depth = getDepthInBlocks();
+        }
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -265,31 +327,83 @@ public class TransactionConfidence implements Serializable {
      * @param address IP address of the peer, used as a proxy for identity.
      */
     public synchronized boolean markBroadcastBy(PeerAddress address) {
-        if (!broadcastBy.addIfAbsent(address))
+        if (wasBroadcastBy(address))
+            return false;  // Duplicate.
+        addBroadcastByOther(address);
+        return markedNewPeer(address);
+    }
+
+    /**
+     * Like {@link #markBroadcastBy(PeerAddress)}, but also takes the id the peer has been given by its
+     * {@link PeerGroup}, so that the peer announcing the transaction again is found straight away.
+     */
+    public synchronized boolean markBroadcastBy(int peerId, PeerAddress address) {
+        if (broadcastIds.get(peerId))
             return false;  // Duplicate.
+        // The peer may have announced it before it had this id, or without one.
+        if (broadcastByOthers != null && contains(broadcastByOthers, address))
+            return false;
+        broadcastIds.set(peerId);
+        return markedNewPeer(address);
+    }
+
+    /**
+     * Called by the {@link MemoryPool} when the given id stops standing for the peer with the given address, because
+     * the peer disconnected or the pool forgot the transaction. The peer is still recorded, by its address.
+     */
+    synchronized void releasePeerId(int peerId, PeerAddress address) {
+        if (!broadcastIds.get(peerId))
+            return;
+        broadcastIds.clear(peerId);
+        addBroadcastByOther(address);
+    }
+
+    /** Returns a copy of the ids of the peers recorded by {@link #markBroadcastBy(int, PeerAddress)}. */
+    synchronized BitSet getBroadcastPeerIds() {
+        return (BitSet) broadcastIds.clone();
+    }
+
+    private void addBroadcastByOther(PeerAddress address) {
+        if (broadcastByOthers == null)
+            broadcastByOthers = new ArrayList<PeerAddress>(2);
+        broadcastByOthers.add(address);
+    }
+
+    private boolean markedNewPeer(PeerAddress address) {
+        broadcastBy.add(address);
+        numBroadcastPeers++;
         if (getConfidenceType() == ConfidenceType.UNKNOWN) {
             this.confidenceType = ConfidenceType.PENDING;
         }
         return true;
     }
 
+    // Peers are told apart by their socket address, whatever else their addresses say about them.
+    private static boolean contains(List<PeerAddress> peers, PeerAddress address) {
+        for (PeerAddress peer : peers) {
+            if (peer.getPort() == address.getPort() && peer.getAddr().equals(address.getAddr()))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Returns how many peers have been passed to {@link TransactionConfidence#markBroadcastBy}.
      */
     public int numBroadcastPeers() {
-        return broadcastBy.size();
+        return numBroadcastPeers;
     }
 
     /**
      * Returns a snapshot of {@link PeerAddress}es that announced the transaction.
      */
-    public ListIterator<PeerAddress> getBroadcastBy() {
-        return broadcastBy.listIterator();
+    public synchronized ListIterator<PeerAddress> getBroadcastBy() {
+        return new ArrayList<PeerAddress>(broadcastBy).listIterator();
     }
 
     /** Returns true if the given address has been seen via markBroadcastBy() */
-    public boolean wasBroadcastBy(PeerAddress address) {
-        return broadcastBy.contains(address);
+    public synchronized boolean wasBroadcastBy(PeerAddress address) {
+        return contains(broadcastBy, address);
     }
 
     @Override
@@ -323,8 +437,8 @@ public class TransactionConfidence implements Serializable {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top. Updates the
-     * internal counter that tracks how deeply buried the block is.
+     * Updates the internal counter that tracks how deeply buried the block is. This is only useful if no
+     * {@link DepthTracker} has been set, as otherwise the depth is worked out from the best chain height.
      */
     public synchronized void incrementDepthInBlocks() {
         this.depth++;
@@ -339,13 +453,25 @@ public class TransactionConfidence implements Serializable {
      *     
      * <p>If the transaction appears in the top block, the depth is one. If it's anything else (pending, dead, unknown)
      * the depth is zero.</p>
+     *
+     * <p>If a {@link DepthTracker} has been set and the height the transaction appeared at is known, the depth is the
+     * number of blocks from the one the transaction appeared in to the tip of the best chain, so this is cheap to call
+     * and doesn't need updating as blocks arrive.</p>
      */
     public synchronized int getDepthInBlocks() {
+        // Wallets from before the height was recorded only have the depth.
+        if (depthTracker != null && confidenceType == ConfidenceType.BUILDING && appearedAtChainHeight >= 0) {
+            int height = depthTracker.getBestChainHeight();
+            // The tracker may not have seen the block the transaction appeared in yet.
+            if (height >= appearedAtChainHeight)
+                return height - appearedAtChainHeight + 1;
+        }
         return depth;
     }
 
     /*
-     * Set the depth in blocks. Having one block confirmation is a depth of one.
+     * Set the depth in blocks. Having one block confirmation is a depth of one. If a {@link DepthTracker} has been
+     * set, this only matters until the tracker has seen the block the transaction appeared in.
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
@@ -382,14 +508,36 @@ public class TransactionConfidence implements Serializable {
         TransactionConfidence c = new TransactionConfidence(transaction);
         // There is no point in this sync block, it's just to help FindBugs.
         synchronized (c) {
+            // The ids aren't released in the copy, so it records every peer by address.
             c.broadcastBy.addAll(broadcastBy);
+            if (!broadcastBy.isEmpty())
+                c.broadcastByOthers = new ArrayList<PeerAddress>(broadcastBy);
+            c.numBroadcastPeers = numBroadcastPeers;
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
+            // The copy has no tracker, so its depth stays as it is now.
+            c.depth = getDepthInBlocks();
             return c;
         }
     }
 
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(Lists.newArrayList(getBroadcastBy()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        broadcastBy = new ArrayList<PeerAddress>(2);
+        broadcastIds = new BitSet();
+        listeners = new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
+        awaitedDepths = new TreeSet<Integer>();
+        for (PeerAddress address : (List<PeerAddress>) in.readObject())
+            markBroadcastBy(address);
+    }
+
     /**
      * Call this after adjusting the confidence, for cases where listeners should be notified. This has to be done
      * explicitly rather than being done automatically because sometimes complex changes to transaction states can
@@ -432,23 +580,36 @@ public class TransactionConfidence implements Serializable {
      * depth to one will wait until it appears in a block on the best chain, and zero will wait until it has been seen
      * on the network.
      */
-    public synchronized ListenableFuture<Transaction> getDepthFuture(final int depth, Executor executor) {
+    public ListenableFuture<Transaction> getDepthFuture(final int depth, Executor executor) {
         final SettableFuture<Transaction> result = SettableFuture.create();
-        if (getDepthInBlocks() >= depth) {
-            result.set(transaction);
-        }
-        addEventListener(new Listener() {
-            @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
-                if (getDepthInBlocks() >= depth) {
-                    removeEventListener(this);
-                    result.set(transaction);
-                }
+        DepthTracker tracker;
+        synchronized (this) {
+            if (getDepthInBlocks() >= depth) {
+                result.set(transaction);
             }
-        }, executor);
+            addEventListener(new Listener() {
+                @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                    if (getDepthInBlocks() >= depth) {
+                        removeEventListener(this);
+                        synchronized (TransactionConfidence.this) {
+                            awaitedDepths.remove(depth);
+                        }
+                        result.set(transaction);
+                    }
+                }
+            }, executor);
+            if (result.isDone())
+                return result;
+            awaitedDepths.add(depth);
+            tracker = depthTracker;
+        }
+        // Called outside our lock, as the tracker will probably take its own.
+        if (tracker != null)
+            tracker.onDepthAwaited(transaction, depth);
         return result;
     }
 
-    public synchronized ListenableFuture<Transaction> getDepthFuture(final int depth) {
+    public ListenableFuture<Transaction> getDepthFuture(final int depth) {
         return getDepthFuture(depth, Threading.USER_THREAD);
     }
 }
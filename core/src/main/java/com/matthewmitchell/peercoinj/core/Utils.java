@@ -33,6 +33,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -48,15 +50,28 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  * To enable debug logging from the library, run with -Dpeercoinj.logging=true on your command line.
  */
 public class Utils {
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    // Each thread gets its own SHA-256 digest, along with space for the first round of a double digest, so that
+    // hashing never contends on a lock or allocates more than its result.
+    private static class DigestState {
+        final MessageDigest digest;
+        final byte[] scratch = new byte[32];
+
+        DigestState() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
         }
     }
 
+    private static final ThreadLocal<DigestState> digestState = new ThreadLocal<DigestState>() {
+        @Override
+        protected DigestState initialValue() {
+            return new DigestState();
+        }
+    };
+
     /** The string that prefixes all text messages signed using Peercoin keys. */
     public static final String Peercoin_SIGNED_MESSAGE_HEADER = "Peercoin Signed Message:\n";
     public static final byte[] Peercoin_SIGNED_MESSAGE_HEADER_BYTES = Peercoin_SIGNED_MESSAGE_HEADER.getBytes(Charsets.UTF_8);
@@ -151,19 +166,47 @@ public class Utils {
      * standard procedure in Peercoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] out = new byte[32];
+        doubleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the given byte range like {@link Utils#doubleDigest(byte[], int, int)},
+     * but writes the 32 byte result into out at outOffset rather than allocating a new array.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        DigestState state = startDigest(out, outOffset);
+        state.digest.update(input, offset, length);
+        finishDoubleDigest(state, out, outOffset);
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the bytes remaining in the given buffer, which may be a direct buffer,
+     * without copying them out of it. The buffer's position is left unchanged.
+     */
+    public static void doubleDigest(ByteBuffer input, byte[] out, int outOffset) {
+        DigestState state = startDigest(out, outOffset);
+        state.digest.update(input.duplicate());
+        finishDoubleDigest(state, out, outOffset);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
+        byte[] out = new byte[32];
+        singleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and writes the 32 byte result into out at outOffset.
+     */
+    public static void singleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = startDigest(out, outOffset).digest;
+        digest.update(input, offset, length);
+        try {
+            digest.digest(out, outOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, out was checked to have room.
         }
     }
 
@@ -172,12 +215,31 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        byte[] out = new byte[32];
+        DigestState state = startDigest(out, 0);
+        state.digest.update(input1, offset1, length1);
+        state.digest.update(input2, offset2, length2);
+        finishDoubleDigest(state, out, 0);
+        return out;
+    }
+
+    // Checks out has room for a hash at outOffset before anything is hashed, and returns the state of this thread
+    // with its digest reset, so data left over by a hash that threw part way through can't end up in this one.
+    private static DigestState startDigest(byte[] out, int outOffset) {
+        checkArgument(outOffset >= 0 && out.length - outOffset >= 32, "No room for a hash at offset %s", outOffset);
+        DigestState state = digestState.get();
+        state.digest.reset();
+        return state;
+    }
+
+    // Completes the first round of hashing for the data given to the digest, then hashes the result again into out.
+    private static void finishDoubleDigest(DigestState state, byte[] out, int outOffset) {
+        try {
+            state.digest.digest(state.scratch, 0, 32);
+            state.digest.update(state.scratch, 0, 32);
+            state.digest.digest(out, outOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, out was checked to have room.
         }
     }
 
@@ -266,16 +328,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
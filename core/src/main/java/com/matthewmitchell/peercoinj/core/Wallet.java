@@ -55,9 +55,12 @@ import javax.annotation.Nullable;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -104,7 +107,7 @@ import static com.google.common.base.Preconditions.*;
  * {@link Wallet#autosaveToFile(java.io.File, long, java.util.concurrent.TimeUnit, com.matthewmitchell.peercoinj.wallet.WalletFiles.Listener)}
  * for more information about this.</p>
  */
-public class Wallet extends BaseTaggableObject implements Serializable, BlockChainListener, PeerFilterProvider, KeyBag, TransactionBag {
+public class Wallet extends BaseTaggableObject implements Serializable, BlockChainListener, IncrementalPeerFilterProvider, KeyBag, TransactionBag {
     private static final Logger log = LoggerFactory.getLogger(Wallet.class);
     private static final long serialVersionUID = 2L;
     private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
@@ -165,7 +168,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     protected final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
-    private int lastBlockSeenHeight;
+    // Volatile so the depths of transactions, which are worked out from it, can be read without taking the lock.
+    private volatile int lastBlockSeenHeight;
     private long lastBlockSeenTimeSecs;
 
     private transient CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>> eventListeners;
@@ -174,10 +178,97 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
 
-    // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
-    // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
-    // it sent transactions to the wallet, without this we'd double count.
-    private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Hashes of transactions that receive() found in the best chain block that notifyNewBestBlock will be called
+    // with next. Their confidence was already set up via Transaction.setBlockAppearance(), and once the wallet has
+    // moved to that block they start being tracked for depth notifications.
+    private transient HashSet<Sha256Hash> appearedInNextNewBlock;
+
+    /**
+     * The default depths at which transactions in the best chain have their confidence listeners told that they have
+     * been buried by more blocks. See {@link #setDepthNotificationThresholds(int...)}.
+     */
+    public static final ImmutableSortedSet<Integer> DEFAULT_DEPTH_NOTIFICATION_THRESHOLDS =
+            ImmutableSortedSet.of(1, 2, 3, 4, 5, 6);
+    private volatile ImmutableSortedSet<Integer> depthNotificationThresholds = DEFAULT_DEPTH_NOTIFICATION_THRESHOLDS;
+    // Transactions in the best chain, keyed by the chain height at which they next reach a depth that their
+    // listeners should hear about. This means a new block only costs as much as the transactions it changes.
+    private transient TreeMap<Integer, Set<Transaction>> depthNotifications;
+    private transient HashMap<Transaction, Integer> depthNotificationHeights;
+    // Lets the confidence objects of our transactions work out their depth from the height of the last block seen.
+    private transient TransactionConfidence.DepthTracker depthTracker;
+
+    // An index of the outputs of the transactions in the unspent and pending pools, split into the ones we own and the
+    // rest, so that spend candidates and balances can be gathered without running isMine() over the whole wallet.
+    // Whether an owned output is still available for spending is checked when gathering, as that's a field read.
+    private static class IndexedOutputs {
+        final List<TransactionOutput> mine = new ArrayList<TransactionOutput>(2);
+        final List<TransactionOutput> others = new ArrayList<TransactionOutput>(2);
+    }
+    private transient HashMap<Sha256Hash, IndexedOutputs> outputIndex;
+    // Set when keys are added, as they may own outputs we already have. Only the unowned outputs in the index need
+    // checking again.
+    private transient volatile boolean outputIndexHasNewKeys;
+
+    // Balances are cached until something that could change them happens, which bumps the generation. A cached
+    // balance is only used if it was worked out in the current generation, so it can be read without the lock.
+    private static class CachedBalance {
+        final long generation;
+        final Coin value;
+
+        CachedBalance(long generation, Coin value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+    private static final int CACHED_ESTIMATED = 0, CACHED_AVAILABLE = 1, CACHED_WATCHED = 2;
+    private transient AtomicLong balanceGeneration;
+    private transient AtomicReferenceArray<CachedBalance> cachedBalances;
+
+    // The Bloom filter elements for the outputs of transactions that aren't dead, by transaction: the serialized
+    // outpoints of the outputs we watch or that pay to our keys in a form whose spends the filter can't match by key
+    // alone. They are worked out as transactions arrive, so filters can be counted and made without going over every
+    // transaction.
+    private transient HashMap<Sha256Hash, List<byte[]>> filterOutPoints;
+    private transient int numFilterOutPoints;
+    // Pay to pubkey outputs of those transactions that aren't ours, by public key, as they become filterable when the
+    // key is added.
+    private transient HashMap<ByteString, List<TransactionOutput>> unfilteredPubKeyOutputs;
+    // Keys added since the filter outpoints were brought up to date. The key chain listener fills this without our
+    // lock, so it's looked at the next time a filter is asked for.
+    private transient ConcurrentLinkedQueue<ECKey> filterNewKeys;
+    // Set when the outpoints must be worked out again from scratch, eg after scripts are watched or keys removed.
+    private transient volatile boolean filterOutPointsStale;
+    private transient FilterElementJournal filterJournal;
+
+    // Every element added to this wallet's filters in the order they were added, so that a filter made earlier can be
+    // brought up to date by inserting just the new ones. Positions count from the wallet's creation. Once the journal
+    // holds MAX_ELEMENTS it is cut, and anyone further behind than that has to make a whole new filter instead.
+    private static class FilterElementJournal {
+        private static final int MAX_ELEMENTS = 5000;
+        private final ArrayList<byte[]> elements = new ArrayList<byte[]>();
+        private long start;
+
+        synchronized void add(byte[] element) {
+            if (elements.size() == MAX_ELEMENTS) {
+                start += elements.size();
+                elements.clear();
+            }
+            elements.add(element);
+        }
+
+        synchronized long getPosition() {
+            return start + elements.size();
+        }
+
+        synchronized long insertSince(BloomFilter filter, long position) {
+            if (position < start)
+                return -1;
+            for (int i = (int) (position - start); i < elements.size(); i++)
+                filter.insert(elements.get(i));
+            return start + elements.size();
+        }
+    }
+
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -266,7 +357,51 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     private void createTransientState() {
-        ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        appearedInNextNewBlock = new HashSet<Sha256Hash>();
+        outputIndex = new HashMap<Sha256Hash, IndexedOutputs>();
+        balanceGeneration = new AtomicLong();
+        cachedBalances = new AtomicReferenceArray<CachedBalance>(3);
+        filterOutPoints = new HashMap<Sha256Hash, List<byte[]>>();
+        unfilteredPubKeyOutputs = new HashMap<ByteString, List<TransactionOutput>>();
+        filterNewKeys = new ConcurrentLinkedQueue<ECKey>();
+        filterJournal = new FilterElementJournal();
+        keychain.addEventListener(new KeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                outputIndexHasNewKeys = true;
+                invalidateBalances();
+                // Keys of married chains go into the filter as redeem scripts, which aren't journaled, and can own
+                // P2SH outputs, so there the filter outpoints are worked out again.
+                if (keychain.isMarried()) {
+                    filterOutPointsStale = true;
+                    return;
+                }
+                for (ECKey key : keys) {
+                    filterJournal.add(key.getPubKey());
+                    filterJournal.add(key.getPubKeyHash());
+                }
+                filterNewKeys.addAll(keys);
+            }
+        }, Threading.SAME_THREAD);
+        depthNotifications = new TreeMap<Integer, Set<Transaction>>();
+        depthNotificationHeights = new HashMap<Transaction, Integer>();
+        depthTracker = new TransactionConfidence.DepthTracker() {
+            @Override
+            public int getBestChainHeight() {
+                return lastBlockSeenHeight;
+            }
+
+            @Override
+            public void onDepthAwaited(Transaction tx, int depth) {
+                lock.lock();
+                try {
+                    if (transactions.get(tx.getHash()) == tx)
+                        scheduleDepthNotification(tx);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -279,6 +414,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        // The coin selector may now be willing to spend the outputs of the transaction.
+                        invalidateBalances();
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
@@ -521,12 +658,24 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * @return Whether the key was removed or not.
      */
     public boolean removeKey(ECKey key) {
+        boolean removed;
         keychainLock.lock();
         try {
-            return keychain.removeImportedKey(key);
+            removed = keychain.removeImportedKey(key);
         } finally {
             keychainLock.unlock();
         }
+        if (removed) {
+            // Outputs to the key are no longer ours, so work out the spend candidates from scratch.
+            filterOutPointsStale = true;
+            lock.lock();
+            try {
+                rebuildOutputIndex();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return removed;
     }
 
     /**
@@ -779,11 +928,16 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             for (final Script script : scripts) {
                 if (watchedScripts.contains(script)) continue;
                 watchedScripts.add(script);
+                for (byte[] element : getBloomFilterElements(script))
+                    filterJournal.add(element);
                 added++;
             }
         } finally {
             keychainLock.unlock();
         }
+        if (added > 0)
+            filterOutPointsStale = true;
+        invalidateBalances();
         queueOnScriptsAdded(scripts);
         saveNow();
         return added;
@@ -1359,6 +1513,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
             }
 
+            if (!isOutputIndexConsistent()) {
+                success = false;
+                log.error("Output index does not match the unspent and pending pools");
+            }
+
+            if (!isBalanceCacheConsistent())
+                success = false;
+
             if (!success) {
                 try {
                     log.error(toString());
@@ -1372,6 +1534,24 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    // Checks the output index holds exactly the owned outputs of the unspent and pending pools.
+    private boolean isOutputIndexConsistent() {
+        if (outputIndexHasNewKeys)
+            checkOutputIndexForNewKeys();
+        if (outputIndex.size() != unspent.size() + pending.size())
+            return false;
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            IndexedOutputs outputs = outputIndex.get(tx.getHash());
+            if (outputs == null)
+                return false;
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.isMine(this) != outputs.mine.contains(output))
+                    return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns a wallet deserialized from the given input stream.
      */
@@ -1386,6 +1566,18 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
+        lock.lock();
+        try {
+            for (Transaction tx : transactions.values()) {
+                tx.getConfidence().setDepthTracker(depthTracker);
+                scheduleDepthNotification(tx);
+            }
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+                indexOutputs(tx);
+            filterOutPointsStale = true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     //endregion
@@ -1675,8 +1867,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
 
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
             log.info("  <-pending");
+            unindexOutputs(tx);
+        }
 
         if (bestChain) {
             if (wasPending) {
@@ -1686,6 +1880,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) spentBy.disconnect();
                 }
+                invalidateBalances();
             }
             processTxFromBestChain(tx, wasPending);
         } else {
@@ -1717,7 +1912,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
-                ignoreNextNewBlock.add(txHash);
+                appearedInNextNewBlock.add(txHash);
             }
         }
 
@@ -1791,18 +1986,27 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().incrementDepthInBlocks();
+            // Coinbases may have matured.
+            invalidateBalances();
+            // The depths of BUILDING transactions are worked out from the last seen height, so they are already up
+            // to date. Transactions that appeared in this block were told about it in receive(), and from now on we
+            // only have to look at the ones that just reached a depth their listeners want to hear about.
+            for (Sha256Hash hash : appearedInNextNewBlock) {
+                Transaction tx = transactions.get(hash);
+                if (tx != null)
+                    scheduleDepthNotification(tx);
+            }
+            appearedInNextNewBlock.clear();
+            SortedMap<Integer, Set<Transaction>> due = depthNotifications.headMap(block.getHeight(), true);
+            List<Transaction> deeper = new ArrayList<Transaction>();
+            for (Set<Transaction> txns : due.values())
+                deeper.addAll(txns);
+            due.clear();
+            for (Transaction tx : deeper) {
+                depthNotificationHeights.remove(tx);
+                if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                    scheduleDepthNotification(tx);
                 }
             }
 
@@ -1954,10 +2158,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 // processTxFromBestChain method.
             }
         }
+        invalidateBalances();
     }
 
     // Updates the wallet when a double spend occurs. overridingTx can be null for the case of coinbases
     private void killTx(@Nullable Transaction overridingTx, List<Transaction> killedTx) {
+        invalidateBalances();
         LinkedList<Transaction> work = new LinkedList<Transaction>(killedTx);
         while (!work.isEmpty()) {
             final Transaction tx = work.poll();
@@ -1968,6 +2174,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             pending.remove(tx.getHash());
             unspent.remove(tx.getHash());
             spent.remove(tx.getHash());
+            unindexOutputs(tx);
             addWalletTransaction(Pool.DEAD, tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getOutpoint().fromTx;
@@ -2000,6 +2207,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
             }
         }
+        invalidateBalances();
     }
 
     /**
@@ -2014,6 +2222,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 if (log.isInfoEnabled()) {
                     log.info("  {} {} <-unspent ->spent", tx.getHashAsString(), context);
                 }
+                unindexOutputs(tx);
                 spent.put(tx.getHash(), tx);
             }
         } else {
@@ -2022,6 +2231,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     log.info("  {} {} <-spent ->unspent", tx.getHashAsString(), context);
                 }
                 unspent.put(tx.getHash(), tx);
+                indexOutputs(tx);
             }
         }
     }
@@ -2279,12 +2489,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
+            indexOutputs(tx);
             break;
         case SPENT:
             checkState(spent.put(tx.getHash(), tx) == null);
             break;
         case PENDING:
             checkState(pending.put(tx.getHash(), tx) == null);
+            indexOutputs(tx);
             break;
         case DEAD:
             checkState(dead.put(tx.getHash(), tx) == null);
@@ -2292,9 +2504,79 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         default:
             throw new RuntimeException("Unknown wallet transaction type " + pool);
         }
+        if (pool == Pool.DEAD)
+            untrackFilterOutPoints(tx);
+        else if (!filterOutPoints.containsKey(tx.getHash()))
+            trackFilterOutPoints(tx, null);
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        tx.getConfidence().setDepthTracker(depthTracker);
+        scheduleDepthNotification(tx);
+    }
+
+    /**
+     * Works out the chain height at which the given transaction next reaches a depth that its listeners should hear
+     * about, and files it under that height for notifyNewBestBlock. Transactions not in the best chain are dropped.
+     */
+    private void scheduleDepthNotification(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        Integer oldHeight = depthNotificationHeights.remove(tx);
+        if (oldHeight != null) {
+            Set<Transaction> txns = depthNotifications.get(oldHeight);
+            txns.remove(tx);
+            if (txns.isEmpty())
+                depthNotifications.remove(oldHeight);
+        }
+        TransactionConfidence confidence = tx.getConfidence();
+        // Without the height it appeared at, there is no height at which the transaction reaches a depth.
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING || confidence.getAppearedAtChainHeight() < 0)
+            return;
+        int depth = confidence.getDepthInBlocks();
+        Integer next = depthNotificationThresholds.higher(depth);
+        Integer awaited = confidence.getNextAwaitedDepth(depth);
+        if (awaited != null && (next == null || awaited < next))
+            next = awaited;
+        // Tell listeners when a coinbase becomes spendable, as the balance changes then.
+        int coinbaseDepth = params.getSpendableCoinbaseDepth();
+        if (tx.isCoinBase() && depth < coinbaseDepth && (next == null || coinbaseDepth < next))
+            next = coinbaseDepth;
+        if (next == null)
+            return;
+        int height = confidence.getAppearedAtChainHeight() + next - 1;
+        Set<Transaction> txns = depthNotifications.get(height);
+        if (txns == null) {
+            txns = new HashSet<Transaction>();
+            depthNotifications.put(height, txns);
+        }
+        txns.add(tx);
+        depthNotificationHeights.put(tx, height);
+    }
+
+    /**
+     * <p>Sets the depths at which transactions in the best chain have their confidence listeners invoked with
+     * {@link TransactionConfidence.Listener.ChangeReason#DEPTH} as new blocks bury them. Only the transactions that
+     * reach one of these depths are touched when a block arrives, so a small set keeps large wallets cheap to run.
+     * Listeners are told about transactions that appear in a block whatever this is set to.</p>
+     *
+     * <p>Transactions are also notified when they reach the depth that a future from
+     * {@link TransactionConfidence#getDepthFuture(int)} is waiting for, and coinbases when they become spendable.
+     * The default is {@link #DEFAULT_DEPTH_NOTIFICATION_THRESHOLDS}.</p>
+     */
+    public void setDepthNotificationThresholds(int... depths) {
+        lock.lock();
+        try {
+            depthNotificationThresholds = ImmutableSortedSet.copyOf(Ints.asList(depths));
+            for (Transaction tx : transactions.values())
+                scheduleDepthNotification(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the depths set by {@link #setDepthNotificationThresholds(int...)}. */
+    public SortedSet<Integer> getDepthNotificationThresholds() {
+        return depthNotificationThresholds;
     }
 
     /**
@@ -2386,6 +2668,13 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                outputIndex.clear();
+                invalidateBalances();
+                filterOutPoints.clear();
+                numFilterOutPoints = 0;
+                unfilteredPubKeyOutputs.clear();
+                depthNotifications.clear();
+                depthNotificationHeights.clear();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -2439,6 +2728,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                         tx.disconnectInputs();
                         i.remove();
                         transactions.remove(tx.getHash());
+                        unindexOutputs(tx);
+                        untrackFilterOutPoints(tx);
+                        invalidateBalances();
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -2803,23 +3095,78 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        if (balanceType == BalanceType.ESTMINUSFEE)
+            return getBalance(BalanceType.ESTIMATED).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
+        int slot;
+        if (balanceType == BalanceType.AVAILABLE)
+            slot = CACHED_AVAILABLE;
+        else if (balanceType == BalanceType.ESTIMATED)
+            slot = CACHED_ESTIMATED;
+        else
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        return getCachedOrCalculateBalance(slot);
+    }
+
+    private Coin getCachedOrCalculateBalance(int slot) {
+        // Balances are usually read far more often than they change, so avoid the lock if we can.
+        Coin cached = getCachedBalance(slot);
+        if (cached != null)
+            return cached;
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE) {
+            long generation = balanceGeneration.get();
+            Coin value = calculateBalance(slot);
+            cachedBalances.set(slot, new CachedBalance(generation, value));
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Coin calculateBalance(int slot) {
+        checkState(lock.isHeldByCurrentThread());
+        switch (slot) {
+            case CACHED_AVAILABLE:
                 return getBalance(coinSelector);
-            } else if (balanceType == BalanceType.ESTIMATED) {
+            case CACHED_WATCHED:
+                return getWatchedBalance(coinSelector);
+            default:
                 LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
                 Coin value = Coin.ZERO;
                 for (TransactionOutput out : all) value = value.add(out.getValue());
                 return value;
-            }else if (balanceType == BalanceType.ESTMINUSFEE) {
-            	return getBalance(BalanceType.ESTIMATED).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    @Nullable
+    private Coin getCachedBalance(int slot) {
+        CachedBalance cached = cachedBalances.get(slot);
+        if (cached == null || cached.generation != balanceGeneration.get())
+            return null;
+        return cached.value;
+    }
+
+    /**
+     * Throws away the cached balances. This must be called whenever something that a balance depends on changes,
+     * such as which outputs we own or have spent, the confidence of our transactions, or the coin selector.
+     */
+    private void invalidateBalances() {
+        balanceGeneration.incrementAndGet();
+    }
+
+    // Checks that the balances we have cached are the ones we'd work out now.
+    private boolean isBalanceCacheConsistent() {
+        checkState(lock.isHeldByCurrentThread());
+        boolean success = true;
+        for (int slot = 0; slot < cachedBalances.length(); slot++) {
+            Coin cached = getCachedBalance(slot);
+            if (cached != null && !cached.equals(calculateBalance(slot))) {
+                log.error("Cached balance {} is {}, should be {}", slot, cached.toFriendlyString(),
+                        calculateBalance(slot).toFriendlyString());
+                success = false;
             }
-        } finally {
-            lock.unlock();
         }
+        return success;
     }
 
     /**
@@ -2840,7 +3187,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     /** Returns the available balance, including any unspent balance at watched addresses */
     public Coin getWatchedBalance() {
-        return getWatchedBalance(coinSelector);
+        return getCachedOrCalculateBalance(CACHED_WATCHED);
     }
 
     /**
@@ -3539,14 +3886,16 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
+            if (outputIndexHasNewKeys)
+                checkOutputIndexForNewKeys();
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (IndexedOutputs outputs : outputIndex.values()) {
+                if (outputs.mine.isEmpty()) continue;
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
+                if (excludeImmatureCoinbases && !outputs.mine.get(0).getParentTransaction().isMature()) continue;
+                for (TransactionOutput output : outputs.mine) {
+                    if (output.isAvailableForSpending())
+                        candidates.add(output);
                 }
             }
             return candidates;
@@ -3555,6 +3904,50 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /** Adds the outputs of a transaction that was put into the unspent or pending pool to the output index. */
+    private void indexOutputs(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        IndexedOutputs outputs = new IndexedOutputs();
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isMine(this))
+                outputs.mine.add(output);
+            else
+                outputs.others.add(output);
+        }
+        outputIndex.put(tx.getHash(), outputs);
+        invalidateBalances();
+    }
+
+    /** Removes a transaction that left the unspent and pending pools from the output index. */
+    private void unindexOutputs(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        outputIndex.remove(tx.getHash());
+        invalidateBalances();
+    }
+
+    private void rebuildOutputIndex() {
+        checkState(lock.isHeldByCurrentThread());
+        outputIndexHasNewKeys = false;
+        outputIndex.clear();
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+            indexOutputs(tx);
+    }
+
+    // Keys were added since the index was last used, so check whether any of the outputs we didn't own are ours now.
+    private void checkOutputIndexForNewKeys() {
+        checkState(lock.isHeldByCurrentThread());
+        outputIndexHasNewKeys = false;
+        for (IndexedOutputs outputs : outputIndex.values()) {
+            for (Iterator<TransactionOutput> it = outputs.others.iterator(); it.hasNext(); ) {
+                TransactionOutput output = it.next();
+                if (output.isMine(this)) {
+                    it.remove();
+                    outputs.mine.add(output);
+                }
+            }
+        }
+    }
+
     /** Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet. */
     public CoinSelector getCoinSelector() {
         lock.lock();
@@ -3575,6 +3968,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -3693,6 +4087,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        unindexOutputs(tx);
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -3716,18 +4111,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // doesn't matter - the miners deleted T1 from their mempool, will resurrect T2 and put that into the
             // mempool and so T1 is still seen as a losing double spend.
 
-            // The old blocks have contributed to the depth for all the transactions in the
+            // The effective last seen block is now the split point so set the lastSeenBlockHash. As depths are worked
+            // out from the last seen height, this also takes the old blocks off the depth of the transactions in the
             // wallet that are in blocks up to and including the chain split block.
-            // The total depth is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            log.info("depthToSubtract = " + depthToSubtract);
-            // Remove depthToSubtract from all transactions in the wallet except for pending.
-            subtractDepth(depthToSubtract, spent.values());
-            subtractDepth(depthToSubtract, unspent.values());
-            subtractDepth(depthToSubtract, dead.values());
-
-            // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHeight(splitPoint.getHeight());
+            notifyDepthDecreased(spent.values());
+            notifyDepthDecreased(unspent.values());
+            notifyDepthDecreased(dead.values());
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
@@ -3745,6 +4136,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
                 notifyNewBestBlock(block);
             }
+            invalidateBalances();
             checkState(isConsistent());
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
@@ -3762,13 +4154,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     /**
-     * Subtract the supplied depth from the given transactions.
+     * Tells the listeners of the given transactions that a re-org made them shallower, and works out when they next
+     * need to hear about their depth.
      */
-    private void subtractDepth(int depthToSubtract, Collection<Transaction> transactions) {
+    private void notifyDepthDecreased(Collection<Transaction> transactions) {
         for (Transaction tx : transactions) {
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                scheduleDepthNotification(tx);
             }
         }
     }
@@ -3785,20 +4178,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     @Override
     public int getBloomFilterElementCount() {
-        int size = 0;
-        for (Transaction tx : getTransactions(false)) {
-            for (TransactionOutput out : tx.getOutputs()) {
-                try {
-                    if (isTxOutputBloomFilterable(out))
-                        size++;
-                } catch (ScriptException e) {
-                    // If it is ours, we parsed the script correctly, so this shouldn't happen.
-                    throw new RuntimeException(e);
-                }
-            }
-        }
+        lock.lock();
         keychainLock.lock();
         try {
+            updateFilterOutPoints();
+            int size = numFilterOutPoints;
             size += keychain.getBloomFilterElementCount();
             // Some scripts may have more than one bloom element.  That should normally be okay, because under-counting
             // just increases false-positive rate.
@@ -3806,6 +4190,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             return size;
         } finally {
             keychainLock.unlock();
+            lock.unlock();
         }
     }
 
@@ -3852,30 +4237,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         keychainLock.lock();
         try {
+            updateFilterOutPoints();
             BloomFilter filter = keychain.getBloomFilter(size, falsePositiveRate, nTweak);
-
             for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
+                for (byte[] element : getBloomFilterElements(script))
+                    filter.insert(element);
             }
-            for (Transaction tx : getTransactions(false)) {
-                for (int i = 0; i < tx.getOutputs().size(); i++) {
-                    TransactionOutput out = tx.getOutputs().get(i);
-                    try {
-                        if (isTxOutputBloomFilterable(out)) {
-                            TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                            filter.insert(outPoint.peercoinSerialize());
-                        }
-                    } catch (ScriptException e) {
-                        throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
-                    }
-                }
+            for (List<byte[]> outPoints : filterOutPoints.values()) {
+                for (byte[] outPoint : outPoints)
+                    filter.insert(outPoint);
             }
             return filter;
         } finally {
@@ -3884,12 +4254,142 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public long getBloomFilterPosition() {
+        return filterJournal.getPosition();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The wallet journals the keys, watched scripts and outpoints it adds, apart from the redeem scripts of married
+     * key chains, so a married wallet always asks for a whole new filter.</p>
+     */
+    @Override
+    public long insertBloomFilterElements(BloomFilter filter, long position) {
+        lock.lock();
+        keychainLock.lock();
+        try {
+            if (keychain.isMarried())
+                return -1;
+            updateFilterOutPoints();
+            return filterJournal.insertSince(filter, position);
+        } finally {
+            keychainLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    // The data in a watched script that goes into the filter.
+    private static List<byte[]> getBloomFilterElements(Script script) {
+        List<byte[]> elements = new ArrayList<byte[]>(1);
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                elements.add(chunk.data);
+        }
+        return elements;
+    }
+
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         boolean isScriptTypeSupported = out.getScriptPubKey().isSentToRawPubKey() || out.getScriptPubKey().isPayToScriptHash();
         return (out.isMine(this) && isScriptTypeSupported) ||
                 out.isWatched(this);
     }
 
+    /**
+     * Works out the filter outpoints of a transaction that went into a pool other than the dead one. Elements that
+     * aren't in the given list of ones the transaction had before are journaled.
+     */
+    private void trackFilterOutPoints(Transaction tx, @Nullable List<byte[]> known) {
+        checkState(lock.isHeldByCurrentThread());
+        List<byte[]> outPoints = new ArrayList<byte[]>(1);
+        filterOutPoints.put(tx.getHash(), outPoints);
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                if (isTxOutputBloomFilterable(output)) {
+                    byte[] outPoint = new TransactionOutPoint(params, output.getIndex(), tx).peercoinSerialize();
+                    outPoints.add(outPoint);
+                    numFilterOutPoints++;
+                    if (known == null || !containsElement(known, outPoint))
+                        filterJournal.add(outPoint);
+                } else if (output.getScriptPubKey().isSentToRawPubKey()) {
+                    ByteString pubKey = ByteString.copyFrom(output.getScriptPubKey().getPubKey());
+                    List<TransactionOutput> outputs = unfilteredPubKeyOutputs.get(pubKey);
+                    if (outputs == null) {
+                        outputs = new ArrayList<TransactionOutput>(1);
+                        unfilteredPubKeyOutputs.put(pubKey, outputs);
+                    }
+                    outputs.add(output);
+                }
+            } catch (ScriptException e) {
+                // We couldn't parse the script, so it can't be ours or watched and there is nothing to filter on.
+            }
+        }
+    }
+
+    /** Forgets the filter outpoints of a transaction that died or was removed from the wallet. */
+    private void untrackFilterOutPoints(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        List<byte[]> outPoints = filterOutPoints.remove(tx.getHash());
+        if (outPoints == null)
+            return;
+        numFilterOutPoints -= outPoints.size();
+        for (TransactionOutput output : tx.getOutputs()) {
+            try {
+                if (!output.getScriptPubKey().isSentToRawPubKey())
+                    continue;
+                ByteString pubKey = ByteString.copyFrom(output.getScriptPubKey().getPubKey());
+                List<TransactionOutput> outputs = unfilteredPubKeyOutputs.get(pubKey);
+                if (outputs != null && outputs.remove(output) && outputs.isEmpty())
+                    unfilteredPubKeyOutputs.remove(pubKey);
+            } catch (ScriptException e) {
+                // Never tracked.
+            }
+        }
+    }
+
+    // Brings the filter outpoints up to date with the keys and scripts added since they were last looked at. New keys
+    // only need the pay to pubkey outputs to them looking up, anything else means going over the transactions again.
+    private void updateFilterOutPoints() {
+        checkState(lock.isHeldByCurrentThread());
+        if (filterOutPointsStale) {
+            filterOutPointsStale = false;
+            filterNewKeys.clear();
+            HashMap<Sha256Hash, List<byte[]>> known = filterOutPoints;
+            filterOutPoints = new HashMap<Sha256Hash, List<byte[]>>();
+            numFilterOutPoints = 0;
+            unfilteredPubKeyOutputs.clear();
+            for (Transaction tx : Iterables.concat(unspent.values(), spent.values(), pending.values()))
+                trackFilterOutPoints(tx, known.get(tx.getHash()));
+            return;
+        }
+        ECKey key;
+        while ((key = filterNewKeys.poll()) != null) {
+            List<TransactionOutput> outputs = unfilteredPubKeyOutputs.remove(ByteString.copyFrom(key.getPubKey()));
+            if (outputs == null)
+                continue;
+            for (TransactionOutput output : outputs) {
+                byte[] outPoint = new TransactionOutPoint(params, output.getIndex(), output.getParentTransaction())
+                        .peercoinSerialize();
+                filterOutPoints.get(output.getParentTransaction().getHash()).add(outPoint);
+                numFilterOutPoints++;
+                filterJournal.add(outPoint);
+            }
+        }
+    }
+
+    private static boolean containsElement(List<byte[]> elements, byte[] element) {
+        for (byte[] e : elements) {
+            if (Arrays.equals(e, element))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Used by {@link Peer} to decide whether or not to discard this block and any blocks building upon it, in case
      * the Bloom filter used to request them may be exhausted, that is, not have sufficient keys in the deterministic
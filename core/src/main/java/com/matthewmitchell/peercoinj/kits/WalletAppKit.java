@@ -441,6 +441,7 @@ public class WalletAppKit extends AbstractIdleService {
             vPeerGroup.awaitTerminated();
             vWallet.saveToFile(vWalletFile);
             vStore.close();
+            validHashStore.close();
 
             vPeerGroup = null;
             vWallet = null;
@@ -133,9 +133,15 @@ public class BlockingClient implements MessageWriteTarget {
 
     @Override
     public synchronized void writeBytes(byte[] message) throws IOException {
+        writeBytes(message, new byte[0]);
+    }
+
+    @Override
+    public synchronized void writeBytes(byte[] header, byte[] payload) throws IOException {
         try {
             OutputStream stream = socket.getOutputStream();
-            stream.write(message);
+            stream.write(header);
+            stream.write(payload);
             stream.flush();
         } catch (IOException e) {
             log.error("Error writing message to connection, closing connection", e);
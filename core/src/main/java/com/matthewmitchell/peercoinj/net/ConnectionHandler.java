@@ -18,6 +18,7 @@ package com.matthewmitchell.peercoinj.net;
 
 import com.matthewmitchell.peercoinj.core.Message;
 import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import org.slf4j.LoggerFactory;
 
@@ -28,7 +29,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
@@ -49,6 +49,12 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
+    // Outbound bytes are copied into direct buffers from this pool, which is shared by all connections.
+    @VisibleForTesting static final DirectBufferPool writeBufferPool = new DirectBufferPool(16 * 1024, 256);
+    // The most bytes of pooled buffers a connection may hold. Anything queued beyond this goes into heap buffers
+    // instead, so that a peer which stops reading can't take the whole pool.
+    @VisibleForTesting static final int MAX_POOLED_BYTES_PER_CONNECTION = 256 * 1024;
+
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
@@ -60,6 +66,7 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private int pooledBuffersHeld = 0;
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -112,42 +119,102 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
-                }
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer with one gathering
+            // write, then hand back the buffers that were written completely.
+            if (!bytesToWrite.isEmpty()) {
+                bytesToWriteRemaining -= channel.write(bytesToWrite.toArray(new ByteBuffer[bytesToWrite.size()]));
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                    releaseWriteBuffer(bytesToWrite.poll());
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                setWriteOps();
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
         }
     }
 
+    @GuardedBy("lock")
+    private void releaseWriteBuffer(ByteBuffer buff) {
+        if (buff.isDirect()) {
+            pooledBuffersHeld--;
+            writeBufferPool.give(buff);
+        }
+    }
+
+    // Copies bytes onto the end of the outbound queue, filling up the last buffer before taking another.
+    @GuardedBy("lock")
+    private void queueBytes(byte[] bytes) {
+        ByteBuffer tail = bytesToWrite.peekLast();
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (tail == null || tail.limit() == tail.capacity()) {
+                if ((pooledBuffersHeld + 1) * writeBufferPool.getBufferSize() <= MAX_POOLED_BYTES_PER_CONNECTION) {
+                    tail = writeBufferPool.take();
+                    pooledBuffersHeld++;
+                } else {
+                    tail = ByteBuffer.allocate(bytes.length - offset);
+                }
+                tail.limit(0);
+                bytesToWrite.offer(tail);
+            }
+            // Queued buffers are ready for reading, between position and limit, and may be partly written already,
+            // so write after the limit and then move it along.
+            int count = Math.min(tail.capacity() - tail.limit(), bytes.length - offset);
+            int position = tail.position();
+            int limit = tail.limit();
+            tail.limit(limit + count);
+            tail.position(limit);
+            tail.put(bytes, offset, count);
+            tail.position(position);
+            offset += count;
+        }
+    }
+
+    /** Returns the number of bytes queued that haven't been written to the socket yet. */
+    @VisibleForTesting
+    long getBytesQueued() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of buffers from the pool that the outbound queue holds. */
+    @VisibleForTesting
+    int getPooledBuffersHeld() {
+        lock.lock();
+        try {
+            return pooledBuffersHeld;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        writeBytes(message, new byte[0]);
+    }
+
+    @Override
+    public void writeBytes(byte[] header, byte[] payload) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            // thus we have to buffer outbound messages sometimes. To do this, we copy them into a queue of pooled
+            // ByteBuffers. We then let tryWriteBytes() either send the message or register our SelectionKey to wakeup
+            // when we have free outbound buffer space available.
+            int length = header.length + payload.length;
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            queueBytes(header);
+            queueBytes(payload);
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -180,6 +247,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing else will be written, so give the buffers back for other connections to use.
+            for (ByteBuffer buff : bytesToWrite)
+                releaseWriteBuffer(buff);
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
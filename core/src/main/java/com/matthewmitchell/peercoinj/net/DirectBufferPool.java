@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers shared by all connections, used to hold outbound bytes until the network
+ * can take them. Direct buffers are expensive to allocate and are written to sockets without being copied again,
+ * so reusing them keeps sending messages to many peers from churning the heap. At most a fixed number of free
+ * buffers are kept; any more are left for the garbage collector.
+ */
+class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxFreeBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger freeBufferCount = new AtomicInteger();
+
+    DirectBufferPool(int bufferSize, int maxFreeBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxFreeBuffers = maxFreeBuffers;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns a cleared buffer, allocating a new one if none are free. */
+    ByteBuffer take() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        freeBufferCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Gives a buffer obtained from {@link #take()} back to the pool. It must not be used afterwards. */
+    void give(ByteBuffer buffer) {
+        if (freeBufferCount.incrementAndGet() <= maxFreeBuffers)
+            freeBuffers.offer(buffer);
+        else
+            freeBufferCount.decrementAndGet();
+    }
+}
@@ -1,9 +1,11 @@
 package com.matthewmitchell.peercoinj.net;
 
 import com.matthewmitchell.peercoinj.core.BloomFilter;
+import com.matthewmitchell.peercoinj.core.IncrementalPeerFilterProvider;
 import com.matthewmitchell.peercoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 
+import javax.annotation.Nullable;
 import java.util.LinkedList;
 import java.util.concurrent.locks.Lock;
 
@@ -18,6 +20,12 @@ import java.util.concurrent.locks.Lock;
  * externally or used from only one thread. It will acquire a lock on each filter in turn before performing the
  * calculation because the providers may be mutated in other threads in parallel, but global consistency is required
  * to produce a merged filter.</p>
+ *
+ * <p>While the providers stay the same and their element count stays under the size of the last filter, a new filter is
+ * made by inserting only the elements they added since the last one, see
+ * {@link IncrementalPeerFilterProvider#insertBloomFilterElements(BloomFilter, long)}. The filter is built again from
+ * scratch when it would otherwise go over its size, at which point it's made larger, and every time if any provider
+ * isn't an {@link IncrementalPeerFilterProvider}.</p>
  */
 public class FilterMerger {
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
@@ -25,6 +33,14 @@ public class FilterMerger {
     private double bloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
+    // What the last filter was made from, so that it can be brought up to date instead of being built again.
+    private ImmutableList<PeerFilterProvider> lastProviders;
+    private long[] lastPositions;
+    private BloomFilter.BloomUpdate lastBloomFlags;
+    private double lastFilterFPRate;
+    // How many elements have gone into the last filter. This may count some elements twice, which only means it's
+    // made larger a bit early.
+    private int lastFilterElementCount;
 
     public FilterMerger(double bloomFilterFPRate) {
         this.bloomFilterFPRate = bloomFilterFPRate;
@@ -59,16 +75,31 @@ public class FilterMerger {
             }
 
             if (elements > 0) {
-                // We stair-step our element count so that we avoid creating a filter with different parameters
-                // as much as possible as that results in a loss of privacy.
-                // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
-                // it will likely mean we never need to create a filter with different parameters.
-                lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
                 BloomFilter.BloomUpdate bloomFlags =
                         requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
-                BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak, bloomFlags);
-                for (PeerFilterProvider p : providers)
-                    filter.merge(p.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
+                BloomFilter filter = null;
+                if (elements <= lastBloomFilterElementCount)
+                    filter = updateLastFilter(providers, bloomFlags);
+                if (filter == null) {
+                    // We stair-step our element count so that we avoid creating a filter with different parameters
+                    // as much as possible as that results in a loss of privacy.
+                    // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
+                    // it will likely mean we never need to create a filter with different parameters.
+                    lastBloomFilterElementCount = elements > lastBloomFilterElementCount ? elements + 100 : lastBloomFilterElementCount;
+                    filter = new BloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak, bloomFlags);
+                    long[] positions = new long[providers.size()];
+                    for (int i = 0; i < providers.size(); i++) {
+                        PeerFilterProvider p = providers.get(i);
+                        positions[i] = p instanceof IncrementalPeerFilterProvider ?
+                                ((IncrementalPeerFilterProvider) p).getBloomFilterPosition() : -1;
+                        filter.merge(p.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
+                    }
+                    lastProviders = providers;
+                    lastPositions = positions;
+                    lastBloomFlags = bloomFlags;
+                    lastFilterFPRate = bloomFilterFPRate;
+                    lastFilterElementCount = elements;
+                }
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
@@ -85,6 +116,38 @@ public class FilterMerger {
         }
     }
 
+    /**
+     * Makes a copy of the last filter with the elements the providers added since then inserted into it, or returns
+     * null if a whole new filter has to be made.
+     */
+    @Nullable
+    private BloomFilter updateLastFilter(ImmutableList<PeerFilterProvider> providers, BloomFilter.BloomUpdate bloomFlags) {
+        if (lastFilter == null || !providers.equals(lastProviders) || bloomFlags != lastBloomFlags ||
+                bloomFilterFPRate != lastFilterFPRate)
+            return null;
+        // The last filter has been handed out already, so it mustn't change underneath whoever has it.
+        BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak, bloomFlags);
+        filter.merge(lastFilter);
+        long[] positions = new long[providers.size()];
+        int added = 0;
+        for (int i = 0; i < providers.size(); i++) {
+            // Providers that can't say what they added since have a position of -1.
+            if (lastPositions[i] < 0)
+                return null;
+            IncrementalPeerFilterProvider provider = (IncrementalPeerFilterProvider) providers.get(i);
+            positions[i] = provider.insertBloomFilterElements(filter, lastPositions[i]);
+            if (positions[i] < 0)
+                return null;
+            added += positions[i] - lastPositions[i];
+        }
+        // Past its size the filter would match more than the requested false positive rate, so make a bigger one.
+        if (lastFilterElementCount + added > lastBloomFilterElementCount)
+            return null;
+        lastPositions = positions;
+        lastFilterElementCount += added;
+        return filter;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.bloomFilterFPRate = bloomFilterFPRate;
     }
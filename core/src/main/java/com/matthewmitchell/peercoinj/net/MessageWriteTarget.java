@@ -26,6 +26,11 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the given message header followed by the given payload to the remote server, without them having to be
+     * joined together first. The arrays are not used after this method returns, so the caller may reuse them.
+     */
+    void writeBytes(byte[] header, byte[] payload) throws IOException;
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -20,6 +20,7 @@ package com.matthewmitchell.peercoinj.script;
 
 import com.matthewmitchell.peercoinj.core.*;
 import com.matthewmitchell.peercoinj.crypto.TransactionSignature;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -1190,11 +1191,8 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    byte[] input = stack.pollLast();
+                    stack.add(Utils.singleDigest(input, 0, input.length));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
@@ -1445,6 +1443,78 @@ public class Script {
         }
     }
 
+    /**
+     * <p>If this script (interpreted as a scriptSig) spends a pay to address or pay to pubkey scriptPubKey and only
+     * pushes data, does everything {@link #correctlySpends(Transaction, long, Script, Set)} would apart from
+     * verifying the signature, and returns the signature check to be made. The spend is valid exactly if that
+     * check passes. This lets the signatures of many inputs be verified together, see
+     * {@link com.matthewmitchell.peercoinj.core.BatchSignatureVerifier}.</p>
+     *
+     * <p>Returns null for other forms of script, which have to be run with correctlySpends. For these templates the
+     * verify flags make no difference.</p>
+     *
+     * @param txContainingThis The transaction in which this input scriptSig resides. It's used to work out the hash
+     *                         that was signed, which means editing it for a while, so it must not be accessed from
+     *                         other threads while this method runs.
+     * @throws ScriptException if the spend is invalid for any reason other than the signature not verifying.
+     */
+    @Nullable
+    public BatchSignatureVerifier.Check getStandardSignatureCheck(Transaction txContainingThis, int scriptSigIndex,
+                                                                  Script scriptPubKey) throws ScriptException {
+        boolean toAddress = scriptPubKey.isSentToAddress();
+        if (!toAddress && !scriptPubKey.isSentToRawPubKey())
+            return null;
+        for (ScriptChunk chunk : chunks) {
+            if (chunk.isOpCode())
+                return null;
+        }
+        if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
+            throw new ScriptException("Script larger than 10,000 bytes");
+        for (ScriptChunk chunk : Iterables.concat(chunks, scriptPubKey.chunks)) {
+            if (!chunk.isOpCode() && chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+                throw new ScriptException("Attempted to push a data string larger than 520 bytes");
+        }
+        // Each push of the scriptSig stays on the stack, and the scriptPubKey briefly adds two more for an address
+        // (OP_DUP then the hash) or one for a raw key, so these count against the stack limit as in executeScript.
+        if (chunks.size() + (toAddress ? 2 : 1) > 1000)
+            throw new ScriptException("Stack size exceeded range");
+
+        // Only the last pushes matter, anything before them is left on the stack below the result.
+        byte[] sigBytes, pubKey;
+        if (toAddress) {
+            if (chunks.size() < 2)
+                throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+            sigBytes = chunks.get(chunks.size() - 2).data;
+            pubKey = chunks.get(chunks.size() - 1).data;
+            if (!Arrays.equals(Utils.sha256hash160(pubKey), scriptPubKey.getPubKeyHash()))
+                throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+        } else {
+            if (chunks.isEmpty())
+                throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+            sigBytes = chunks.get(chunks.size() - 1).data;
+            pubKey = scriptPubKey.chunks.get(0).data;
+        }
+
+        // As in executeCheckSig, with no OP_CODESEPARATOR in these templates.
+        UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
+        try {
+            writeBytes(outStream, sigBytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen
+        }
+        byte[] connectedScript = removeAllInstancesOf(scriptPubKey.getProgram(), outStream.toByteArray());
+        TransactionSignature sig;
+        Sha256Hash hash;
+        try {
+            sig = TransactionSignature.decodeFromPeercoin(sigBytes, false);
+            hash = txContainingThis.hashForSignature(scriptSigIndex, connectedScript, (byte) sig.sighashFlags);
+        } catch (Exception e) {
+            // The signature check would fail, as in executeCheckSig.
+            throw new ScriptException("Script resulted in a non-true stack: " + e);
+        }
+        return new BatchSignatureVerifier.Check(hash, sig, pubKey, txContainingThis, scriptSigIndex);
+    }
+
     // Utility that doesn't copy for internal use
     private byte[] getQuickProgram() {
         if (program != null)
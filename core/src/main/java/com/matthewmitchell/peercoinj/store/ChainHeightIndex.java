@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>The hashes of the blocks of the best chain by height, used by the stores that implement
+ * {@link HeightIndexedBlockStore}. It follows the chain head as the store is given new ones, and is filled in
+ * backwards from the lowest block it holds when older heights are asked for, so opening a store doesn't mean walking
+ * the whole chain. The hashes are kept in a ring of up to maxBlocks entries, so a store that only keeps recent
+ * blocks only indexes recent heights.</p>
+ *
+ * <p>The index calls back into the store to walk the chain, so a store must only use it whilst holding its own lock,
+ * or no lock at all. The one exception is {@link #getIndexedTime(int)}, which reads a copy of the block times that is
+ * kept alongside the hashes and needs no lock at all.</p>
+ */
+class ChainHeightIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final BlockStore store;
+    private final int maxBlocks;
+    // The hash of the block at each height from lowest to highest, at (height % capacity) * 32. Empty when highest is
+    // below lowest.
+    private byte[] hashes;
+    private int lowest = 0, highest = -1;
+    // The time in seconds of the block at each height, at height % capacity and packed as ((height + 1) << 32) | time
+    // so that a reader that doesn't hold the lock can tell an entry for another height, or an empty one, apart.
+    private volatile AtomicLongArray times;
+
+    ChainHeightIndex(BlockStore store, int maxBlocks) {
+        this.store = store;
+        this.maxBlocks = maxBlocks;
+        hashes = new byte[Math.min(maxBlocks, INITIAL_CAPACITY) * 32];
+        times = new AtomicLongArray(hashes.length / 32);
+    }
+
+    /** Records that the given block is the new chain head, re-indexing any heights that a re-org has changed. */
+    synchronized void setChainHead(StoredBlock head) throws BlockStoreException {
+        int headHeight = head.getHeight();
+        if (highest < lowest) {
+            lowest = highest = headHeight;
+            set(head);
+            return;
+        }
+        // Walk back from the new head to where it joins the indexed chain, which is normally its previous block.
+        List<StoredBlock> newBlocks = new ArrayList<StoredBlock>();
+        boolean joined = false;
+        StoredBlock cursor = head;
+        while (cursor != null && newBlocks.size() < maxBlocks) {
+            int height = cursor.getHeight();
+            if (height >= lowest && height <= highest && hashEquals(height, cursor.getHeader().getHash())) {
+                joined = true;
+                break;
+            }
+            newBlocks.add(cursor);
+            if (height <= lowest)
+                break;
+            cursor = cursor.getPrev(store);
+        }
+        if (newBlocks.isEmpty()) {
+            // The head moved back down the indexed chain.
+            highest = headHeight;
+            return;
+        }
+        // If the new chain doesn't join the indexed one, start again from the lowest of its blocks that we walked.
+        int low = joined ? lowest : newBlocks.get(newBlocks.size() - 1).getHeight();
+        lowest = makeRoom(low, headHeight);
+        highest = headHeight;
+        for (StoredBlock block : newBlocks) {
+            if (block.getHeight() >= lowest)
+                set(block);
+        }
+    }
+
+    /** Returns the hash of the block of the best chain at the given height, or null if it isn't known. */
+    @Nullable
+    synchronized Sha256Hash getHash(int height) throws BlockStoreException {
+        if (highest < lowest)
+            setChainHead(store.getChainHead());
+        if (height > highest || height < 0)
+            return null;
+        if (height < lowest)
+            extendDown(height);
+        return height < lowest ? null : hashAt(height);
+    }
+
+    /** Returns the block of the best chain at the given height, or null if it isn't known or the store lost it. */
+    @Nullable
+    synchronized StoredBlock getBlock(int height) throws BlockStoreException {
+        Sha256Hash hash = getHash(height);
+        return hash == null ? null : store.get(hash);
+    }
+
+    /** See {@link HeightIndexedBlockStore#getIndexedByHeight(int)}. */
+    @Nullable
+    synchronized StoredBlock getIndexedBlock(int height) throws BlockStoreException {
+        if (highest < lowest)
+            setChainHead(store.getChainHead());
+        if (height > highest || height < lowest)
+            return null;
+        return store.get(hashAt(height));
+    }
+
+    /** See {@link HeightIndexedBlockStore#getTimeByHeight(int)}. Safe to call without any lock. */
+    long getIndexedTime(int height) {
+        AtomicLongArray times = this.times;
+        if (height < 0)
+            return -1;
+        long entry = times.get(height % times.length());
+        return (entry >>> 32) == height + 1L ? entry & 0xFFFFFFFFL : -1;
+    }
+
+    /** See {@link HeightIndexedBlockStore#getByHeight(int, int)}. */
+    synchronized List<StoredBlock> getBlocks(int fromHeight, int toHeight) throws BlockStoreException {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>(Math.max(0, Math.min(toHeight - fromHeight, 2048)));
+        if (fromHeight >= toHeight || getHash(fromHeight) == null)
+            return blocks;
+        for (int height = fromHeight; height < toHeight && height <= highest; height++) {
+            StoredBlock block = store.get(hashAt(height));
+            if (block == null)
+                break;
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * Indexes the heights below the lowest indexed one down to the given height, as far as there is room. This looks
+     * up each block on the way by hash, so it is only worth doing for callers that need the exact block.
+     */
+    private void extendDown(int height) throws BlockStoreException {
+        StoredBlock cursor = store.get(hashAt(lowest));
+        while (cursor != null && lowest > height) {
+            if (makeRoom(lowest - 1, highest) == lowest)
+                return;
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                return;
+            lowest--;
+            set(cursor);
+        }
+    }
+
+    /**
+     * Grows the ring to hold the heights from low to high, as far as maxBlocks allows. Returns the lowest of those
+     * heights that will fit.
+     */
+    private int makeRoom(int low, int high) {
+        int capacity = hashes.length / 32;
+        int needed = high - low + 1;
+        if (needed > capacity && capacity < maxBlocks) {
+            int newCapacity = (int) Math.min(maxBlocks, Math.max(capacity * 2L, needed));
+            byte[] newHashes = new byte[newCapacity * 32];
+            AtomicLongArray newTimes = new AtomicLongArray(newCapacity);
+            for (int height = Math.max(lowest, low); height <= Math.min(highest, high); height++) {
+                System.arraycopy(hashes, (height % capacity) * 32, newHashes, (height % newCapacity) * 32, 32);
+                newTimes.set(height % newCapacity, times.get(height % capacity));
+            }
+            hashes = newHashes;
+            times = newTimes;
+            capacity = newCapacity;
+        }
+        return Math.max(low, high - capacity + 1);
+    }
+
+    private int offset(int height) {
+        return (height % (hashes.length / 32)) * 32;
+    }
+
+    private void set(StoredBlock block) {
+        int height = block.getHeight();
+        System.arraycopy(block.getHeader().getHash().getBytes(), 0, hashes, offset(height), 32);
+        times.set(height % times.length(), ((height + 1L) << 32) | (block.getHeader().getTimeSeconds() & 0xFFFFFFFFL));
+    }
+
+    private Sha256Hash hashAt(int height) {
+        int offset = offset(height);
+        return new Sha256Hash(Arrays.copyOfRange(hashes, offset, offset + 32));
+    }
+
+    private boolean hashEquals(int height, Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int offset = offset(height);
+        for (int i = 0; i < 32; i++) {
+            if (hashes[offset + i] != bytes[i])
+                return false;
+        }
+        return true;
+    }
+}
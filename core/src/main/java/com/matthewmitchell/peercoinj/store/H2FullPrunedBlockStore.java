@@ -39,11 +39,12 @@ import java.util.List;
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
  */
-public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
+public class H2FullPrunedBlockStore implements FullPrunedBlockStore, HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
 
     private Sha256Hash chainHeadHash;
     private StoredBlock chainHeadBlock;
+    private final ChainHeightIndex heightIndex = new ChainHeightIndex(this, Integer.MAX_VALUE);
     private Sha256Hash verifiedChainHeadHash;
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
@@ -604,6 +605,29 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
+        heightIndex.setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        return heightIndex.getBlock(height);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getIndexedByHeight(int height) throws BlockStoreException {
+        return heightIndex.getIndexedBlock(height);
+    }
+
+    @Override
+    public long getTimeByHeight(int height) {
+        return heightIndex.getIndexedTime(height);
+    }
+
+    @Override
+    public List<StoredBlock> getByHeight(int fromHeight, int toHeight) throws BlockStoreException {
+        return heightIndex.getBlocks(fromHeight, toHeight);
     }
     
     @Override
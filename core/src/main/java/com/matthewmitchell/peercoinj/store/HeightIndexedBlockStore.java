@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * A {@link BlockStore} that can also find the blocks of the best chain by height, without following the previous
+ * block hashes back from the chain head one block at a time. The best chain is the one ending at the block last
+ * passed to {@link #setChainHead(StoredBlock)}.
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block of the best chain at the given height, or null if the height is above the chain head or the
+     * block is older than the store keeps.
+     */
+    @Nullable
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+
+    /**
+     * Returns the block of the best chain at the given height if the store has already indexed its height, or null.
+     * Unlike {@link #getByHeight(int)} this never walks back through the chain to index older heights, so it only
+     * costs a lookup by hash. It suits callers that can do without the block, such as those estimating times.
+     */
+    @Nullable
+    StoredBlock getIndexedByHeight(int height) throws BlockStoreException;
+
+    /**
+     * Returns the time in seconds of the block of the best chain at the given height if the store has already indexed
+     * its height, or -1. This never takes the store's lock, so it doesn't wait behind blocks being connected, and a
+     * time read during a re-org may be from either side of it.
+     */
+    long getTimeByHeight(int height);
+
+    /**
+     * Returns the blocks of the best chain from fromHeight up to but not including toHeight, in order of height. The
+     * list stops short at the first block that isn't available, and is empty if the one at fromHeight isn't.
+     */
+    List<StoredBlock> getByHeight(int fromHeight, int toHeight) throws BlockStoreException;
+}
@@ -0,0 +1,859 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.*;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A full pruned block store that keeps everything in a single append-only log file, with no database behind it.
+ * Changes are appended as frames, one for each batch write or for each change made outside a batch, and each frame
+ * carries a checksum. On opening, the log is replayed to rebuild the indexes in memory. A frame that was cut short
+ * by a crash fails its checksum, and it is cut off the end of the log, so the store comes back as it was after the
+ * last complete commit.</p>
+ *
+ * <p>Headers and undoable blocks are read back from the log as they are needed, through an index of where they are.
+ * The unspent outputs are all kept in memory, outside the Java heap, so spending one never touches the disk. Once
+ * most of the log is spent outputs, superseded records and pruned undoable blocks, it is compacted: the live records
+ * are written to a new file, which is synced to disk and then renamed over the old log. The rename is the checkpoint,
+ * so a crash during compaction leaves the old log as it was.</p>
+ *
+ * <p>Commits are written but not synced, so nothing is lost if the process dies. If the machine loses power, the last
+ * few commits before the most recent compaction or {@link #close()} may be lost, but the store still opens.</p>
+ */
+public class LogFullPrunedBlockStore implements FullPrunedBlockStore, HeightIndexedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogFullPrunedBlockStore.class);
+
+    private static final byte[] MAGIC = "PPCJLOG1".getBytes(Charsets.US_ASCII);
+    // A frame is the length of its records, a CRC32 of them, then the records.
+    private static final int FRAME_HEADER_SIZE = 8;
+    // Frames written by compaction are split at about this size.
+    private static final int COMPACTION_FRAME_SIZE = 1 << 20;
+    // Don't bother compacting less garbage than this.
+    private static final long MIN_COMPACTION_GARBAGE = 64 << 20;
+
+    // Each record starts with its type.
+    // Hash, whether it was undoable, then the compact serialization of the StoredBlock.
+    private static final byte HEADER = 1;
+    private static final int HEADER_RECORD_SIZE = 1 + 32 + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    // Hash, height, length, then the undoable block in the same format as H2FullPrunedBlockStore.
+    private static final byte UNDOABLE_BLOCK = 2;
+    private static final int UNDOABLE_BLOCK_RECORD_HEADER_SIZE = 1 + 32 + 4 + 4;
+    // Hash, index, height, value, script length, then the script.
+    private static final byte OUTPUT_ADDED = 3;
+    private static final int OUTPUT_ADDED_RECORD_HEADER_SIZE = 1 + 32 + 4 + 4 + 8 + 4;
+    // Hash then index.
+    private static final byte OUTPUT_REMOVED = 4;
+    private static final int OUTPUT_REMOVED_RECORD_SIZE = 1 + 32 + 4;
+    // Hash.
+    private static final byte CHAIN_HEAD = 5;
+    private static final int CHAIN_HEAD_RECORD_SIZE = 1 + 32;
+    // Hash then height.
+    private static final byte VERIFIED_CHAIN_HEAD = 6;
+    private static final int VERIFIED_CHAIN_HEAD_RECORD_SIZE = 1 + 32 + 4;
+
+    private static class UndoableBlockRecord {
+        final long offset;
+        final int height;
+        final int length;
+
+        UndoableBlockRecord(long offset, int height, int length) {
+            this.offset = offset;
+            this.height = height;
+            this.length = length;
+        }
+
+        int size() {
+            return UNDOABLE_BLOCK_RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File file;
+    private final int fullStoreDepth;
+    private FileChannel channel;
+    private long logEnd;
+    // The bytes of the log taken by records that are no longer needed.
+    private long garbage;
+    // Where the log ended when compacting it last failed, or -1. Compaction isn't tried again by itself until the log
+    // has grown by MIN_COMPACTION_GARBAGE since, rather than after every commit.
+    private long failedCompactionLogEnd = -1;
+
+    // The offset of the record of each header shifted left by one, with the lowest bit set if it was undoable.
+    private Map<Sha256Hash, Long> headers = new HashMap<Sha256Hash, Long>();
+    private Map<Sha256Hash, UndoableBlockRecord> undoableBlocks = new HashMap<Sha256Hash, UndoableBlockRecord>();
+    private TreeMap<Integer, Set<Sha256Hash>> undoableBlockHeights = new TreeMap<Integer, Set<Sha256Hash>>();
+    private final UnspentOutputTable unspentOutputs = new UnspentOutputTable();
+    private final Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
+
+    private Sha256Hash chainHeadHash;
+    private StoredBlock chainHeadBlock;
+    private final ChainHeightIndex heightIndex = new ChainHeightIndex(this, Integer.MAX_VALUE);
+    private Sha256Hash verifiedChainHeadHash;
+    private StoredBlock verifiedChainHeadBlock;
+
+    // The records of the open batch, and what the thread writing it has put so far.
+    @Nullable private Thread batchThread;
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final Map<Sha256Hash, StoredBlock> batchBlocks = new HashMap<Sha256Hash, StoredBlock>();
+    private final Set<Sha256Hash> batchUndoableBlocks = new HashSet<Sha256Hash>();
+    private final Map<Sha256Hash, StoredUndoableBlock> batchUndoBlocks = new HashMap<Sha256Hash, StoredUndoableBlock>();
+    // The garbage the open batch makes by spending outputs, which only counts once it is committed.
+    private long batchGarbage;
+
+    /**
+     * Opens the store in the given file, creating it if it doesn't exist.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param file The log file
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the file can't be read or written, or doesn't hold a valid log
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File file, int fullStoreDepth) throws BlockStoreException {
+        this.params = params;
+        this.file = file;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        try {
+            File compactionFile = getCompactionFile();
+            if (compactionFile.exists()) {
+                if (!file.exists()) {
+                    // On Windows the old log is deleted before the finished compaction replaces it, so carry on with
+                    // the compacted log.
+                    if (!compactionFile.renameTo(file))
+                        throw new BlockStoreException("Could not rename " + compactionFile + " to " + file);
+                } else if (!compactionFile.delete()) {
+                    // Left over from a compaction that didn't finish, the log itself is untouched.
+                    throw new BlockStoreException("Could not delete " + compactionFile);
+                }
+            }
+            boolean exists = file.exists();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            if (!exists || channel.size() == 0) {
+                writeFully(channel, ByteBuffer.wrap(MAGIC), 0);
+                logEnd = MAGIC.length;
+                createNewStore();
+            } else {
+                replay();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Rebuilds the indexes from the log, cutting off any frame at the end that wasn't completely written. */
+    private void replay() throws IOException, BlockStoreException {
+        long size = channel.size();
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        if (size < MAGIC.length || !readFully(channel, magic, 0) || !Arrays.equals(magic.array(), MAGIC))
+            throw new BlockStoreException(file + " is not a block store log");
+        long pos = MAGIC.length;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (pos + FRAME_HEADER_SIZE <= size) {
+            frameHeader.clear();
+            readFully(channel, frameHeader, pos);
+            int length = frameHeader.getInt(0);
+            if (length < 0 || pos + FRAME_HEADER_SIZE + length > size)
+                break;
+            ByteBuffer records = ByteBuffer.allocate(length);
+            readFully(channel, records, pos + FRAME_HEADER_SIZE);
+            crc.reset();
+            crc.update(records.array());
+            if ((int) crc.getValue() != frameHeader.getInt(4))
+                break;
+            records.flip();
+            apply(records, pos + FRAME_HEADER_SIZE, true);
+            pos += FRAME_HEADER_SIZE + length;
+        }
+        if (pos < size) {
+            log.warn("Discarding {} bytes of an unfinished write at the end of {}", size - pos, file);
+            channel.truncate(pos);
+        }
+        logEnd = pos;
+
+        if (chainHeadHash == null || verifiedChainHeadHash == null)
+            throw new BlockStoreException("Corrupt block store log - no chain head");
+        chainHeadBlock = get(chainHeadHash);
+        verifiedChainHeadBlock = get(verifiedChainHeadHash);
+        if (chainHeadBlock == null || verifiedChainHeadBlock == null)
+            throw new BlockStoreException("Corrupt block store log - chain head block not found");
+        log.info("Replayed {}: {} headers, {} undoable blocks, {} unspent outputs", file, headers.size(),
+                undoableBlocks.size(), unspentOutputs.size());
+    }
+
+    /**
+     * Updates the indexes for the given records, which were written to the log at the given offset. Changes to the
+     * unspent outputs and chain heads are only applied when replaying, as they were already made when written.
+     */
+    private void apply(ByteBuffer records, long offset, boolean replaying) throws BlockStoreException {
+        try {
+            while (records.hasRemaining()) {
+                long recordOffset = offset + records.position();
+                byte type = records.get();
+                Sha256Hash hash = readHash(records);
+                switch (type) {
+                    case HEADER: {
+                        boolean wasUndoable = records.get() != 0;
+                        records.position(records.position() + StoredBlock.COMPACT_SERIALIZED_SIZE);
+                        Long old = headers.get(hash);
+                        if (old != null) {
+                            garbage += HEADER_RECORD_SIZE;
+                            wasUndoable |= (old & 1) != 0;
+                        }
+                        headers.put(hash, recordOffset << 1 | (wasUndoable ? 1 : 0));
+                        break;
+                    }
+                    case UNDOABLE_BLOCK: {
+                        int height = records.getInt();
+                        int length = records.getInt();
+                        records.position(records.position() + length);
+                        UndoableBlockRecord old = undoableBlocks.put(hash, new UndoableBlockRecord(recordOffset, height, length));
+                        if (old != null) {
+                            garbage += old.size();
+                            undoableBlockHeights.get(old.height).remove(hash);
+                        }
+                        Set<Sha256Hash> atHeight = undoableBlockHeights.get(height);
+                        if (atHeight == null) {
+                            atHeight = new HashSet<Sha256Hash>();
+                            undoableBlockHeights.put(height, atHeight);
+                        }
+                        atHeight.add(hash);
+                        break;
+                    }
+                    case OUTPUT_ADDED: {
+                        long index = records.getInt() & 0xFFFFFFFFL;
+                        int height = records.getInt();
+                        Coin value = Coin.valueOf(records.getLong());
+                        byte[] scriptBytes = new byte[records.getInt()];
+                        records.get(scriptBytes);
+                        if (replaying)
+                            unspentOutputs.add(new StoredTransactionOutput(hash, index, value, height, true, scriptBytes));
+                        break;
+                    }
+                    case OUTPUT_REMOVED: {
+                        long index = records.getInt() & 0xFFFFFFFFL;
+                        if (replaying) {
+                            StoredTransactionOutput out = unspentOutputs.get(hash, index);
+                            if (out == null)
+                                throw new BlockStoreException("Corrupt block store log - spent output not found");
+                            removeOutput(out);
+                        }
+                        break;
+                    }
+                    // The chain head records count as garbage straight away, as the next ones replace them.
+                    case CHAIN_HEAD:
+                        garbage += CHAIN_HEAD_RECORD_SIZE;
+                        if (replaying)
+                            chainHeadHash = hash;
+                        break;
+                    case VERIFIED_CHAIN_HEAD: {
+                        int height = records.getInt();
+                        garbage += VERIFIED_CHAIN_HEAD_RECORD_SIZE;
+                        if (replaying)
+                            verifiedChainHeadHash = hash;
+                        removeUndoableBlocksWhereHeightIsLessThan(height - fullStoreDepth);
+                        break;
+                    }
+                    default:
+                        throw new BlockStoreException("Corrupt block store log - unknown record type " + type);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new BlockStoreException(e);  // A record runs past the end of its frame.
+        }
+    }
+
+    private void removeUndoableBlocksWhereHeightIsLessThan(int height) {
+        SortedMap<Integer, Set<Sha256Hash>> pruned = undoableBlockHeights.headMap(height, true);
+        for (Set<Sha256Hash> hashes : pruned.values()) {
+            for (Sha256Hash hash : hashes)
+                garbage += undoableBlocks.remove(hash).size();
+        }
+        pruned.clear();
+    }
+
+    private void removeOutput(StoredTransactionOutput out) {
+        unspentOutputs.remove(out.getHash(), out.getIndex());
+        long size = OUTPUT_ADDED_RECORD_HEADER_SIZE + out.getScriptBytes().length + OUTPUT_REMOVED_RECORD_SIZE;
+        if (inBatch())
+            batchGarbage += size;
+        else
+            garbage += size;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (channel == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    private boolean inBatch() {
+        return batchThread == Thread.currentThread();
+    }
+
+    /** Adds the given record to the open batch, or writes it to the log now if this thread has no batch open. */
+    private void append(byte[] record) throws BlockStoreException {
+        if (inBatch()) {
+            batch.write(record, 0, record.length);
+        } else {
+            long offset = writeFrame(record, record.length);
+            apply(ByteBuffer.wrap(record), offset, false);
+            maybeCompact();
+        }
+    }
+
+    /** Appends a frame holding the given records to the log, returning the offset of the records. */
+    private long writeFrame(byte[] records, int length) throws BlockStoreException {
+        long frameOffset = logEnd;
+        try {
+            logEnd = writeFrame(channel, frameOffset, records, length);
+            return frameOffset + FRAME_HEADER_SIZE;
+        } catch (IOException e) {
+            // Don't leave half a frame behind for the next commit to be written after.
+            try {
+                channel.truncate(frameOffset);
+            } catch (IOException e2) {
+                log.error("Could not truncate " + file + " after a failed write", e2);
+            }
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Writes a frame holding the given records at the given position, returning the position after it. */
+    private static long writeFrame(FileChannel channel, long position, byte[] records, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(records, 0, length);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        frame.putInt(length);
+        frame.putInt((int) crc.getValue());
+        frame.put(records, 0, length);
+        frame.flip();
+        writeFully(channel, frame, position);
+        return position + frame.capacity();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /** Reads bytes at the given position until the buffer is full, returning false if the file ends first. */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                return false;
+            position += read;
+        }
+        return true;
+    }
+
+    private static Sha256Hash readHash(ByteBuffer buffer) {
+        byte[] hashBytes = new byte[32];
+        buffer.get(hashBytes);
+        return new Sha256Hash(hashBytes);
+    }
+
+    private File getCompactionFile() {
+        return new File(file.getPath() + ".compact");
+    }
+
+    private static byte[] headerRecord(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_RECORD_SIZE);
+        record.put(HEADER);
+        record.put(block.getHeader().getHash().getBytes());
+        record.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompact(record);
+        return record.array();
+    }
+
+    private static byte[] undoableBlockRecord(Sha256Hash hash, int height, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeByte(UNDOABLE_BLOCK);
+            out.write(hash.getBytes());
+            out.writeInt(height);
+            out.writeInt(0);  // Filled in below.
+            if (undoableBlock.getTxOutChanges() != null) {
+                out.writeByte(0);
+                undoableBlock.getTxOutChanges().serializeToStream(out);
+            } else {
+                out.writeByte(1);
+                int numTxn = undoableBlock.getTransactions().size();
+                out.write((int) (0xFF & (numTxn >> 0)));
+                out.write((int) (0xFF & (numTxn >> 8)));
+                out.write((int) (0xFF & (numTxn >> 16)));
+                out.write((int) (0xFF & (numTxn >> 24)));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.peercoinSerialize(out);
+            }
+            out.flush();
+            byte[] record = bos.toByteArray();
+            ByteBuffer.wrap(record).putInt(1 + 32 + 4, record.length - UNDOABLE_BLOCK_RECORD_HEADER_SIZE);
+            return record;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static byte[] outputAddedRecord(StoredTransactionOutput out) {
+        byte[] scriptBytes = out.getScriptBytes();
+        ByteBuffer record = ByteBuffer.allocate(OUTPUT_ADDED_RECORD_HEADER_SIZE + scriptBytes.length);
+        record.put(OUTPUT_ADDED);
+        record.put(out.getHash().getBytes());
+        record.putInt((int) out.getIndex());
+        record.putInt(out.getHeight());
+        record.putLong(out.getValue().value);
+        record.putInt(scriptBytes.length);
+        record.put(scriptBytes);
+        return record.array();
+    }
+
+    private static byte[] chainHeadRecord(byte type, StoredBlock chainHead) {
+        ByteBuffer record = ByteBuffer.allocate(type == CHAIN_HEAD ? CHAIN_HEAD_RECORD_SIZE : VERIFIED_CHAIN_HEAD_RECORD_SIZE);
+        record.put(type);
+        record.put(chainHead.getHeader().getHash().getBytes());
+        if (type == VERIFIED_CHAIN_HEAD)
+            record.putInt(chainHead.getHeight());
+        return record.array();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        checkOpen();
+        append(headerRecord(storedBlock, false));
+        if (inBatch())
+            batchBlocks.put(storedBlock.getHeader().getHash(), storedBlock);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        append(undoableBlockRecord(hash, storedBlock.getHeight(), undoableBlock));
+        append(headerRecord(storedBlock, true));
+        if (inBatch()) {
+            batchBlocks.put(hash, storedBlock);
+            batchUndoableBlocks.add(hash);
+            batchUndoBlocks.put(hash, undoableBlock);
+        }
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        checkOpen();
+        if (inBatch() && (wasUndoableOnly ? batchUndoableBlocks.contains(hash) : batchBlocks.containsKey(hash)))
+            return batchBlocks.get(hash);
+        Long entry = headers.get(hash);
+        if (entry == null || (wasUndoableOnly && (entry & 1) == 0))
+            return null;
+        StoredBlock block = blockCache.getIfPresent(hash);
+        if (block != null)
+            return block;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+            if (!readFully(channel, buffer, (entry >>> 1) + 1 + 32 + 1))
+                throw new BlockStoreException("Corrupt block store log - header past the end");
+            buffer.flip();
+            block = StoredBlock.deserializeCompact(params, buffer);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+        blockCache.put(hash, block);
+        return block;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        if (inBatch() && batchUndoBlocks.containsKey(hash))
+            return batchUndoBlocks.get(hash);
+        UndoableBlockRecord record = undoableBlocks.get(hash);
+        if (record == null)
+            return null;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(record.length);
+            if (!readFully(channel, buffer, record.offset + UNDOABLE_BLOCK_RECORD_HEADER_SIZE))
+                throw new BlockStoreException("Corrupt block store log - undoable block past the end");
+            byte[] bytes = buffer.array();
+            if (bytes[0] == 0) {
+                TransactionOutputChanges outChanges =
+                        new TransactionOutputChanges(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+                return new StoredUndoableBlock(hash, outChanges);
+            }
+            int offset = 1;
+            int numTxn = ((bytes[offset++] & 0xFF) << 0) |
+                         ((bytes[offset++] & 0xFF) << 8) |
+                         ((bytes[offset++] & 0xFF) << 16) |
+                         ((bytes[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, bytes, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHeadBlock;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        chainHeadHash = chainHead.getHeader().getHash();
+        chainHeadBlock = chainHead;
+        append(chainHeadRecord(CHAIN_HEAD, chainHead));
+        heightIndex.setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        checkOpen();
+        return heightIndex.getBlock(height);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getIndexedByHeight(int height) throws BlockStoreException {
+        checkOpen();
+        return heightIndex.getIndexedBlock(height);
+    }
+
+    @Override
+    public long getTimeByHeight(int height) {
+        return heightIndex.getIndexedTime(height);
+    }
+
+    @Override
+    public synchronized List<StoredBlock> getByHeight(int fromHeight, int toHeight) throws BlockStoreException {
+        checkOpen();
+        return heightIndex.getBlocks(fromHeight, toHeight);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return verifiedChainHeadBlock;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        verifiedChainHeadHash = chainHead.getHeader().getHash();
+        verifiedChainHeadBlock = chainHead;
+        // Undoable blocks that are too old are pruned when the record is applied, so not until the batch commits.
+        append(chainHeadRecord(VERIFIED_CHAIN_HEAD, chainHead));
+        if (chainHeadBlock.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        return unspentOutputs.get(hash, index);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        checkWriter();
+        append(outputAddedRecord(out));
+        unspentOutputs.add(out);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        checkWriter();
+        StoredTransactionOutput stored = unspentOutputs.get(out.getHash(), out.getIndex());
+        if (stored == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogFullPrunedBlockStore that it didn't have!");
+        ByteBuffer record = ByteBuffer.allocate(OUTPUT_REMOVED_RECORD_SIZE);
+        record.put(OUTPUT_REMOVED);
+        record.put(out.getHash().getBytes());
+        record.putInt((int) out.getIndex());
+        append(record.array());
+        removeOutput(stored);
+    }
+
+    private void checkWriter() throws BlockStoreException {
+        if (batchThread != null && !inBatch())
+            throw new BlockStoreException("Another thread is writing a batch");
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (inBatch())
+            return;
+        checkWriter();
+        batchThread = Thread.currentThread();
+        unspentOutputs.beginDatabaseBatchWrite();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (!inBatch())
+            return;
+        if (batch.size() > 0) {
+            byte[] records = batch.toByteArray();
+            long offset;
+            try {
+                offset = writeFrame(records, records.length);
+            } catch (BlockStoreException e) {
+                // The batch didn't make it into the log, so it is lost.
+                unspentOutputs.abortDatabaseBatchWrite();
+                endBatch();
+                throw e;
+            }
+            apply(ByteBuffer.wrap(records), offset, false);
+            garbage += batchGarbage;
+        }
+        unspentOutputs.commitDatabaseBatchWrite();
+        endBatch();
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (!inBatch())
+            return;
+        unspentOutputs.abortDatabaseBatchWrite();
+        endBatch();
+    }
+
+    private void endBatch() {
+        batchThread = null;
+        batch.reset();
+        batchBlocks.clear();
+        batchUndoableBlocks.clear();
+        batchUndoBlocks.clear();
+        batchGarbage = 0;
+    }
+
+    /** Returns the bytes of the log taken by records that are no longer needed. */
+    @VisibleForTesting
+    synchronized long getGarbage() {
+        return garbage;
+    }
+
+    private void maybeCompact() throws BlockStoreException {
+        if (garbage < MIN_COMPACTION_GARBAGE || garbage * 2 <= logEnd)
+            return;
+        if (failedCompactionLogEnd >= 0 && logEnd < failedCompactionLogEnd + MIN_COMPACTION_GARBAGE)
+            return;
+        try {
+            compact();
+        } catch (BlockStoreException e) {
+            // The batch that was just committed is already in the log, which is left as it was. Only fail if the log
+            // can't be used any more.
+            checkOpen();
+            failedCompactionLogEnd = logEnd;
+            log.warn("Could not compact " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the log with only the records still needed: the headers, the undoable blocks that haven't been pruned,
+     * the unspent outputs and the chain heads. The new log is synced to disk before it replaces the old one. This
+     * happens by itself once most of the log is garbage. If the new log can't replace the old one, the store carries
+     * on with the old log.
+     *
+     * @throws IllegalStateException if a batch is open.
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        checkState(batchThread == null, "A batch is open");
+        long startTime = System.currentTimeMillis();
+        long oldSize = logEnd;
+        File compactionFile = getCompactionFile();
+        Map<Sha256Hash, Long> newHeaders = new HashMap<Sha256Hash, Long>(headers.size() * 2);
+        Map<Sha256Hash, UndoableBlockRecord> newUndoableBlocks = new HashMap<Sha256Hash, UndoableBlockRecord>();
+        long newLogEnd;
+        try {
+            FileChannel newChannel = new RandomAccessFile(compactionFile, "rw").getChannel();
+            try {
+                newChannel.truncate(0);
+                writeFully(newChannel, ByteBuffer.wrap(MAGIC), 0);
+                long framePos = MAGIC.length;
+                ByteArrayOutputStream frame = new ByteArrayOutputStream(COMPACTION_FRAME_SIZE + COMPACTION_FRAME_SIZE / 4);
+                for (Map.Entry<Sha256Hash, Long> header : headers.entrySet()) {
+                    long entry = header.getValue();
+                    ByteBuffer record = ByteBuffer.allocate(HEADER_RECORD_SIZE);
+                    readFully(channel, record, entry >>> 1);
+                    // A later record may have been put without the flag, which it mustn't lose.
+                    record.put(1 + 32, (byte) (entry & 1));
+                    newHeaders.put(header.getKey(), (framePos + FRAME_HEADER_SIZE + frame.size()) << 1 | (entry & 1));
+                    frame.write(record.array(), 0, HEADER_RECORD_SIZE);
+                    if (frame.size() >= COMPACTION_FRAME_SIZE) {
+                        framePos = writeFrame(newChannel, framePos, frame.toByteArray(), frame.size());
+                        frame.reset();
+                    }
+                }
+                for (Map.Entry<Sha256Hash, UndoableBlockRecord> undoableBlock : undoableBlocks.entrySet()) {
+                    UndoableBlockRecord old = undoableBlock.getValue();
+                    ByteBuffer record = ByteBuffer.allocate(old.size());
+                    readFully(channel, record, old.offset);
+                    long offset = framePos + FRAME_HEADER_SIZE + frame.size();
+                    newUndoableBlocks.put(undoableBlock.getKey(), new UndoableBlockRecord(offset, old.height, old.length));
+                    frame.write(record.array(), 0, old.size());
+                    if (frame.size() >= COMPACTION_FRAME_SIZE) {
+                        framePos = writeFrame(newChannel, framePos, frame.toByteArray(), frame.size());
+                        frame.reset();
+                    }
+                }
+                Iterator<StoredTransactionOutput> outputs = unspentOutputs.iterator();
+                while (outputs.hasNext()) {
+                    byte[] record = outputAddedRecord(outputs.next());
+                    frame.write(record, 0, record.length);
+                    if (frame.size() >= COMPACTION_FRAME_SIZE) {
+                        framePos = writeFrame(newChannel, framePos, frame.toByteArray(), frame.size());
+                        frame.reset();
+                    }
+                }
+                // The chain heads go last, so the undoable blocks are all there when the verified one prunes them.
+                byte[] record = chainHeadRecord(CHAIN_HEAD, chainHeadBlock);
+                frame.write(record, 0, record.length);
+                record = chainHeadRecord(VERIFIED_CHAIN_HEAD, verifiedChainHeadBlock);
+                frame.write(record, 0, record.length);
+                framePos = writeFrame(newChannel, framePos, frame.toByteArray(), frame.size());
+                newChannel.force(true);
+                newLogEnd = framePos;
+            } finally {
+                newChannel.close();
+            }
+        } catch (IOException e) {
+            compactionFile.delete();
+            throw new BlockStoreException(e);
+        }
+        // Everything written before the rename is thrown away if we crash, and everything after is in the new log.
+        // The log is closed first as Windows can't rename over an open file, nor over an existing one, so the old log
+        // is deleted there first.
+        boolean renamed;
+        try {
+            FileChannel oldChannel = channel;
+            channel = null;
+            oldChannel.close();
+            if (Utils.isWindows() && !file.delete())
+                renamed = false;
+            else
+                renamed = compactionFile.renameTo(file);
+            // Without the old log there is nothing to carry on with, until the store is opened again and recovers the
+            // compacted one.
+            if (renamed || file.exists())
+                channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        if (!renamed) {
+            if (channel != null)
+                compactionFile.delete();
+            throw new BlockStoreException("Could not rename " + compactionFile + " to " + file);
+        }
+        logEnd = newLogEnd;
+        headers = newHeaders;
+        undoableBlocks = newUndoableBlocks;
+        garbage = 0;
+        failedCompactionLogEnd = -1;
+        log.info("Compacted {} from {} to {} bytes in {} ms", file, oldSize, logEnd,
+                System.currentTimeMillis() - startTime);
+    }
+
+    /** Syncs the log to disk and closes it. */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (channel == null)
+            return;
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            channel = null;
+        }
+    }
+}
@@ -18,13 +18,15 @@ package com.matthewmitchell.peercoinj.store;
 
 import com.matthewmitchell.peercoinj.core.*;
 
+import javax.annotation.Nullable;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Keeps {@link com.matthewmitchell.peercoinj.core.StoredBlock}s in memory. Used primarily for unit testing.
  */
-public class MemoryBlockStore implements BlockStore {
+public class MemoryBlockStore implements HeightIndexedBlockStore {
     private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
@@ -32,6 +34,7 @@ public class MemoryBlockStore implements BlockStore {
         }
     };
     private StoredBlock chainHead;
+    private final ChainHeightIndex heightIndex = new ChainHeightIndex(this, 5000);
 
     public MemoryBlockStore(NetworkParameters params) {
         // Insert the genesis block.
@@ -67,9 +70,35 @@ public class MemoryBlockStore implements BlockStore {
     }
 
     @Override
-    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         this.chainHead = chainHead;
+        heightIndex.setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        return heightIndex.getBlock(height);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getIndexedByHeight(int height) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        return heightIndex.getIndexedBlock(height);
+    }
+
+    @Override
+    public long getTimeByHeight(int height) {
+        return heightIndex.getIndexedTime(height);
+    }
+
+    @Override
+    public synchronized List<StoredBlock> getByHeight(int fromHeight, int toHeight) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        return heightIndex.getBlocks(fromHeight, toHeight);
     }
     
     @Override
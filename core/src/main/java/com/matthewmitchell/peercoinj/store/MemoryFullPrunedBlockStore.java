@@ -17,70 +17,12 @@
 package com.matthewmitchell.peercoinj.store;
 
 import com.matthewmitchell.peercoinj.core.*;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import javax.annotation.Nullable;
-import java.io.Serializable;
 import java.util.*;
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint implements Serializable {
-    private static final long serialVersionUID = -4064230006297064377L;
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(StoredTransactionOutput out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-    
-    @Override
-    public int hashCode() {
-        return this.hash.hashCode() + (int)index;
-    }
-    
-    @Override
-    public String toString() {
-        return "Stored transaction out point: " + hash.toString() + ":" + index;
-    }
-    
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
-        return getIndex() == other.getIndex() &&
-               Objects.equal(getHash(), other.getHash());
-    }
-}
-
 /**
  * A HashMap<KeyType, ValueType> that is DB transaction-aware
  * This class is not thread-safe.
@@ -225,9 +167,9 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
 
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link StoredTransactionOutput}s in memory.
- * Used primarily for unit testing.
+ * Used primarily for unit testing. The unspent outputs are kept in direct buffers outside the Java heap.
  */
-public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, HeightIndexedBlockStore {
     protected static class StoredBlockAndWasUndoableFlag {
         public StoredBlock block;
         public boolean wasUndoable;
@@ -235,10 +177,10 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
+    private UnspentOutputTable unspentOutputs;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
+    private final ChainHeightIndex heightIndex = new ChainHeightIndex(this, Integer.MAX_VALUE);
     private int fullStoreDepth;
     
     /**
@@ -249,7 +191,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        unspentOutputs = new UnspentOutputTable();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -315,6 +257,32 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         this.chainHead = chainHead;
+        heightIndex.setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
+        return heightIndex.getBlock(height);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getIndexedByHeight(int height) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
+        return heightIndex.getIndexedBlock(height);
+    }
+
+    @Override
+    public long getTimeByHeight(int height) {
+        return heightIndex.getIndexedTime(height);
+    }
+
+    @Override
+    public synchronized List<StoredBlock> getByHeight(int fromHeight, int toHeight) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
+        return heightIndex.getBlocks(fromHeight, toHeight);
     }
     
     @Override
@@ -338,26 +306,26 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public void close() {
         blockMap = null;
         fullBlockMap = null;
-        transactionOutputMap = null;
+        unspentOutputs = null;
     }
     
     @Override
     @Nullable
     public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
-        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        Preconditions.checkNotNull(unspentOutputs, "MemoryFullPrunedBlockStore is closed");
+        return unspentOutputs.get(hash, index);
     }
 
     @Override
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
-        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        Preconditions.checkNotNull(unspentOutputs, "MemoryFullPrunedBlockStore is closed");
+        unspentOutputs.add(out);
     }
 
     @Override
     public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
-        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        if (transactionOutputMap.remove(new StoredTransactionOutPoint(out)) == null)
+        Preconditions.checkNotNull(unspentOutputs, "MemoryFullPrunedBlockStore is closed");
+        if (!unspentOutputs.remove(out.getHash(), out.getIndex()))
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
@@ -365,21 +333,21 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
         fullBlockMap.BeginTransaction();
-        transactionOutputMap.beginDatabaseBatchWrite();
+        unspentOutputs.beginDatabaseBatchWrite();
     }
 
     @Override
     public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
         blockMap.commitDatabaseBatchWrite();
         fullBlockMap.CommitTransaction();
-        transactionOutputMap.commitDatabaseBatchWrite();
+        unspentOutputs.commitDatabaseBatchWrite();
     }
 
     @Override
     public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
         blockMap.abortDatabaseBatchWrite();
         fullBlockMap.AbortTransaction();
-        transactionOutputMap.abortDatabaseBatchWrite();
+        unspentOutputs.abortDatabaseBatchWrite();
     }
 
     @Override
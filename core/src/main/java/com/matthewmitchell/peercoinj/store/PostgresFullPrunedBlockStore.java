@@ -38,12 +38,13 @@ import java.util.Properties;
  * so you can use {@link #calculateBalanceForAddress(com.matthewmitchell.peercoinj.core.Address)} to quickly look up
  * the quantity of peercoins controlled by that address.</p>
  */
-public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
+public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore, HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(PostgresFullPrunedBlockStore.class);
     private static final String POSTGRES_DUPLICATE_KEY_ERROR_CODE = "23505";
 
     private Sha256Hash chainHeadHash;
     private StoredBlock chainHeadBlock;
+    private final ChainHeightIndex heightIndex = new ChainHeightIndex(this, Integer.MAX_VALUE);
     private Sha256Hash verifiedChainHeadHash;
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
@@ -698,6 +699,29 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
+        heightIndex.setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        return heightIndex.getBlock(height);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getIndexedByHeight(int height) throws BlockStoreException {
+        return heightIndex.getIndexedBlock(height);
+    }
+
+    @Override
+    public long getTimeByHeight(int height) {
+        return heightIndex.getIndexedTime(height);
+    }
+
+    @Override
+    public List<StoredBlock> getByHeight(int fromHeight, int toHeight) throws BlockStoreException {
+        return heightIndex.getBlocks(fromHeight, toHeight);
     }
 
     @Override
@@ -18,6 +18,9 @@ package com.matthewmitchell.peercoinj.store;
 
 import com.matthewmitchell.peercoinj.core.*;
 import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,9 +32,7 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -43,7 +44,7 @@ import static com.google.common.base.Preconditions.checkState;
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -61,40 +62,46 @@ public class SPVBlockStore implements BlockStore {
     //
     // MMapping a file in Java does not give us a byte[] as you may expect but rather a ByteBuffer, and whilst on
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
-    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
-    // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
-    // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
-    // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
-    // must efficiently respond.
-    //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
-    protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The cache
+    // below lets us stay in the JIT-compiled Java world without expensive JNI transitions and makes a 10x difference!
+    // It is safe to use from many threads, so readers only take the lock when the block isn't in it. Blocks that aren't in the store used to be
+    // cached too, but the index below finds that out just as quickly.
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
+    // Open-addressed index from block hashes to the ring slots holding them, so that finding a block doesn't mean
+    // scanning the ring. It is rebuilt when the store is opened, which leaves the file format as it was. Each entry
+    // holds the slot number plus one, or zero when the entry is empty. The starting entry is picked by
+    // getHomeEntry(). There are never more hashes than slots, so it is never more than half full.
+    private int[] index;
+    private int indexMask;
+
+    // The hashes of the best chain by height, as far back as the ring goes.
+    private final ChainHeightIndex heightIndex;
+
     /**
      * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers, which must be the number
+     * the file was created with. Will create the given file if it's missing. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(numHeaders > 0);
         this.params = checkNotNull(params);
+        this.heightIndex = new ChainHeightIndex(this, numHeaders);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = numHeaders;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -119,6 +126,9 @@ public class SPVBlockStore implements BlockStore {
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
 
+            index = new int[Integer.highestOneBit(Math.max(numHeaders, 512) * 2 - 1) << 1];
+            indexMask = index.length - 1;
+
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             byte[] header;
             if (exists) {
@@ -126,6 +136,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                indexRing(buffer);
             } else {
                 initNewStore(params);
             }
@@ -173,12 +184,16 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
+            byte[] hashBytes = hash.getBytes();
+            unindexSlot(buffer, slot);
+            buffer.position(cursor);
+            buffer.put(hashBytes);
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            // If the block was already in the ring, the newer copy replaces it in the index.
+            index[findEntry(buffer, hashBytes)] = slot + 1;
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -189,51 +204,43 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+
+        // The ring and the index are only read under the lock, as put() overwrites the records in place.
         lock.lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            StoredBlock storedBlock = readBlock(buffer, hash);
+            if (storedBlock != null)
+                blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    /** Reads the block with the given hash out of the ring, or returns null if it isn't there. */
+    @Nullable
+    private StoredBlock readBlock(MappedByteBuffer buffer, Sha256Hash hash) throws ProtocolException {
+        int entry = index[findEntry(buffer, hash.getBytes())];
+        if (entry == 0)
+            return null;
+        // Read through a duplicate, so as not to move the position of the buffer under other threads.
+        ByteBuffer record = buffer.duplicate();
+        record.position(getSlotOffset(entry - 1) + 32);
+        return StoredBlock.deserializeCompact(params, record);
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
 
         lock.lock();
         try {
@@ -262,6 +269,43 @@ public class SPVBlockStore implements BlockStore {
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
+            heightIndex.setChainHead(chainHead);
+        } finally { lock.unlock(); }
+    }
+
+    // The height index walks the chain through get() whilst setChainHead() holds the lock, so lookups by height take
+    // the lock as well.
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        lock.lock();
+        try {
+            return heightIndex.getBlock(height);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getIndexedByHeight(int height) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        lock.lock();
+        try {
+            return heightIndex.getIndexedBlock(height);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public long getTimeByHeight(int height) {
+        return heightIndex.getIndexedTime(height);
+    }
+
+    @Override
+    public List<StoredBlock> getByHeight(int fromHeight, int toHeight) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        lock.lock();
+        try {
+            return heightIndex.getBlocks(fromHeight, toHeight);
         } finally { lock.unlock(); }
     }
 
@@ -301,4 +345,73 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    private static int getSlotOffset(int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+    }
+
+    /** Indexes every slot of the ring that has been written, from the oldest to the newest. */
+    private void indexRing(ByteBuffer buffer) {
+        // The slot at the cursor is the next to be overwritten, so it is the oldest. Indexing in order means that if
+        // a block was put more than once, its newest record is the one found.
+        int oldest = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        byte[] hashBytes = new byte[32];
+        for (int i = 0; i < numHeaders; i++) {
+            int slot = (oldest + i) % numHeaders;
+            int offset = getSlotOffset(slot);
+            // Slots that have never been written are all zeros.
+            if (buffer.getLong(offset) == 0 && buffer.getLong(offset + 8) == 0 &&
+                    buffer.getLong(offset + 16) == 0 && buffer.getLong(offset + 24) == 0)
+                continue;
+            buffer.position(offset);
+            buffer.get(hashBytes);
+            index[findEntry(buffer, hashBytes)] = slot + 1;
+        }
+    }
+
+    /** Returns the index entry a hash starting at the given offset goes in if nothing else is there already. */
+    @VisibleForTesting
+    static int getHomeEntry(ByteBuffer buffer, int hashOffset, int indexMask) {
+        // The hash bytes are in display order, so the first four are zero for every proof of work block. The last
+        // four are uniformly distributed, so like Sha256Hash.hashCode() use those without mixing them any further.
+        return buffer.getInt(hashOffset + 28) & indexMask;
+    }
+
+    /** Returns the index entry for the given hash, or the empty entry where it would go if it isn't indexed. */
+    private int findEntry(ByteBuffer buffer, byte[] hashBytes) {
+        ByteBuffer target = ByteBuffer.wrap(hashBytes);
+        int entry = getHomeEntry(target, 0, indexMask);
+        // The index is never full, so running out of entries to probe means it is corrupt.
+        for (int probes = 0; probes <= indexMask; probes++, entry = (entry + 1) & indexMask) {
+            int value = index[entry];
+            if (value == 0)
+                return entry;
+            int offset = getSlotOffset(value - 1);
+            if (buffer.getLong(offset) == target.getLong(0) && buffer.getLong(offset + 8) == target.getLong(8) &&
+                    buffer.getLong(offset + 16) == target.getLong(16) && buffer.getLong(offset + 24) == target.getLong(24))
+                return entry;
+        }
+        throw new IllegalStateException("Block index is full");
+    }
+
+    /** Removes the block in the given slot from the index, before the slot is overwritten. */
+    private void unindexSlot(ByteBuffer buffer, int slot) {
+        byte[] hashBytes = new byte[32];
+        buffer.position(getSlotOffset(slot));
+        buffer.get(hashBytes);
+        int hole = findEntry(buffer, hashBytes);
+        // Either the slot was never written, or the block was put again later and the newer slot is indexed.
+        if (index[hole] != slot + 1)
+            return;
+        // Close the hole by moving back any later entries of the run that can no longer be reached past it.
+        index[hole] = 0;
+        for (int entry = (hole + 1) & indexMask; index[entry] != 0; entry = (entry + 1) & indexMask) {
+            int home = getHomeEntry(buffer, getSlotOffset(index[entry] - 1), indexMask);
+            if (((entry - home) & indexMask) >= ((entry - hole) & indexMask)) {
+                index[hole] = index[entry];
+                index[entry] = 0;
+                hole = entry;
+            }
+        }
+    }
 }
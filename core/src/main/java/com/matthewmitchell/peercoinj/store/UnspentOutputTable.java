@@ -0,0 +1,399 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.Coin;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.StoredTransactionOutput;
+import com.google.common.collect.AbstractIterator;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The unspent outputs of a {@link MemoryFullPrunedBlockStore} or {@link LogFullPrunedBlockStore}, kept in direct
+ * buffers outside the Java heap. An output costs a 48 byte slot in an open addressed hash table, which is kept at most
+ * half full, plus a record of its value, height and script. Records are appended to a chain of chunks, and the chunks
+ * are compacted once most of what they hold belongs to spent outputs.</p>
+ *
+ * <p>Between {@link #beginDatabaseBatchWrite()} and the commit or abort, changes are made in place and the slot each
+ * output had before the batch first changed it is written to an undo journal. Aborting puts those slots back and
+ * forgets the records appended since the batch began. Other threads read through the journal, so they don't see the
+ * batch before it is committed, but only the thread that began the batch may write until then.</p>
+ *
+ * <p>This class is not thread-safe, the store synchronizes access to it.</p>
+ */
+class UnspentOutputTable {
+    // A slot holds the transaction hash and output index, then the length and offset of the record. The length of a
+    // record is never zero, so a zero length marks an empty slot. Journal entries are laid out the same way.
+    private static final int SLOT_SIZE = 48;
+    private static final int INDEX = 32, LENGTH = 36, OFFSET = 40;
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_SIZE);
+
+    // A record holds the value, then the height, then the script.
+    private static final int RECORD_HEADER_SIZE = 12;
+    // Records never span chunks. The last chunk starts small and grows up to the full size.
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    // Don't bother compacting less garbage than this.
+    private static final int MIN_COMPACTION_GARBAGE = 1 << 20;
+
+    private ByteBuffer slots;
+    private int mask;
+    private int size;
+
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    // Offsets into the chunks count as if every chunk was full size.
+    private long dataEnd;
+    // The bytes of records no slot points to.
+    private long garbage;
+
+    private ByteBuffer journal;
+    // Where each output changed by the batch has its journal entry. This is the only part on the heap, and it only
+    // holds the outputs of the batch.
+    private final Map<ByteBuffer, Integer> journaled = new HashMap<ByteBuffer, Integer>();
+    @Nullable private Thread batchThread;
+    private int batchSize;
+    private long batchDataEnd, batchGarbage;
+
+    UnspentOutputTable() {
+        slots = ByteBuffer.allocateDirect(MIN_CAPACITY * SLOT_SIZE);
+        mask = MIN_CAPACITY - 1;
+        journal = ByteBuffer.allocateDirect(MIN_CAPACITY * SLOT_SIZE);
+    }
+
+    /** Returns the number of unspent outputs, including any added or removed by an open batch. */
+    int size() {
+        return size;
+    }
+
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        byte[] hashBytes = hash.getBytes();
+        ByteBuffer entries = slots;
+        int pos = find(hashBytes, (int) index) * SLOT_SIZE;
+        if (batchThread != null && batchThread != Thread.currentThread()) {
+            // Another thread sees the output as it was before the batch.
+            Integer journalPos = journaled.get(key(hashBytes, (int) index));
+            if (journalPos != null) {
+                entries = journal;
+                pos = journalPos;
+            }
+        }
+        return read(hash, index, entries, pos);
+    }
+
+    /**
+     * Returns the unspent outputs, in no particular order. No batch may be open, and the table must not change whilst
+     * they are iterated.
+     */
+    Iterator<StoredTransactionOutput> iterator() {
+        checkState(batchThread == null, "A batch is open");
+        return new AbstractIterator<StoredTransactionOutput>() {
+            private int pos = 0;
+
+            @Override
+            protected StoredTransactionOutput computeNext() {
+                for (; pos < slots.capacity(); pos += SLOT_SIZE) {
+                    if (slots.getInt(pos + LENGTH) == 0)
+                        continue;
+                    byte[] hashBytes = new byte[32];
+                    ByteBuffer slot = slots.duplicate();
+                    slot.position(pos);
+                    slot.get(hashBytes);
+                    long index = slot.getInt() & 0xFFFFFFFFL;
+                    StoredTransactionOutput out = read(new Sha256Hash(hashBytes), index, slots, pos);
+                    pos += SLOT_SIZE;
+                    return out;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /** Reads the output of the slot or journal entry at the given position, or returns null if it is empty. */
+    @Nullable
+    private StoredTransactionOutput read(Sha256Hash hash, long index, ByteBuffer entries, int pos) {
+        int length = entries.getInt(pos + LENGTH);
+        if (length == 0)
+            return null;
+        long offset = entries.getLong(pos + OFFSET);
+        ByteBuffer record = chunk(offset).duplicate();
+        record.position((int) (offset % CHUNK_SIZE));
+        Coin value = Coin.valueOf(record.getLong());
+        int height = record.getInt();
+        byte[] scriptBytes = new byte[length - RECORD_HEADER_SIZE];
+        record.get(scriptBytes);
+        // The height is stored as it was given, coinbase or not.
+        return new StoredTransactionOutput(hash, index, value, height, true, scriptBytes);
+    }
+
+    /** Adds the given output, replacing any output with the same hash and index. */
+    void add(StoredTransactionOutput out) {
+        checkWriter();
+        byte[] hashBytes = out.getHash().getBytes();
+        int index = (int) out.getIndex();
+        byte[] scriptBytes = out.getScriptBytes();
+        int length = RECORD_HEADER_SIZE + scriptBytes.length;
+        long offset = reserve(length);
+        ByteBuffer record = chunk(offset).duplicate();
+        record.position((int) (offset % CHUNK_SIZE));
+        record.putLong(out.getValue().value);
+        record.putInt(out.getHeight());
+        record.put(scriptBytes);
+
+        int pos = find(hashBytes, index) * SLOT_SIZE;
+        journal(hashBytes, index, pos);
+        int oldLength = slots.getInt(pos + LENGTH);
+        if (oldLength != 0) {
+            garbage += oldLength;
+        } else {
+            ByteBuffer slot = slots.duplicate();
+            slot.position(pos);
+            slot.put(hashBytes);
+            slot.putInt(index);
+            size++;
+        }
+        slots.putInt(pos + LENGTH, length);
+        slots.putLong(pos + OFFSET, offset);
+        if (size * 2L > mask + 1)
+            grow();
+    }
+
+    /** Removes the output with the given hash and index, returning false if there is none. */
+    boolean remove(Sha256Hash hash, long index) {
+        checkWriter();
+        byte[] hashBytes = hash.getBytes();
+        int slot = find(hashBytes, (int) index);
+        int pos = slot * SLOT_SIZE;
+        int length = slots.getInt(pos + LENGTH);
+        if (length == 0)
+            return false;
+        journal(hashBytes, (int) index, pos);
+        garbage += length;
+        size--;
+        clearSlot(slot);
+        maybeCompact();
+        return true;
+    }
+
+    /** Begins a batch of changes on this thread. A second call before the batch ends is ignored. */
+    void beginDatabaseBatchWrite() {
+        if (batchThread == Thread.currentThread())
+            return;
+        checkState(batchThread == null, "Another thread is writing a batch");
+        batchThread = Thread.currentThread();
+        batchSize = size;
+        batchDataEnd = dataEnd;
+        batchGarbage = garbage;
+    }
+
+    /** Keeps the changes of the batch this thread began, if any. */
+    void commitDatabaseBatchWrite() {
+        if (batchThread != Thread.currentThread())
+            return;
+        endBatch();
+        maybeCompact();
+    }
+
+    /** Undoes the changes of the batch this thread began, if any. */
+    void abortDatabaseBatchWrite() {
+        if (batchThread != Thread.currentThread())
+            return;
+        byte[] hashBytes = new byte[32];
+        for (int pos = 0; pos < journal.position(); pos += SLOT_SIZE) {
+            ByteBuffer entry = journal.duplicate();
+            entry.position(pos);
+            entry.get(hashBytes);
+            int index = entry.getInt();
+            int slot = find(hashBytes, index);
+            if (slots.getInt(slot * SLOT_SIZE + LENGTH) != 0) {
+                clearSlot(slot);
+                slot = find(hashBytes, index);
+            }
+            if (journal.getInt(pos + LENGTH) != 0)
+                copySlot(journal, pos, slots, slot * SLOT_SIZE);
+        }
+        // Nothing points past where the data ended before the batch any more.
+        size = batchSize;
+        dataEnd = batchDataEnd;
+        garbage = batchGarbage;
+        int numChunks = (int) ((dataEnd + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        while (chunks.size() > numChunks)
+            chunks.remove(chunks.size() - 1);
+        endBatch();
+    }
+
+    private void endBatch() {
+        batchThread = null;
+        journal.clear();
+        journaled.clear();
+    }
+
+    private void checkWriter() {
+        checkState(batchThread == null || batchThread == Thread.currentThread(), "Another thread is writing a batch");
+    }
+
+    /** Records the slot at the given position in the journal, if a batch is open and hasn't changed it already. */
+    private void journal(byte[] hashBytes, int index, int pos) {
+        if (batchThread == null)
+            return;
+        ByteBuffer key = key(hashBytes, index);
+        if (journaled.containsKey(key))
+            return;
+        if (journal.remaining() < SLOT_SIZE) {
+            ByteBuffer newJournal = ByteBuffer.allocateDirect(journal.capacity() * 2);
+            journal.flip();
+            newJournal.put(journal);
+            journal = newJournal;
+        }
+        journaled.put(key, journal.position());
+        journal.put(hashBytes);
+        journal.putInt(index);
+        journal.putInt(slots.getInt(pos + LENGTH));
+        journal.putLong(slots.getLong(pos + OFFSET));
+    }
+
+    private static ByteBuffer key(byte[] hashBytes, int index) {
+        ByteBuffer key = ByteBuffer.wrap(Arrays.copyOf(hashBytes, 36));
+        key.putInt(INDEX, index);
+        return key;
+    }
+
+    /** Returns the slot holding the given output, or the empty slot where it would go if it isn't in the table. */
+    private int find(byte[] hashBytes, int index) {
+        ByteBuffer target = ByteBuffer.wrap(hashBytes);
+        for (int slot = home(target.getInt(0), index);; slot = (slot + 1) & mask) {
+            int pos = slot * SLOT_SIZE;
+            if (slots.getInt(pos + LENGTH) == 0)
+                return slot;
+            if (slots.getInt(pos + INDEX) == index && slots.getLong(pos) == target.getLong(0) &&
+                    slots.getLong(pos + 8) == target.getLong(8) && slots.getLong(pos + 16) == target.getLong(16) &&
+                    slots.getLong(pos + 24) == target.getLong(24))
+                return slot;
+        }
+    }
+
+    private int home(int hashPrefix, int index) {
+        // The outputs of a transaction share a hash, so spread them out by index.
+        return (hashPrefix ^ (index * 0x9E3779B9)) & mask;
+    }
+
+    /** Empties the given slot, moving back any later slots of the run that can no longer be reached past it. */
+    private void clearSlot(int hole) {
+        for (int slot = (hole + 1) & mask; slots.getInt(slot * SLOT_SIZE + LENGTH) != 0; slot = (slot + 1) & mask) {
+            int pos = slot * SLOT_SIZE;
+            int home = home(slots.getInt(pos), slots.getInt(pos + INDEX));
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                copySlot(slots, pos, slots, hole * SLOT_SIZE);
+                hole = slot;
+            }
+        }
+        int pos = hole * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i += 8)
+            slots.putLong(pos + i, 0);
+    }
+
+    private static void copySlot(ByteBuffer from, int fromPos, ByteBuffer to, int toPos) {
+        for (int i = 0; i < SLOT_SIZE; i += 8)
+            to.putLong(toPos + i, from.getLong(fromPos + i));
+    }
+
+    private void grow() {
+        int capacity = mask + 1;
+        checkState(capacity < MAX_CAPACITY, "Too many unspent outputs");
+        ByteBuffer oldSlots = slots;
+        slots = ByteBuffer.allocateDirect(capacity * 2 * SLOT_SIZE);
+        mask = capacity * 2 - 1;
+        byte[] hashBytes = new byte[32];
+        for (int pos = 0; pos < oldSlots.capacity(); pos += SLOT_SIZE) {
+            if (oldSlots.getInt(pos + LENGTH) == 0)
+                continue;
+            ByteBuffer slot = oldSlots.duplicate();
+            slot.position(pos);
+            slot.get(hashBytes);
+            copySlot(oldSlots, pos, slots, find(hashBytes, slot.getInt()) * SLOT_SIZE);
+        }
+    }
+
+    /** Returns the chunk holding the given offset. */
+    private ByteBuffer chunk(long offset) {
+        return chunks.get((int) (offset / CHUNK_SIZE));
+    }
+
+    /** Returns the offset of room for a record of the given length at the end of the data, making it if needed. */
+    private long reserve(int length) {
+        checkArgument(length <= CHUNK_SIZE, "Output too large");
+        int pos = (int) (dataEnd % CHUNK_SIZE);
+        if (pos + length > CHUNK_SIZE) {
+            // Skip the end of the full chunk.
+            garbage += CHUNK_SIZE - pos;
+            dataEnd += CHUNK_SIZE - pos;
+            pos = 0;
+        }
+        int chunkIndex = (int) (dataEnd / CHUNK_SIZE);
+        if (chunkIndex == chunks.size())
+            chunks.add(ByteBuffer.allocateDirect(Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(length) * 2)));
+        ByteBuffer chunk = chunks.get(chunkIndex);
+        if (chunk.capacity() < pos + length) {
+            int capacity = chunk.capacity();
+            while (capacity < pos + length)
+                capacity = Math.min(capacity * 2, CHUNK_SIZE);
+            ByteBuffer newChunk = ByteBuffer.allocateDirect(capacity);
+            chunk.clear();
+            newChunk.put(chunk);
+            chunks.set(chunkIndex, newChunk);
+        }
+        long offset = dataEnd;
+        dataEnd += length;
+        return offset;
+    }
+
+    /** Copies the records still in use to new chunks, if most of the data is garbage and no batch is open. */
+    private void maybeCompact() {
+        if (batchThread != null || garbage < MIN_COMPACTION_GARBAGE || garbage * 2 < dataEnd)
+            return;
+        List<ByteBuffer> oldChunks = new ArrayList<ByteBuffer>(chunks);
+        chunks.clear();
+        dataEnd = 0;
+        garbage = 0;
+        for (int pos = 0; pos < slots.capacity(); pos += SLOT_SIZE) {
+            int length = slots.getInt(pos + LENGTH);
+            if (length == 0)
+                continue;
+            long oldOffset = slots.getLong(pos + OFFSET);
+            ByteBuffer record = oldChunks.get((int) (oldOffset / CHUNK_SIZE)).duplicate();
+            record.position((int) (oldOffset % CHUNK_SIZE));
+            record.limit(record.position() + length);
+            long offset = reserve(length);
+            ByteBuffer newRecord = chunk(offset).duplicate();
+            newRecord.position((int) (offset % CHUNK_SIZE));
+            newRecord.put(record);
+            slots.putLong(pos + OFFSET, offset);
+        }
+    }
+}
@@ -19,38 +19,91 @@ package com.matthewmitchell.peercoinj.store;
 
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import com.matthewmitchell.peercoinj.core.AbstractBlockChain;
 import com.matthewmitchell.peercoinj.core.Sha256Hash;
 import com.matthewmitchell.peercoinj.core.StoredBlock;
 import com.matthewmitchell.peercoinj.core.Utils;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 
+/**
+ * <p>A ValidHashStore holds the hashes of the blocks that the trusted servers consider to be part of the main chain.
+ * Only the first 16 bytes of each (reversed) block hash are kept. The hashes are held in a memory mapped file of
+ * fixed size records, in chain order, alongside an open-addressed hash index that is rebuilt when the store is
+ * opened. This means checking a hash takes constant time regardless of where in the chain the block lands, and
+ * opening the store does not allocate an object per hash.</p>
+ *
+ * <p>As the hashes are kept in chain order, once the height of any one of them is known the height of every other
+ * is too, so the store also provides lookups by height.</p>
+ *
+ * <p>Hashes downloaded from the servers are merged into the store: those following the last hash we have in common
+ * are appended, and if the servers have re-organized since we last asked, the tail of the store is rolled back
+ * first. So only the hashes of new blocks are written out.</p>
+ *
+ * <p>The store never talks to the trusted servers on the calling thread. Instead {@link #requestSync} synchronises
+ * the hashes in the background, and the {@link AbstractBlockChain} parks blocks it can't verify yet until it has
+ * finished.</p>
+ */
 public class ValidHashStore {
 
     private static final Logger log = LoggerFactory.getLogger(ValidHashStore.class);
-	
-	private File filePath;
-	private ArrayList<byte[]> validHashesArray = new ArrayList<byte[]>();
-	int index;
-	boolean initialFind = true;
-
-	private static String GENESIS_MINI_HASH = "e327cd80c8b17efda4ea08c5877e95d8"; 
-	
+
+    /** The maximum number of hashes that will be held in the store. */
+    public static final int MAX_HASHES = 50000;
+    public static final String HEADER_MAGIC = "PVHS";
+
+    private static String GENESIS_MINI_HASH = "e327cd80c8b17efda4ea08c5877e95d8";
+
+    private static final int LOCATOR_SIZE = 100;
+    private static final int SERVER_WAIT_SECONDS = 30;
+    private static final int RETRY_SECONDS = 60;
+
+    protected final ReentrantLock lock = Threading.lock("ValidHashStore");
+
+    private final File filePath;
+    private RandomAccessFile randomAccessFile;
+    private volatile MappedByteBuffer buffer;
+
+    // The number of hashes currently held, and the height of the first one, or -1 if it is not known.
+    private int numHashes;
+    private int firstHeight;
+
+    // Open-addressed index over the records. Each slot holds the record number plus one, or zero when the slot is
+    // empty. The first four bytes of each hash are used to pick the starting slot, as hashes are already uniformly
+    // distributed there is no need to mix them any further.
+    private int[] index;
+    private int indexMask;
+
+    // Synchronisation with the servers happens on this thread, so that nobody has to wait for it whilst holding
+    // locks. The sync that has been requested but not yet started is shared by everybody that requests one.
+    private final ScheduledThreadPoolExecutor executor;
+    private SettableFuture<Void> pendingSync;
+
     public interface TrustedServersInterface {
         /**
          * Implement the retrieval of server URLs.
@@ -67,7 +120,7 @@ public class ValidHashStore {
          */
         public void markSuccess(boolean success);
     }
-    
+
     private static URL SERVER;
 
     static {
@@ -78,11 +131,11 @@ public class ValidHashStore {
     }
 
     private TrustedServersInterface servers;
-    
+
     public ValidHashStore(File filePath) throws IOException {
-        
+
         // Use hardcoded server only
-        
+
         this(filePath, new ValidHashStore.TrustedServersInterface() {
 
                 @Override
@@ -101,93 +154,225 @@ public class ValidHashStore {
                 }
 
             });
-        
-        
+
+
     }
 
+    /**
+     * Opens the store, creating the given file if it's missing. Files written by older versions, which contain the
+     * hashes back to back without a header, are converted to the current format.
+     */
     public ValidHashStore(File filePath, TrustedServersInterface servers) throws IOException {
 
-        this.filePath = filePath;
+        this.filePath = checkNotNull(filePath);
         this.servers = servers;
 
-        long len = filePath.length();
-		
-		index = 0;
-		
-		if (len == 0) {
-			// Add genesis hash and that is all
-			BufferedOutputStream file = getOutputStream();
-			writeHash(Hex.decode(GENESIS_MINI_HASH), file);
-			file.flush();
-			file.close();
-			return;
-		}
-		
-		// Load valid hashes from file.
-		
-		FileInputStream file = new FileInputStream(filePath);
-		
-		byte[] data = new byte[(int)len];
-		file.read(data, 0, (int)len);
-		
-		byte[] b = new byte[16];
-		
-		for (int x = 0; x < len; x += 16) {
-			System.arraycopy(data, x, b, 0, 16);
-			validHashesArray.add(b);
-			b = new byte[16];
-		}
-		
-		file.close();
-		
-	}
-	
-	private BufferedOutputStream getOutputStream() throws FileNotFoundException {
-		return new BufferedOutputStream(new FileOutputStream(this.filePath));
-	}
-	
-	private void writeHash(byte[] hash, BufferedOutputStream file) throws IOException {
-		
-		validHashesArray.add(hash);
-		file.write(hash, 0, 16);
-		
-	}
-	
-	private boolean isInValidHashes(byte[] cmpHash) {
-		
-		for (;index < validHashesArray.size(); index++) {
-			
-			if (Arrays.equals(validHashesArray.get(index), cmpHash)) {
-				index++;
-				initialFind = false;
-				return true;
-			}
-			
-			// Else if we are finding initial index continue, else fail.
-			if (!initialFind) return false;
-			
-		}
-		
-		return false;
-		
-	}
-	
-	private byte[] getHashFromInputStream(InputStream is) throws IOException {
-		
-		byte[] hash = new byte[16];
-		int x = 0, res;
-		
-		while (x < 16 && (res = is.read()) != -1)
-			hash[x++] = (byte) res;
-		
-		if (x != 16)
-			return null;
-		
-		return hash;
-		
-	}
-
-    private boolean downloadHashes(final URL server, final byte[] locator, final int locatorSize) {
+        final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Valid hash sync thread");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        // An executor that starts up threads when needed and shuts them down later.
+        this.executor = new ScheduledThreadPoolExecutor(1, builder.build());
+        this.executor.setKeepAliveTime(5, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        byte[] legacyHashes = null;
+        boolean exists = filePath.exists() && filePath.length() > 0;
+
+        randomAccessFile = new RandomAccessFile(filePath, "rw");
+
+        try {
+
+            if (exists && !hasHeader(randomAccessFile)) {
+                // Read the hashes of the old format so that they can be written back as fixed records. Only the
+                // most recent hashes are kept if there are too many.
+                int len = (int) (randomAccessFile.length() - randomAccessFile.length() % RECORD_SIZE);
+                int skip = Math.max(0, len - MAX_HASHES * RECORD_SIZE);
+                legacyHashes = new byte[len - skip];
+                randomAccessFile.seek(skip);
+                randomAccessFile.readFully(legacyHashes);
+                log.info("Converting {} valid hashes to the indexed format", legacyHashes.length / RECORD_SIZE);
+            }
+
+            if (!exists || legacyHashes != null)
+                randomAccessFile.setLength(getFileSize());
+
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, getFileSize());
+
+            lock.lock();
+            try {
+                if (legacyHashes != null) {
+                    writeHeader();
+                    // The height of the first hash is not known until the server is next consulted.
+                    buffer.position(FILE_PROLOGUE_BYTES);
+                    buffer.put(legacyHashes);
+                    setNumHashes(legacyHashes.length / RECORD_SIZE, -1);
+                } else if (!exists) {
+                    // Add genesis hash and that is all
+                    writeHeader();
+                    buffer.position(FILE_PROLOGUE_BYTES);
+                    buffer.put(Hex.decode(GENESIS_MINI_HASH));
+                    setNumHashes(1, 0);
+                } else {
+                    numHashes = buffer.getInt(4);
+                    firstHeight = buffer.getInt(8);
+                    if (numHashes < 0 || numHashes > MAX_HASHES)
+                        throw new IOException("Corrupted valid hash store: bad number of hashes " + numHashes);
+                }
+                rebuildIndex();
+            } finally {
+                lock.unlock();
+            }
+
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+
+    }
+
+    /** Returns the size in bytes of the file that is used to store the hashes. */
+    public int getFileSize() {
+        return FILE_PROLOGUE_BYTES + RECORD_SIZE * MAX_HASHES;
+    }
+
+    private static boolean hasHeader(RandomAccessFile file) throws IOException {
+        if (file.length() != FILE_PROLOGUE_BYTES + RECORD_SIZE * MAX_HASHES)
+            return false;
+        byte[] header = new byte[4];
+        file.seek(0);
+        file.readFully(header);
+        return new String(header, "US-ASCII").equals(HEADER_MAGIC);
+    }
+
+    private void writeHeader() throws IOException {
+        buffer.position(0);
+        buffer.put(HEADER_MAGIC.getBytes("US-ASCII"));
+    }
+
+    private void setNumHashes(int numHashes, int firstHeight) {
+        this.numHashes = numHashes;
+        this.firstHeight = firstHeight;
+        buffer.putInt(4, numHashes);
+        buffer.putInt(8, firstHeight);
+    }
+
+    /** Rebuilds the index over all of the records, sized so that it is never more than half full. */
+    private void rebuildIndex() {
+        checkState(lock.isHeldByCurrentThread());
+        int capacity = Integer.highestOneBit(Math.max(numHashes, 512) * 2 - 1) << 1;
+        if (index == null || index.length != capacity)
+            index = new int[capacity];
+        else
+            Arrays.fill(index, 0);
+        indexMask = capacity - 1;
+        for (int record = 0; record < numHashes; record++)
+            indexRecord(record);
+    }
+
+    /** Adds the given record to the index, which must have room for it. */
+    private void indexRecord(int record) {
+        int offset = FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+        long high = buffer.getLong(offset);
+        long low = buffer.getLong(offset + 8);
+        // Only the first occurrence of a hash is indexed.
+        if (findRecord(high, low) != -1)
+            return;
+        int slot = (int) (high >>> 32) & indexMask;
+        while (index[slot] != 0)
+            slot = (slot + 1) & indexMask;
+        index[slot] = record + 1;
+    }
+
+    /** Returns the record holding the given 16 byte hash, given as two big endian longs, or -1 if it isn't held. */
+    private int findRecord(long high, long low) {
+        final MappedByteBuffer buffer = this.buffer;
+        for (int slot = (int) (high >>> 32) & indexMask;; slot = (slot + 1) & indexMask) {
+            int entry = index[slot];
+            if (entry == 0)
+                return -1;
+            int offset = FILE_PROLOGUE_BYTES + (entry - 1) * RECORD_SIZE;
+            if (buffer.getLong(offset) == high && buffer.getLong(offset + 8) == low)
+                return entry - 1;
+        }
+    }
+
+    /** Reads the first 16 bytes of the reversed hash as a big endian long, starting at the given reversed offset. */
+    private static long readReversedLong(byte[] hashBytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (hashBytes[31 - offset - i] & 0xFFL);
+        return result;
+    }
+
+    private int findRecord(Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        return findRecord(readReversedLong(bytes, 0), readReversedLong(bytes, 8));
+    }
+
+    /**
+     * Returns the height of the given hash according to the trusted servers, or -1 if the hash is not held or its
+     * height is not yet known.
+     */
+    public int getHeight(Sha256Hash hash) {
+        lock.lock();
+        try {
+            int record = findRecord(hash);
+            if (record == -1 || firstHeight == -1)
+                return -1;
+            return firstHeight + record;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the last hash held in the store, or -1 if it is not yet known. */
+    public int getHighestHeight() {
+        lock.lock();
+        try {
+            if (firstHeight == -1)
+                return -1;
+            return firstHeight + numHashes - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the record holding the hash at the given height, or -1 if there is no such hash. */
+    private int getRecordForHeight(int height) {
+        if (firstHeight == -1 || height < firstHeight || height - firstHeight >= numHashes)
+            return -1;
+        return height - firstHeight;
+    }
+
+    /**
+     * Returns true if the hash at the given height is the given hash. False is returned if the store does not hold
+     * a hash at that height.
+     */
+    public boolean isHashAtHeight(Sha256Hash hash, int height) {
+        lock.lock();
+        try {
+            int record = getRecordForHeight(height);
+            if (record == -1)
+                return false;
+            byte[] bytes = hash.getBytes();
+            int offset = FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+            return buffer.getLong(offset) == readReversedLong(bytes, 0)
+                && buffer.getLong(offset + 8) == readReversedLong(bytes, 8);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Downloads the hashes that follow the locator from the given server, returning them back to back. Returns null
+     * if the server failed.
+     */
+    @Nullable
+    private byte[] downloadHashes(final URL server, final byte[] locator, final int locatorSize) {
 
         try {
 
@@ -198,7 +383,7 @@ public class ValidHashStore {
             connection.setReadTimeout(30000);
             connection.setRequestMethod("POST");
             connection.setRequestProperty("Content-Type", "application/octet-stream");
-            connection.setRequestProperty("Accept-Encoding", ""); 
+            connection.setRequestProperty("Accept-Encoding", "");
             connection.setDoOutput(true);
             java.io.OutputStream os = connection.getOutputStream();
             os.write(locator, 0, locatorSize);
@@ -211,103 +396,312 @@ public class ValidHashStore {
 
                 if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
 
+                    // Read the new hashes. Ensure a limit of 50,000 hashes.
                     InputStream is = new BufferedInputStream(connection.getInputStream());
+                    return ByteStreams.toByteArray(ByteStreams.limit(is, MAX_HASHES * RECORD_SIZE));
 
-                    // We are going to replace the valid hashes with the new ones
+                }
 
-                    BufferedOutputStream file = getOutputStream();
-                    validHashesArray.clear();
-                    index = 0;
-                    initialFind = true;
+            } finally {
+                connection.disconnect();
+            }
 
-                    // Write new hashes. Ensure a limit of 50,000 hashes.
+        } catch (IOException e) {
+            log.warn("Got IO error when receiving valid block hashes from " + server.toString(), e);
+        }
 
-                    byte[] b;
+        return null;
 
-                    for (int x = 0; (b = getHashFromInputStream(is)) != null && x < 50000; x++)
-                        writeHash(b, file);
+    }
 
-                    file.flush();
-                    file.close();
+    /**
+     * Merges the downloaded hashes into the store. The server starts the hashes it returns from the most recent block
+     * in the locator that it knows about. If we hold that hash as well, only the hashes that follow it and differ from
+     * ours are written, which after a re-organize means the tail of the store is cut off and replaced. Otherwise the
+     * downloaded hashes replace all of ours.
+     */
+    private void mergeHashes(byte[] hashes, byte[] locator, int locatorSize, int locatorHeight) {
+        lock.lock();
+        try {
+            int count = hashes.length / RECORD_SIZE;
+            if (count == 0)
+                return;
+
+            int ancestor = findRecord(readLong(hashes, 0), readLong(hashes, 8));
+            int ancestorHeight = findLocatorHeight(hashes, locator, locatorSize, locatorHeight);
+
+            if (ancestor == -1) {
+                log.info("Replacing valid hashes with {} new hashes", count);
+                buffer.position(FILE_PROLOGUE_BYTES);
+                buffer.put(hashes, 0, count * RECORD_SIZE);
+                setNumHashes(count, ancestorHeight);
+                rebuildIndex();
+                return;
+            }
 
-                    return false;
+            // Skip over the hashes that we already hold.
+            int matching = 1;
+            while (matching < count && ancestor + matching < numHashes && recordEquals(ancestor + matching, hashes, matching))
+                matching++;
 
-                }
+            int firstHeight = ancestorHeight != -1 ? ancestorHeight - ancestor : this.firstHeight;
 
-            } finally {
-                connection.disconnect();
+            if (matching == count) {
+                // We already have everything the server sent us.
+                setNumHashes(numHashes, firstHeight);
+                return;
             }
 
-        } catch (IOException e) {
-            log.warn("Got IO error when receiving valid block hashes from " + server.toString(), e);
+            // Everything we hold after the hashes that matched is replaced by the rest of the downloaded hashes.
+            int keep = ancestor + matching;
+            boolean truncated = keep < numHashes;
+            if (truncated)
+                log.info("Valid hashes re-organized, rolling back {} hashes", numHashes - keep);
+
+            // Make room by dropping the oldest hashes if there are too many. Drop at least a quarter of the store so
+            // that this doesn't happen on every new block.
+            int drop = 0;
+            if (keep + count - matching > MAX_HASHES)
+                drop = Math.min(keep, Math.max(keep + count - matching - MAX_HASHES, MAX_HASHES / 4));
+            if (drop > 0) {
+                ByteBuffer kept = buffer.duplicate();
+                kept.position(FILE_PROLOGUE_BYTES + drop * RECORD_SIZE);
+                kept.limit(FILE_PROLOGUE_BYTES + keep * RECORD_SIZE);
+                buffer.position(FILE_PROLOGUE_BYTES);
+                buffer.put(kept);
+                keep -= drop;
+                if (firstHeight != -1)
+                    firstHeight += drop;
+            }
+
+            // Append the new hashes.
+            buffer.position(FILE_PROLOGUE_BYTES + keep * RECORD_SIZE);
+            buffer.put(hashes, matching * RECORD_SIZE, (count - matching) * RECORD_SIZE);
+
+            int newNumHashes = keep + count - matching;
+            setNumHashes(newNumHashes, firstHeight);
+            if (drop > 0 || truncated || newNumHashes * 2 > index.length) {
+                rebuildIndex();
+            } else {
+                for (int record = keep; record < newNumHashes; record++)
+                    indexRecord(record);
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        return true;
+    private boolean recordEquals(int record, byte[] hashes, int hashIndex) {
+        int offset = FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+        return buffer.getLong(offset) == readLong(hashes, hashIndex * RECORD_SIZE)
+            && buffer.getLong(offset + 8) == readLong(hashes, hashIndex * RECORD_SIZE + 8);
+    }
 
+    /**
+     * The server starts the hashes it returns from a block we have given in the locator, so the height of the first
+     * hash can be found by looking for it in the locator. Returns -1 if it is not in the locator.
+     */
+    private static int findLocatorHeight(byte[] hashes, byte[] locator, int locatorSize, int locatorHeight) {
+        for (int offset = 0; offset < locatorSize; offset += 32) {
+            if (readLong(hashes, 0) == readLong(locator, offset) && readLong(hashes, 8) == readLong(locator, offset + 8))
+                return locatorHeight - offset / 32;
+        }
+        return -1;
     }
 
-    public boolean isValidHash(Sha256Hash hash, AbstractBlockChain blockChain, boolean waitForServer) throws IOException {
+    /** Reads a big endian long from the given offset. */
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFFL);
+        return result;
+    }
 
-        // Get 16 bytes only
-        byte[] cmpHash = new byte[16];
-        System.arraycopy(Utils.reverseBytes(hash.getBytes()), 0, cmpHash, 0, 16);
+    /**
+     * Returns true if the trusted servers consider the hash to be valid according to the hashes already held. This
+     * never consults the servers, if it returns false {@link #requestSync(AbstractBlockChain, boolean)} should be
+     * used to synchronise with them in the background. Whether the hashes held can be relied upon at all is given
+     * separately by {@link #isInvalidated()}.
+     */
+    public boolean isValidHash(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return findRecord(hash) != -1;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // First check the existing hashes
-        if (!servers.invalidated() && isInValidHashes(cmpHash))
-            return true;
+    /**
+     * Returns true if the trusted servers have invalidated the server the hashes held were received from, in which
+     * case they shouldn't be relied upon until they have been synchronised again.
+     */
+    public boolean isInvalidated() {
+        return servers.invalidated();
+    }
 
-        // Nope. We need to ensure the valid hashes is synchronised with the server
+    /**
+     * Requests that the valid hashes are synchronised with the servers on a background thread, using a locator from
+     * the chain head of the given chain. Requests made before the synchronisation starts share it, so this can be
+     * called freely. If the servers fail, synchronisation is retried until it succeeds.
+     *
+     * @param waitForServer True if the servers should be given some time to see a new block before they are asked.
+     * @return A future that completes once hashes have been received from a server, which was asked after this
+     * call was made.
+     */
+    public ListenableFuture<Void> requestSync(AbstractBlockChain blockChain, boolean waitForServer) {
+        checkNotNull(blockChain);
+        lock.lock();
+        try {
+            if (pendingSync == null) {
+                pendingSync = SettableFuture.create();
+                // If waitForServer is true, first wait a while in case the server hasn't received or processed this
+                // block yet. We assume the server is well connected and 30 seconds would therefore be more than
+                // enough in most cases.
+                scheduleSync(blockChain, pendingSync, waitForServer ? SERVER_WAIT_SECONDS : 0);
+            }
+            return pendingSync;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleSync(final AbstractBlockChain blockChain, final SettableFuture<Void> result, int delaySeconds) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sync(blockChain, result);
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    // Runs on the sync thread.
+    private void sync(AbstractBlockChain blockChain, final SettableFuture<Void> result) {
+
+        lock.lock();
+        try {
+            // Requests from now on will need another sync, as the locator is about to be taken.
+            if (pendingSync == result)
+                pendingSync = null;
+        } finally {
+            lock.unlock();
+        }
 
         // Create POST data locator
 
-        byte[] locator = new byte[3200];
+        byte[] locator = new byte[LOCATOR_SIZE * 32];
 
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
+        BlockStore store = blockChain.getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
 
         StoredBlock cursor = chainHead;
         int offset = 0;
 
-        for (int i = 100; cursor != null && i > 0; i--, offset += 32) {
-            System.arraycopy(Utils.reverseBytes(cursor.getHeader().getHash().getBytes()), 0, locator, offset, 32);
-
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                throw new RuntimeException(e);
+        try {
+            List<StoredBlock> blocks = null;
+            if (store instanceof HeightIndexedBlockStore) {
+                int headHeight = chainHead.getHeight();
+                blocks = ((HeightIndexedBlockStore) store).getByHeight(Math.max(0, headHeight - LOCATOR_SIZE + 1), headHeight + 1);
+                // The store may have moved on from the head we were given, in which case walk back from it instead.
+                if (blocks.isEmpty() || !blocks.get(blocks.size() - 1).getHeader().getHash().equals(chainHead.getHeader().getHash()))
+                    blocks = null;
+            }
+            if (blocks != null) {
+                for (int i = blocks.size() - 1; i >= 0; i--, offset += 32)
+                    System.arraycopy(Utils.reverseBytes(blocks.get(i).getHeader().getHash().getBytes()), 0, locator, offset, 32);
+            } else {
+                for (int i = LOCATOR_SIZE; cursor != null && i > 0; i--, offset += 32) {
+                    System.arraycopy(Utils.reverseBytes(cursor.getHeader().getHash().getBytes()), 0, locator, offset, 32);
+                    cursor = cursor.getPrev(store);
+                }
             }
+        } catch (BlockStoreException e) {
+            log.error("Could not create locator for valid block hashes", e);
+            retrySync(blockChain, result);
+            return;
         }
 
         // Now download hashes from server.
 
-        // But if waitForServer is true, first wait a while in case the server hasn't received or processed this block yet.
-        // We assume the server is well connected and 30 seconds would therefore be more than enough in most cases.
-        if (waitForServer)
-            Utils.sleep(30000);
-
-        URL server;
+        byte[] hashes = null;
         boolean failed = false;
 
-        do {
+        while (hashes == null) {
 
             if (failed)
                 servers.markSuccess(false);
 
-            server = servers.getNext(failed);
+            URL server = servers.getNext(failed);
             if (server == null)
-                throw new IOException("No more servers to try for valid block hashes.");
+                break;
+
+            hashes = downloadHashes(server, locator, offset);
+            failed = hashes == null;
+
+        }
 
-        } while (failed = downloadHashes(server, locator, offset));
+        if (hashes == null) {
+            log.warn("No more servers to try for valid block hashes, retrying in {} seconds", RETRY_SECONDS);
+            retrySync(blockChain, result);
+            return;
+        }
 
         servers.markSuccess(true);
+        mergeHashes(hashes, locator, offset, chainHead.getHeight());
+        result.set(null);
+
+    }
 
-        // Lastly check valid hashes again
-        return isInValidHashes(cmpHash);
+    private void retrySync(AbstractBlockChain blockChain, final SettableFuture<Void> result) {
+        lock.lock();
+        try {
+            if (buffer == null)
+                return;
+            if (pendingSync == null) {
+                pendingSync = result;
+                scheduleSync(blockChain, result, RETRY_SECONDS);
+            } else {
+                // A sync that was requested since is yet to start, which will do just as well.
+                pendingSync.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.set(null);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    /** Flushes the hashes to disk and closes the store. */
+    public void close() {
+        lock.lock();
+        try {
+            if (buffer == null)
+                return;
+            executor.shutdownNow();
+            buffer.force();
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            randomAccessFile.close();
+        } catch (IOException e) {
+            log.warn("Got IO error when closing the valid hash store", e);
+        } finally {
+            lock.unlock();
+        }
     }
-	
-	public void close(){
-		// Dummy method in case we add/remove it.
-	}
-	
+
+    // File format:
+    //   4 header bytes = "PVHS"
+    //   4 bytes for the number of hashes held
+    //   4 bytes for the height of the first hash, or -1 if it is not known
+    //   4 unused bytes
+    //
+    // For each hash (16 bytes)
+    //   the first 16 bytes of the reversed block hash
+    //
+    // The hashes are in chain order, so the record of the hash at a given height is (height - first height).
+    protected static final int FILE_PROLOGUE_BYTES = 16;
+    protected static final int RECORD_SIZE = 16;
+
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.crypto.TransactionSignature;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.script.Script;
+import com.matthewmitchell.peercoinj.script.ScriptBuilder;
+import com.matthewmitchell.peercoinj.script.ScriptChunk;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.matthewmitchell.peercoinj.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class BatchSignatureVerifierTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void verifiesStandardInputs() throws Exception {
+        ECKey key = new ECKey();
+        Transaction prevTx = new Transaction(params);
+        prevTx.addOutput(COIN, key.toAddress(params));
+        prevTx.addOutput(COIN, key);
+        prevTx.addOutput(COIN, key.toAddress(params));
+
+        Transaction tx = new Transaction(params);
+        tx.addOutput(COIN, new ECKey().toAddress(params));
+        // Each signature only covers its own input, so later inputs don't invalidate earlier ones.
+        for (TransactionOutput output : prevTx.getOutputs())
+            tx.addSignedInput(output, key, Transaction.SigHash.ALL, true);
+        // Replace the signature of the last input with one over another hash.
+        TransactionSignature badSig = new TransactionSignature(key.sign(Sha256Hash.create(new byte[] {1})),
+                Transaction.SigHash.ALL, true);
+        tx.getInput(2).setScriptSig(ScriptBuilder.createInputScript(badSig, key));
+
+        Transaction txCopy = new Transaction(params, tx.peercoinSerialize());
+        BatchSignatureVerifier verifier = new BatchSignatureVerifier(MoreExecutors.sameThreadExecutor());
+        for (int i = 0; i < 2; i++) {
+            Script scriptPubKey = prevTx.getOutput(i).getScriptPubKey();
+            verifier.add(tx.getInput(i).getScriptSig().getStandardSignatureCheck(txCopy, i, scriptPubKey));
+        }
+        assertEquals(2, verifier.size());
+        assertNull(verifier.verify());
+        assertEquals(0, verifier.size());
+
+        for (int i = 0; i < 3; i++) {
+            Script scriptPubKey = prevTx.getOutput(i).getScriptPubKey();
+            verifier.add(tx.getInput(i).getScriptSig().getStandardSignatureCheck(txCopy, i, scriptPubKey));
+        }
+        VerificationException e = verifier.verify();
+        assertNotNull(e);
+        assertEquals("Invalid signature for input 2 of " + tx.getHash(), e.getMessage());
+
+        // A wrong key is caught before the signature is needed.
+        try {
+            tx.getInput(0).getScriptSig().getStandardSignatureCheck(txCopy, 0,
+                    ScriptBuilder.createOutputScript(new ECKey().toAddress(params)));
+            fail();
+        } catch (ScriptException expected) {
+        }
+    }
+
+    @Test
+    public void stackSizeLimit() throws Exception {
+        ECKey key = new ECKey();
+        Transaction prevTx = new Transaction(params);
+        prevTx.addOutput(COIN, key.toAddress(params));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(COIN, new ECKey().toAddress(params));
+        tx.addSignedInput(prevTx.getOutput(0), key, Transaction.SigHash.ALL, true);
+        Script scriptPubKey = prevTx.getOutput(0).getScriptPubKey();
+        List<ScriptChunk> signature = tx.getInput(0).getScriptSig().getChunks();
+
+        // Padding the signature with pushes is valid until the stack would go over 1000 items whilst running the
+        // scriptPubKey, which pushes two more. Both ways of checking the input have to agree.
+        for (int padding = 995; padding <= 997; padding++) {
+            ScriptBuilder builder = new ScriptBuilder();
+            for (int i = 0; i < padding; i++)
+                builder.data(new byte[] {0x42});
+            for (ScriptChunk chunk : signature)
+                builder.addChunk(chunk);
+            Script scriptSig = builder.build();
+            boolean valid = padding < 997;
+            try {
+                scriptSig.correctlySpends(tx, 0, scriptPubKey);
+                assertTrue(valid);
+            } catch (ScriptException e) {
+                assertFalse(valid);
+            }
+            try {
+                BatchSignatureVerifier verifier = new BatchSignatureVerifier(MoreExecutors.sameThreadExecutor());
+                verifier.add(scriptSig.getStandardSignatureCheck(tx, 0, scriptPubKey));
+                assertNull(verifier.verify());
+                assertTrue(valid);
+            } catch (ScriptException e) {
+                assertFalse(valid);
+            }
+        }
+    }
+
+    @Test
+    public void nonStandardInputsAreNotDeferred() throws Exception {
+        ECKey key = new ECKey();
+        Transaction prevTx = new Transaction(params);
+        prevTx.addOutput(COIN, ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(key)));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(COIN, new ECKey().toAddress(params));
+        tx.addInput(prevTx.getOutput(0));
+        Script scriptPubKey = prevTx.getOutput(0).getScriptPubKey();
+        assertNull(tx.getInput(0).getScriptSig().getStandardSignatureCheck(tx, 0, scriptPubKey));
+    }
+}
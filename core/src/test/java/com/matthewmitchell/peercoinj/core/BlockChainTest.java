@@ -0,0 +1,183 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.core;
+
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class BlockChainTest {
+    private NetworkParameters params;
+    private BlockChain chain;
+    private Address coinbaseTo;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        chain = new BlockChain(params, new MemoryBlockStore(params), null);
+        coinbaseTo = new ECKey().toAddress(params);
+    }
+
+    private List<Block> makeBlocks(Block prev, int count) {
+        List<Block> blocks = new ArrayList<Block>(count);
+        for (int i = 0; i < count; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void connectsOrphansOutOfOrder() throws Exception {
+        List<Block> blocks = makeBlocks(params.getGenesisBlock(), 10);
+        List<Block> orphans = new ArrayList<Block>(blocks.subList(1, blocks.size()));
+        Collections.reverse(orphans);
+        for (Block block : orphans) {
+            assertFalse(chain.add(block));
+            assertTrue(chain.isOrphan(block.getHash()));
+        }
+        assertEquals(0, chain.getBestChainHeight());
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(9).getHash()));
+
+        // Adding the missing parent connects all of its descendants.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(10, chain.getBestChainHeight());
+        assertEquals(blocks.get(9), chain.getChainHead().getHeader());
+        assertFalse(chain.isOrphan(blocks.get(9).getHash()));
+        assertNull(chain.getOrphanRoot(blocks.get(9).getHash()));
+    }
+
+    @Test
+    public void connectsOrphanForks() throws Exception {
+        Block b1 = params.getGenesisBlock().createNextBlock(coinbaseTo);
+        List<Block> forkA = makeBlocks(b1, 2);
+        List<Block> forkB = makeBlocks(b1, 3);
+        for (Block block : forkA)
+            assertFalse(chain.add(block));
+        for (Block block : forkB)
+            assertFalse(chain.add(block));
+        assertTrue(chain.add(b1));
+        assertEquals(4, chain.getBestChainHeight());
+        assertEquals(forkB.get(2), chain.getChainHead().getHeader());
+        assertTrue(chain.drainOrphanBlocks().isEmpty());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOrphans() throws Exception {
+        List<Block> blocks = makeBlocks(params.getGenesisBlock(), AbstractBlockChain.MAX_ORPHAN_BLOCKS + 2);
+        for (Block block : blocks.subList(1, blocks.size()))
+            assertFalse(chain.add(block));
+        // The oldest orphan was thrown away to make room.
+        assertFalse(chain.isOrphan(blocks.get(1).getHash()));
+        assertTrue(chain.isOrphan(blocks.get(2).getHash()));
+        assertEquals(blocks.get(2), chain.getOrphanRoot(blocks.get(blocks.size() - 1).getHash()));
+
+        // The parent now only connects itself, as the next block is missing.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(1, chain.getBestChainHeight());
+        assertEquals(AbstractBlockChain.MAX_ORPHAN_BLOCKS, chain.drainOrphanBlocks().size());
+    }
+
+    @Test
+    public void headersVerifiedUpFrontAreNotVerifiedAgain() throws Exception {
+        List<Block> blocks = makeBlocks(params.getGenesisBlock(), 3);
+        chain.verifyHeaders(blocks);
+        for (Block block : blocks)
+            assertTrue(block.isHeaderVerified());
+
+        // Changing a header after it was verified means it is checked again when added.
+        Block last = blocks.get(2);
+        last.setTime(Utils.currentTimeSeconds() + 3 * 60 * 60);
+        assertFalse(last.isHeaderVerified());
+        assertTrue(chain.add(blocks.get(0)));
+        assertTrue(chain.add(blocks.get(1)));
+        try {
+            chain.add(last);
+            fail();
+        } catch (VerificationException e) {
+        }
+        assertEquals(2, chain.getBestChainHeight());
+        // Adding a block again is answered without verifying it.
+        assertTrue(chain.add(blocks.get(1)));
+    }
+
+    @Test
+    public void concurrentAddsOfMixedHeaders() throws Exception {
+        // Enough headers for verifyHeaders to split them over several threads when there are several cores. Every
+        // tenth block is followed by a header from too far in the future that hangs off it.
+        List<Block> blocks = makeBlocks(params.getGenesisBlock(), 300);
+        final List<Block> mixed = new ArrayList<Block>();
+        int numInvalid = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            mixed.add(blocks.get(i));
+            if (i % 10 == 0) {
+                Block invalid = blocks.get(i).createNextBlock(coinbaseTo);
+                invalid.setTime(Utils.currentTimeSeconds() + 3 * 60 * 60);
+                mixed.add(invalid);
+                numInvalid++;
+            }
+        }
+        try {
+            chain.verifyHeaders(mixed);
+            fail();
+        } catch (VerificationException e) {
+        }
+
+        // Several threads verify the same batch and add it to the chain at once.
+        int numThreads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < numThreads; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    try {
+                        chain.verifyHeaders(mixed);
+                        fail();
+                    } catch (VerificationException e) {
+                    }
+                    int rejected = 0;
+                    for (Block block : mixed) {
+                        try {
+                            chain.add(block);
+                        } catch (VerificationException e) {
+                            rejected++;
+                        }
+                    }
+                    return rejected;
+                }
+            }));
+        }
+        executor.shutdown();
+        // Each thread rejects exactly the invalid headers, and the valid ones all end up in the chain.
+        for (Future<Integer> result : results)
+            assertEquals(numInvalid, (int) result.get());
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+        assertEquals(blocks.get(blocks.size() - 1), chain.getChainHead().getHeader());
+    }
+}
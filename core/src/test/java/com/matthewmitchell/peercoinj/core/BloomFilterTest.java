@@ -19,10 +19,13 @@ package com.matthewmitchell.peercoinj.core;
 
 import com.matthewmitchell.peercoinj.core.Address;
 import com.matthewmitchell.peercoinj.params.MainNetParams;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
 import com.matthewmitchell.peercoinj.wallet.KeyChainGroup;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
 
 import static com.matthewmitchell.peercoinj.core.Utils.HEX;
 import static org.junit.Assert.*;
@@ -66,4 +69,93 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(HEX.decode("03ce4299050000000100008002"), filter.peercoinSerialize()));
     }
 
+    @Test
+    public void onePassHashMatchesPerFunctionHash() {
+        Random random = new Random(42);
+        byte[] data = new byte[1000];
+        int[] words = new int[32];
+        int[] bitIndexes = new int[20];
+        for (int length = 0; length < 100; length++) {
+            byte[] object = new byte[length];
+            random.nextBytes(object);
+            long tweak = random.nextInt() & 0xFFFFFFFFL;
+            BloomFilter.murmurHash3(object, tweak, data.length * 8, words, bitIndexes);
+            for (int i = 0; i < bitIndexes.length; i++)
+                assertEquals(BloomFilter.murmurHash3(data, tweak, i, object), bitIndexes[i]);
+        }
+    }
+
+    @Test
+    public void snapshot() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        byte[] first = HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8");
+        byte[] second = HEX.decode("b5a2c786d9ef4658287ced5914b37a1b4aa32eee");
+        filter.insert(first);
+        BloomFilter.Snapshot snapshot = filter.snapshot();
+        filter.insert(second);
+        assertTrue(snapshot.contains(first));
+        assertFalse(snapshot.contains(second));
+
+        BloomFilter.Snapshot updated = snapshot.withInserted(Collections.singletonList(second));
+        assertTrue(updated.contains(second));
+        assertFalse(snapshot.contains(second));
+        assertSame(updated, updated.withInserted(Collections.singletonList(first)));
+    }
+
+    @Test
+    public void updaterCopiesOnMatch() {
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key = new ECKey();
+        BloomFilter filter = new BloomFilter(10, 0.0001, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.insert(key);
+        BloomFilter.Updater updater = new BloomFilter.Updater(filter.snapshot());
+        BloomFilter.Snapshot before = updater.get();
+
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Coin.COIN, key.toAddress(params));
+        byte[] outPoint = tx.getOutput(0).getOutPointFor().peercoinSerialize();
+        assertTrue(updater.applyAndUpdate(tx));
+        assertNotSame(before, updater.get());
+        assertTrue(updater.get().contains(outPoint));
+        assertFalse(before.contains(outPoint));
+        assertTrue(filter.applyAndUpdate(tx));
+        assertEquals(filter.snapshot().contains(outPoint), updater.get().contains(outPoint));
+
+        Transaction other = new Transaction(params);
+        other.addOutput(Coin.COIN, new ECKey().toAddress(params));
+        assertFalse(updater.applyAndUpdate(other));
+    }
+
+    @Test
+    public void applyBlockInChunks() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key = new ECKey();
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        Transaction prev = block.getTransactions().get(0);
+        for (int i = 0; i < 600; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addInput(prev.getOutput(0));
+            tx.addOutput(new TransactionOutput(params, tx, Coin.CENT, new ECKey().toAddress(params)));
+            if (i % 50 == 0)
+                tx.addOutput(new TransactionOutput(params, tx, Coin.CENT, key));
+            block.addTransaction(tx);
+            prev = tx;
+        }
+        BloomFilter chunked = new BloomFilter(100, 0.001, 0);
+        chunked.insert(key);
+        BloomFilter whole = new BloomFilter(100, 0.001, 0);
+        whole.insert(key);
+
+        FilteredBlock filteredBlock = chunked.applyAndUpdate(block, 4);
+        int matched = 0;
+        for (Transaction tx : block.getTransactions()) {
+            if (whole.applyAndUpdate(tx)) {
+                assertTrue(filteredBlock.getAssociatedTransactions().containsKey(tx.getHash()));
+                matched++;
+            }
+        }
+        assertEquals(12, matched);
+        assertEquals(matched, filteredBlock.getAssociatedTransactions().size());
+        assertEquals(whole, chunked);
+    }
 }
@@ -40,6 +40,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.math.ec.ECPoint;
 
 import java.io.InputStream;
 import java.math.BigInteger;
@@ -441,6 +442,39 @@ public class ECKeyTest {
         }
     }
 
+    @Test
+    public void pubKeyCache() throws Exception {
+        ECPointCache cache = new ECPointCache(2);
+        ECKey key1 = new ECKey(), key2 = new ECKey(), key3 = new ECKey();
+        byte[] pub = key1.getPubKey();
+        ECPoint point = cache.decode(pub);
+        assertEquals(key1.getPubKeyPoint(), point);
+        // The cache keeps its own copy of the encoding.
+        pub[1] ^= 1;
+        assertSame(point, cache.decode(key1.getPubKey()));
+        assertEquals(1, cache.getStats().missCount());
+        assertEquals(1, cache.getStats().hitCount());
+        // Compressed and uncompressed encodings are different points.
+        assertFalse(cache.decode(key1.decompress().getPubKey()).isCompressed());
+        cache.decode(key2.getPubKey());
+        cache.decode(key3.getPubKey());
+        assertTrue(cache.size() <= 2);
+        try {
+            cache.decode(new byte[] {2, 1});
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // Verification goes through the cache used by ECKey.
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ECKey.ECDSASignature sig = key1.sign(hash);
+        long hits = ECKey.getPubKeyCache().getStats().hitCount();
+        assertTrue(ECKey.verify(hash.getBytes(), sig, key1.getPubKey()));
+        assertTrue(ECKey.verify(hash.getBytes(), sig, key1.getPubKey()));
+        assertTrue(ECKey.getPubKeyCache().getStats().hitCount() > hits);
+        assertTrue(ECKey.fromPublicOnly(key1.getPubKey()).verify(hash, sig));
+    }
+
     private static boolean checkSomeBytesAreNonZero(byte[] bytes) {
         if (bytes == null) return false;
         for (byte b : bytes) if (b != 0) return true;
@@ -19,14 +19,15 @@ package com.matthewmitchell.peercoinj.core;
 import com.matthewmitchell.peercoinj.params.UnitTestParams;
 import com.matthewmitchell.peercoinj.testing.FakeTxBuilder;
 import com.matthewmitchell.peercoinj.utils.BriefLogFormatter;
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.net.InetAddress;
 
 import static com.matthewmitchell.peercoinj.core.Coin.COIN;
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class MemoryPoolTest {
     private NetworkParameters params = UnitTestParams.get();
@@ -44,6 +45,11 @@ public class MemoryPoolTest {
         address3 = new PeerAddress(InetAddress.getByAddress(new byte[] { 127, 0, 0, 3 }));
     }
 
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
     @Test
     public void canonicalInstance() throws Exception {
         MemoryPool pool = new MemoryPool();
@@ -76,4 +82,104 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void expiry() throws Exception {
+        Utils.setMockClock();
+        MemoryPool pool = new MemoryPool(MemoryPool.DEFAULT_MAX_BYTES, 60 * 1000);
+        pool.seen(tx1, address1);
+        pool.seen(Sha256Hash.create(new byte[] { 1 }), address1);
+        Utils.rollMockClock(59);
+        assertEquals(tx1, pool.get(tx1.getHash()));
+        Utils.rollMockClock(1);
+        // Expired entries are forgotten straight away, whatever else holds on to the transaction.
+        assertNull(pool.get(tx1.getHash()));
+        assertFalse(pool.maybeWasSeen(tx1.getHash()));
+        assertEquals(0, pool.numBroadcastPeers(tx1.getHash()));
+        pool.seen(tx2.getHash(), address2);
+        assertEquals(1, pool.numBroadcastPeers(tx2.getHash()));
+    }
+
+    @Test
+    public void byteBudget() throws Exception {
+        MemoryPool pool = new MemoryPool(64 * 1024, MemoryPool.DEFAULT_EXPIRY_MILLIS);
+        Sha256Hash first = Sha256Hash.create(new byte[] { 0 });
+        pool.seen(first, address1);
+        for (int i = 1; i < 10000; i++)
+            pool.seen(Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8) }), address1);
+        assertTrue(pool.getSizeInBytes() <= 64 * 1024);
+        // The oldest announcements made way for the newer ones.
+        assertFalse(pool.maybeWasSeen(first));
+        assertTrue(pool.maybeWasSeen(Sha256Hash.create(new byte[] { (byte) 9999, (byte) (9999 >> 8) })));
+    }
+
+    @Test
+    public void broadcastByAddresses() throws Exception {
+        MemoryPool pool = new MemoryPool();
+        pool.seen(tx1.getHash(), address2);
+        pool.seen(tx1.getHash(), address1);
+        Transaction t = pool.seen(tx1, address2);
+        // The addresses are only looked up from their ids when asked for.
+        TransactionConfidence confidence = t.getConfidence();
+        assertEquals(2, confidence.numBroadcastPeers());
+        assertTrue(confidence.wasBroadcastBy(address1));
+        assertTrue(confidence.wasBroadcastBy(address2));
+        assertFalse(confidence.wasBroadcastBy(address3));
+        assertEquals(ImmutableSet.of(address1, address2), ImmutableSet.copyOf(confidence.getBroadcastBy()));
+        assertEquals(2, confidence.duplicate().numBroadcastPeers());
+    }
+
+    @Test
+    public void peerIdsAreReused() throws Exception {
+        MemoryPool pool = new MemoryPool();
+        Transaction tx3 = FakeTxBuilder.createFakeTx(params, COIN, new ECKey().toAddress(params));
+        pool.peerConnected(address1);
+        pool.seen(tx1.getHash(), address1);
+        pool.seen(tx3, address1);
+        // Peers are told apart by socket address only, so a fresher address for the same peer is still the same one.
+        PeerAddress address1Again = new PeerAddress(address1.getAddr());
+        address1Again.setTime(address1.getTime() + 1000);
+        pool.seen(tx1.getHash(), address1Again);
+        pool.seen(tx3.getHash(), address1Again);
+        assertEquals(1, pool.numBroadcastPeers(tx1.getHash()));
+        assertEquals(1, tx3.getConfidence().numBroadcastPeers());
+
+        // The next peer gets the id that was freed, which mustn't be confused with the peer that had it before.
+        pool.peerDisconnected(address1);
+        pool.peerConnected(address2);
+        pool.seen(tx1.getHash(), address2);
+        pool.seen(tx3.getHash(), address2);
+        assertEquals(2, pool.numBroadcastPeers(tx1.getHash()));
+        assertEquals(2, tx3.getConfidence().numBroadcastPeers());
+        assertEquals(ImmutableSet.of(address1, address2), ImmutableSet.copyOf(tx3.getConfidence().getBroadcastBy()));
+
+        // Coming back with another id doesn't make it a new peer either.
+        pool.peerConnected(address1);
+        pool.seen(tx1.getHash(), address1);
+        pool.seen(tx3.getHash(), address1);
+        assertEquals(2, tx3.getConfidence().numBroadcastPeers());
+        Transaction t = pool.seen(tx2, address3);
+        TransactionConfidence confidence = t.getConfidence();
+        assertEquals(3, confidence.numBroadcastPeers());
+        assertEquals(ImmutableSet.of(address1, address2, address3), ImmutableSet.copyOf(confidence.getBroadcastBy()));
+    }
+
+    @Test
+    public void forgottenTransactionsKeepTheirPeers() throws Exception {
+        Utils.setMockClock();
+        MemoryPool pool = new MemoryPool(MemoryPool.DEFAULT_MAX_BYTES, 60 * 1000);
+        pool.peerConnected(address1);
+        Transaction t = pool.seen(tx1, address1);
+        Utils.rollMockClock(60);
+        assertNull(pool.get(tx1.getHash()));
+        // The pool won't hear about the peer disconnecting for a transaction it forgot, so its id mustn't be confused
+        // with that of the next peer to have it.
+        pool.peerDisconnected(address1);
+        pool.peerConnected(address2);
+        pool.seen(t, address2);
+        assertEquals(2, t.getConfidence().numBroadcastPeers());
+        assertEquals(ImmutableSet.of(address1, address2), ImmutableSet.copyOf(t.getConfidence().getBroadcastBy()));
+        pool.seen(t, address1);
+        assertEquals(2, t.getConfidence().numBroadcastPeers());
+    }
 }
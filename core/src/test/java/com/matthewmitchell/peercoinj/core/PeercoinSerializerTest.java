@@ -233,6 +233,48 @@ public class PeercoinSerializerTest {
         assertEquals(thirdBlock.getNonce(), 2850094635L);
     }
 
+    @Test
+    public void testDeserializeFromBuffers() throws Exception {
+        PeercoinSerializer bs = new PeercoinSerializer(MainNetParams.get(), false, true);
+        Transaction expected = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+
+        // From a direct buffer, as the network code reads into, with another message following.
+        ByteBuffer direct = ByteBuffer.allocateDirect(txMessage.length * 2);
+        direct.put(txMessage).put(txMessage).flip();
+        assertEquals(expected, bs.deserialize(direct));
+        assertEquals(txMessage.length, direct.position());
+        assertEquals(expected, bs.deserialize(direct));
+        assertFalse(direct.hasRemaining());
+
+        // From a buffer wrapping only the payload, as is used for messages too large for the read buffer.
+        ByteBuffer in = ByteBuffer.wrap(txMessage);
+        bs.seekPastMagicBytes(in);
+        PeercoinSerializer.PeercoinPacketHeader header = bs.deserializeHeader(in);
+        byte[] payload = Arrays.copyOfRange(txMessage, in.position(), txMessage.length);
+        Transaction tx = (Transaction) bs.deserializePayload(header, ByteBuffer.wrap(payload));
+        assertEquals(expected, tx);
+        assertEquals(expected.getHash(), tx.getHash());
+
+        // An incomplete payload is left in the buffer to be read once the rest of it arrives.
+        ByteBuffer partial = ByteBuffer.wrap(payload, 0, payload.length - 1);
+        try {
+            bs.deserializePayload(header, partial);
+            fail();
+        } catch (BufferUnderflowException e) {
+            assertEquals(0, partial.position());
+        }
+
+        // A corrupt payload is skipped.
+        payload[payload.length - 1]++;
+        ByteBuffer corrupt = ByteBuffer.wrap(payload);
+        try {
+            bs.deserializePayload(header, corrupt);
+            fail();
+        } catch (ProtocolException e) {
+            assertFalse(corrupt.hasRemaining());
+        }
+    }
+
     @Test
     public void testPeercoinPacketHeader() {
         try {
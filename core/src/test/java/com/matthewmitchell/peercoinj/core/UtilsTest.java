@@ -19,6 +19,8 @@ package com.matthewmitchell.peercoinj.core;
 import java.math.BigInteger;
 import org.junit.Test;
 
+import static com.matthewmitchell.peercoinj.core.Utils.HEX;
+
 import static org.junit.Assert.*;
 
 public class UtilsTest {
@@ -52,4 +54,32 @@ public class UtilsTest {
         assertEquals(0x05123456L, Utils.encodeCompactBits(new BigInteger("1234560000", 16)));
         assertEquals(0x0600c0deL, Utils.encodeCompactBits(new BigInteger("c0de000000", 16)));
     }
+
+    @Test
+    public void digests() throws Exception {
+        byte[] input = "hello".getBytes("US-ASCII");
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824",
+                HEX.encode(Utils.singleDigest(input, 0, input.length)));
+        assertEquals("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50",
+                HEX.encode(Utils.doubleDigest(input)));
+        assertArrayEquals(Utils.doubleDigest(input), Utils.doubleDigestTwoBuffers(input, 0, 2, input, 2, 3));
+
+        byte[] out = new byte[34];
+        Utils.doubleDigest(input, 0, input.length, out, 1);
+        assertEquals("009595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d5000", HEX.encode(out));
+
+        // A buffer without room for the hash is rejected without leaving the input behind for the next hash.
+        try {
+            Utils.doubleDigest(input, 0, input.length, out, 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            Utils.singleDigest(input, 0, input.length, new byte[31], 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals("9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50",
+                HEX.encode(Utils.doubleDigest(input)));
+    }
 }
@@ -19,6 +19,7 @@ package com.matthewmitchell.peercoinj.core;
 
 import com.matthewmitchell.peercoinj.core.Wallet.SendRequest;
 import com.matthewmitchell.peercoinj.crypto.*;
+import com.matthewmitchell.peercoinj.net.FilterMerger;
 import com.matthewmitchell.peercoinj.params.MainNetParams;
 import com.matthewmitchell.peercoinj.script.Script;
 import com.matthewmitchell.peercoinj.script.ScriptBuilder;
@@ -47,7 +48,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
@@ -57,6 +62,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.matthewmitchell.peercoinj.core.Coin.*;
 import static com.matthewmitchell.peercoinj.core.Utils.HEX;
@@ -395,6 +402,113 @@ public class WalletTest extends TestWithWallet {
         assertTrue(depthFuture.isDone());
     }
 
+    @Test
+    public void depthNotificationThresholds() throws Exception {
+        wallet.setDepthNotificationThresholds(3);
+        StoredBlock block = new StoredBlock(makeSolvedTestBlock(blockStore, new ECKey().toAddress(params)), BigInteger.ONE, 10);
+        Transaction tx = createFakeTx(params, COIN, myAddress);
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        final List<Integer> notifiedDepths = new ArrayList<Integer>();
+        tx.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                if (reason == ChangeReason.DEPTH)
+                    notifiedDepths.add(tx.getConfidence().getDepthInBlocks());
+            }
+        }, Threading.SAME_THREAD);
+        ListenableFuture<Transaction> depthFuture = tx.getConfidence().getDepthFuture(5, Threading.SAME_THREAD);
+        for (int height = 11; height <= 15; height++) {
+            block = new StoredBlock(makeSolvedTestBlock(blockStore, new ECKey().toAddress(params)), BigInteger.ONE, height);
+            wallet.notifyNewBestBlock(block);
+            // The depth is worked out from the height of the last block, without touching the transaction.
+            assertEquals(height - 9, tx.getConfidence().getDepthInBlocks());
+            assertEquals(height >= 14, depthFuture.isDone());
+        }
+        // Only the threshold and the depth the future waited for were notified.
+        assertEquals(ImmutableList.of(3, 5), notifiedDepths);
+    }
+
+    @Test
+    public void depthWithoutAppearedAtHeight() throws Exception {
+        // Older wallets stored the depth of transactions but not the height they appeared at.
+        wallet.setDepthNotificationThresholds(3);
+        StoredBlock block = new StoredBlock(makeSolvedTestBlock(blockStore, new ECKey().toAddress(params)), BigInteger.ONE, 10);
+        wallet.notifyNewBestBlock(block);
+        Transaction tx = createFakeTx(params, COIN, myAddress);
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        tx.getConfidence().setDepthInBlocks(2);
+        wallet.addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx));
+        final List<Integer> notifiedDepths = new ArrayList<Integer>();
+        tx.getConfidence().addEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                if (reason == ChangeReason.DEPTH)
+                    notifiedDepths.add(tx.getConfidence().getDepthInBlocks());
+            }
+        }, Threading.SAME_THREAD);
+        // Without a height to work from, the stored depth is used rather than the height of the last block.
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, new ECKey().toAddress(params)), BigInteger.ONE, 11);
+        wallet.notifyNewBestBlock(block);
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        assertTrue(notifiedDepths.isEmpty());
+    }
+
+    @Test
+    public void depthFutureAfterJavaSerialization() throws Exception {
+        Transaction tx = createFakeTx(params, COIN, myAddress);
+        tx.getConfidence().getDepthFuture(3, Threading.SAME_THREAD);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(tx);
+        out.close();
+
+        // The depths being waited for aren't serialized, but a copy read back can still wait for them.
+        Transaction copy = (Transaction) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertNull(copy.getConfidence().getNextAwaitedDepth(0));
+        copy.getConfidence().getDepthFuture(2, Threading.SAME_THREAD);
+        assertEquals(Integer.valueOf(2), copy.getConfidence().getNextAwaitedDepth(0));
+    }
+
+    @Test
+    public void spendCandidatesFollowKeyChanges() throws Exception {
+        // The second output pays to a key the wallet doesn't have yet.
+        ECKey other = new ECKey();
+        Transaction tx = createFakeTxWithChangeAddress(params, COIN, myAddress, other.toAddress(params));
+        sendMoneyToWallet(tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+        assertEquals(COIN, wallet.getBalance());
+        // Importing the key makes the output ours without it being received again.
+        wallet.importKey(other);
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+        assertEquals(COIN.add(tx.getOutput(1).getValue()), wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+        wallet.removeKey(other);
+        assertEquals(COIN, wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void cachedBalancesFollowChanges() throws Exception {
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        Transaction t1 = sendMoneyToWallet(wallet, COIN, myAddress, null);
+        // Pending coins from somebody else count towards the estimated balance only.
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance());
+        sendMoneyToWallet(wallet, t1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(COIN, wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+        // Spending changes the estimated balance, and changing the coin selector changes the available one.
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), CENT);
+        wallet.commitTx(spend);
+        Coin change = COIN.subtract(CENT).subtract(spend.getFee());
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet.setCoinSelector(new AllowUnconfirmedCoinSelector());
+        assertEquals(change, wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+    }
+
     private void basicSanityChecks(Wallet wallet, Transaction t, Address destination) throws VerificationException {
         assertEquals("Wrong number of tx inputs", 1, t.getInputs().size());
         assertEquals("Wrong number of tx outputs",2, t.getOutputs().size());
@@ -1243,6 +1357,74 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.peercoinSerialize()));
     }
 
+    @Test
+    public void bloomFilterUpdatedIncrementally() throws Exception {
+        FilterMerger merger = new FilterMerger(0.001);
+        ImmutableList<PeerFilterProvider> providers = ImmutableList.<PeerFilterProvider>of(wallet);
+        BloomFilter first = merger.calculate(providers).filter;
+        int elements = wallet.getBloomFilterElementCount();
+
+        // A pay to pubkey output to us is filtered by its outpoint. The other output pays to a key we don't have yet.
+        Transaction t1 = createFakeTx(params, CENT, myKey);
+        StoredBlock b1 = createFakeBlock(blockStore, t1).storedBlock;
+        wallet.receiveFromBlock(t1, b1, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(elements + 1, wallet.getBloomFilterElementCount());
+        BloomFilter second = merger.calculate(providers).filter;
+        assertTrue(second.contains(new TransactionOutPoint(params, 0, t1).peercoinSerialize()));
+        assertEquals(first.peercoinSerialize().length, second.peercoinSerialize().length);
+
+        // Adding the other key makes its output ours, and both end up in the filter without it being made again.
+        ECKey key = ECKey.fromPublicOnly(t1.getOutput(1).getScriptPubKey().getPubKey());
+        wallet.importKey(key);
+        assertEquals(elements + 4, wallet.getBloomFilterElementCount());
+        FilterMerger.Result result = merger.calculate(providers);
+        assertTrue(result.changed);
+        assertTrue(result.filter.contains(key.getPubKeyHash()));
+        assertTrue(result.filter.contains(new TransactionOutPoint(params, 1, t1).peercoinSerialize()));
+        assertEquals(first.peercoinSerialize().length, result.filter.peercoinSerialize().length);
+
+        // Going past the headroom the filter was made with makes a bigger one.
+        List<ECKey> keys = Lists.newArrayList();
+        for (int i = 0; i < 60; i++)
+            keys.add(new ECKey());
+        wallet.importKeys(keys);
+        result = merger.calculate(providers);
+        assertTrue(result.filter.peercoinSerialize().length > first.peercoinSerialize().length);
+        for (ECKey k : keys)
+            assertTrue(result.filter.contains(k.getPubKey()));
+        assertTrue(result.filter.contains(new TransactionOutPoint(params, 1, t1).peercoinSerialize()));
+    }
+
+    @Test
+    public void bloomFilterWithPlainProvider() throws Exception {
+        // A provider that can't say what it added since the last filter is asked for a whole new one every time.
+        final byte[] element = new byte[] { 1, 2, 3 };
+        final AtomicInteger filtersMade = new AtomicInteger();
+        final ReentrantLock providerLock = Threading.lock("provider");
+        PeerFilterProvider plain = new PeerFilterProvider() {
+            @Override public long getEarliestKeyCreationTime() { return Utils.currentTimeSeconds(); }
+            @Override public int getBloomFilterElementCount() { return 1; }
+            @Override public boolean isRequiringUpdateAllBloomFilter() { return false; }
+            @Override public Lock getLock() { return providerLock; }
+            @Override
+            public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+                filtersMade.incrementAndGet();
+                BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+                filter.insert(element);
+                return filter;
+            }
+        };
+        FilterMerger merger = new FilterMerger(0.001);
+        ImmutableList<PeerFilterProvider> providers = ImmutableList.of(wallet, plain);
+        merger.calculate(providers);
+        ECKey key = new ECKey();
+        wallet.importKey(key);
+        BloomFilter filter = merger.calculate(providers).filter;
+        assertTrue(filter.contains(key.getPubKey()));
+        assertTrue(filter.contains(element));
+        assertEquals(2, filtersMade.get());
+    }
+
     @Test
     public void getWatchedAddresses() throws Exception {
         Address watchedAddress = new ECKey().toAddress(params);
@@ -1675,13 +1857,14 @@ public class WalletTest extends TestWithWallet {
         wallet.receiveFromBlock(tx5, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
         assertEquals(TWO_CENTS, wallet.getBalance());
 
-        // Now test coin selection properly selects coin*depth
+        // Now test coin selection properly selects coin*depth. Depth is worked out from the chain height, so the
+        // blocks need real heights: tx5 appeared at height 1.
         for (int i = 0; i < 50; i++) {
-            block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+            block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1 + i);
             wallet.notifyNewBestBlock(block);
         }
 
-        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 51);
         Transaction tx6 = createFakeTx(params, COIN, myAddress);
         wallet.receiveFromBlock(tx6, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
         assertTrue(tx5.getOutput(0).isMine(wallet) && tx5.getOutput(0).isAvailableForSpending() && tx5.getConfidence().getDepthInBlocks() == 50);
@@ -1699,7 +1882,7 @@ public class WalletTest extends TestWithWallet {
         Transaction spend13 = wallet.createSend(notMyAddr, CENT);
         assertTrue(spend13.getOutputs().size() == 1 && spend13.getOutput(0).getValue().equals(CENT));
 
-        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 52);
         wallet.notifyNewBestBlock(block);
         assertTrue(tx5.getOutput(0).isMine(wallet) && tx5.getOutput(0).isAvailableForSpending() && tx5.getConfidence().getDepthInBlocks() == 52);
         assertTrue(tx6.getOutput(0).isMine(wallet) && tx6.getOutput(0).isAvailableForSpending() && tx6.getConfidence().getDepthInBlocks() == 2);
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHandlerTest {
+    private static final int SOCKET_BUFFER_SIZE = 4096;
+
+    private ServerSocketChannel server;
+    private SocketChannel peer;
+    private Selector selector;
+    private ConnectionHandler handler;
+    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Everything written to the handler, in order.
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        // Small socket buffers, so that writes stop short whilst the peer isn't reading.
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel channel = SocketChannel.open();
+        channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+        channel.connect(server.socket().getLocalSocketAddress());
+        peer = server.accept();
+        peer.configureBlocking(false);
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        SelectionKey key = channel.register(selector, 0);
+        handler = new ConnectionHandler(new StreamParser() {
+            @Override public void connectionClosed() { closed.set(true); }
+            @Override public void connectionOpened() { }
+            @Override public int receiveBytes(ByteBuffer buff) { return 0; }
+            @Override public void setWriteTarget(MessageWriteTarget writeTarget) { }
+            @Override public int getMaxMessageSize() { return 1024; }
+        }, key, connectedHandlers);
+        key.attach(handler);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        handler.closeConnection();
+        peer.close();
+        server.close();
+        selector.close();
+    }
+
+    private void write(int length) throws Exception {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (written.size() + i);
+        written.write(bytes);
+        handler.writeBytes(bytes);
+    }
+
+    // Lets the handler write whatever the socket will take now.
+    private void pump() throws Exception {
+        selector.selectNow();
+        for (SelectionKey key : selector.selectedKeys())
+            ConnectionHandler.handleKey(key);
+        selector.selectedKeys().clear();
+    }
+
+    // Reads everything written to the handler at the other end, and checks it arrived intact and in order.
+    private void readAll() throws Exception {
+        ByteBuffer received = ByteBuffer.allocate(written.size());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.hasRemaining()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            pump();
+            if (peer.read(received) == 0)
+                Thread.sleep(1);
+        }
+        assertArrayEquals(written.toByteArray(), received.array());
+        pump();
+        assertEquals(0, handler.getBytesQueued());
+        assertEquals(0, handler.getPooledBuffersHeld());
+    }
+
+    @Test
+    public void partialWriteThenMoreBytes() throws Exception {
+        // Keep writing small messages until one is only partly written, which leaves it at the head of the queue.
+        int attempts = 0;
+        do {
+            assertTrue(++attempts < 10000);
+            write(1000);
+            pump();
+        } while (handler.getBytesQueued() % 1000 == 0);
+        assertTrue(handler.getPooledBuffersHeld() > 0);
+        // More bytes go after the ones still waiting in the partly written buffer, and everything arrives in order.
+        write(1000);
+        write(40000);
+        readAll();
+    }
+
+    @Test
+    public void overPooledLimit() throws Exception {
+        int maxPooledBuffers = ConnectionHandler.MAX_POOLED_BYTES_PER_CONNECTION /
+                ConnectionHandler.writeBufferPool.getBufferSize();
+        write(ConnectionHandler.MAX_POOLED_BYTES_PER_CONNECTION - 100);
+        assertEquals(maxPooledBuffers, handler.getPooledBuffersHeld());
+        // Past the limit the bytes go into heap buffers.
+        write(150 * 1024);
+        write(1000);
+        assertEquals(maxPooledBuffers, handler.getPooledBuffersHeld());
+        readAll();
+    }
+
+    @Test
+    public void closeWithDataQueued() throws Exception {
+        write(100 * 1024);
+        pump();
+        assertTrue(handler.getBytesQueued() > 0);
+        assertTrue(handler.getPooledBuffersHeld() > 0);
+        handler.closeConnection();
+        // The buffers are given back to the pool, and nothing is left to write.
+        assertEquals(0, handler.getPooledBuffersHeld());
+        assertEquals(0, handler.getBytesQueued());
+        assertTrue(closed.get());
+        assertTrue(connectedHandlers.isEmpty());
+    }
+}
@@ -56,10 +56,10 @@ public class NetworkAbstractionTests {
         this.clientType = clientType;
         if (clientType == 0) {
             channels = new NioClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else
             channels = null;
     }
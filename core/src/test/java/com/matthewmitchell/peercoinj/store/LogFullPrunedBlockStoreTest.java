@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.*;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int FULL_STORE_DEPTH = 5;
+
+    private File file;
+    private LogFullPrunedBlockStore store;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("logblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new LogFullPrunedBlockStore(params, file, FULL_STORE_DEPTH);
+        to = new ECKey().toAddress(params);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+    }
+
+    private void reopen() throws BlockStoreException {
+        store.close();
+        store = new LogFullPrunedBlockStore(params, file, FULL_STORE_DEPTH);
+    }
+
+    private static StoredTransactionOutput output(StoredBlock block, int index) {
+        byte[] script = new byte[25];
+        script[0] = (byte) index;
+        return new StoredTransactionOutput(block.getHeader().getHash(), index, Coin.valueOf(1000 + index),
+                block.getHeight(), false, script);
+    }
+
+    /** Connects a block on top of the given one that creates two outputs and spends the given ones. */
+    private StoredBlock connect(StoredBlock prev, List<StoredTransactionOutput> spent) throws Exception {
+        StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        created.add(output(block, 0));
+        created.add(output(block, 1));
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : spent)
+            store.removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : created)
+            store.addUnspentTransactionOutput(out);
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(),
+                new TransactionOutputChanges(created, spent)));
+        store.setVerifiedChainHead(block);
+        store.commitDatabaseBatchWrite();
+        return block;
+    }
+
+    private List<StoredBlock> connectChain(int length) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(store.getChainHead());
+        for (int i = 1; i <= length; i++) {
+            StoredBlock prev = blocks.get(i - 1);
+            List<StoredTransactionOutput> spent = i > 1 ?
+                    Collections.singletonList(output(prev, 0)) : Collections.<StoredTransactionOutput>emptyList();
+            blocks.add(connect(prev, spent));
+        }
+        return blocks;
+    }
+
+    private void assertChain(List<StoredBlock> blocks) throws Exception {
+        StoredBlock head = blocks.get(blocks.size() - 1);
+        assertEquals(head, store.getChainHead());
+        assertEquals(head, store.getVerifiedChainHead());
+        for (int i = 1; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block, store.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+            assertEquals(block, store.getByHeight(i));
+            // The first output of every block but the head was spent by the next.
+            StoredTransactionOutput out = store.getTransactionOutput(block.getHeader().getHash(), 0);
+            if (i < blocks.size() - 1) {
+                assertNull(out);
+            } else {
+                assertEquals(output(block, 0), out);
+                assertArrayEquals(output(block, 0).getScriptBytes(), out.getScriptBytes());
+            }
+            assertEquals(output(block, 1).getValue(), store.getTransactionOutput(block.getHeader().getHash(), 1).getValue());
+            // Undoable blocks deeper than the full store depth are pruned.
+            StoredUndoableBlock undoBlock = store.getUndoBlock(block.getHeader().getHash());
+            if (i <= head.getHeight() - FULL_STORE_DEPTH) {
+                assertNull(undoBlock);
+            } else {
+                assertEquals(2, undoBlock.getTxOutChanges().txOutsCreated.size());
+                assertEquals(output(block, 1), undoBlock.getTxOutChanges().txOutsCreated.get(1));
+            }
+        }
+    }
+
+    @Test
+    public void replaysLog() throws Exception {
+        List<StoredBlock> blocks = connectChain(20);
+        assertChain(blocks);
+        reopen();
+        assertChain(blocks);
+        blocks.add(connect(blocks.get(20), Collections.singletonList(output(blocks.get(20), 0))));
+        reopen();
+        assertChain(blocks);
+    }
+
+    @Test
+    public void abortedBatchIsDiscarded() throws Exception {
+        List<StoredBlock> blocks = connectChain(3);
+        StoredBlock head = blocks.get(3);
+        StoredBlock block = head.build(head.getHeader().createNextBlock(to).cloneAsHeader());
+        long garbage = store.getGarbage();
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(head, 0));
+        store.addUnspentTransactionOutput(output(block, 0));
+        store.put(block);
+        // The thread writing the batch sees it.
+        assertEquals(block, store.get(block.getHeader().getHash()));
+        assertNull(store.getTransactionOutput(head.getHeader().getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        // Nothing was written, so nothing in the log became garbage.
+        assertEquals(garbage, store.getGarbage());
+
+        assertNull(store.get(block.getHeader().getHash()));
+        assertNull(store.getTransactionOutput(block.getHeader().getHash(), 0));
+        assertChain(blocks);
+        reopen();
+        assertNull(store.get(block.getHeader().getHash()));
+        assertChain(blocks);
+    }
+
+    @Test
+    public void unfinishedWriteIsDiscarded() throws Exception {
+        List<StoredBlock> blocks = connectChain(10);
+        store.close();
+        long length = file.length();
+        // The last block didn't finish being written.
+        store = new LogFullPrunedBlockStore(params, file, FULL_STORE_DEPTH);
+        StoredBlock extra = connect(blocks.get(10), Collections.singletonList(output(blocks.get(10), 0)));
+        store.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        store = new LogFullPrunedBlockStore(params, file, FULL_STORE_DEPTH);
+        assertEquals(length, file.length());
+        assertNull(store.get(extra.getHeader().getHash()));
+        assertChain(blocks);
+        // New commits go after the last good one.
+        blocks.add(connect(blocks.get(10), Collections.singletonList(output(blocks.get(10), 0))));
+        reopen();
+        assertChain(blocks);
+    }
+
+    @Test
+    public void compact() throws Exception {
+        List<StoredBlock> blocks = connectChain(30);
+        long length = file.length();
+        store.compact();
+        assertTrue(file.length() < length);
+        assertChain(blocks);
+        reopen();
+        assertChain(blocks);
+        blocks.add(connect(blocks.get(30), Collections.singletonList(output(blocks.get(30), 0))));
+        reopen();
+        assertChain(blocks);
+    }
+
+    @Test
+    public void failedCompactionKeepsLog() throws Exception {
+        List<StoredBlock> blocks = connectChain(10);
+        long length = file.length();
+        // Something in the way of the compacted log.
+        File compactionFile = new File(file.getPath() + ".compact");
+        assertTrue(compactionFile.mkdir());
+        assertTrue(new File(compactionFile, "blocker").createNewFile());
+        try {
+            store.compact();
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        assertEquals(length, file.length());
+        assertChain(blocks);
+        blocks.add(connect(blocks.get(10), Collections.singletonList(output(blocks.get(10), 0))));
+        assertChain(blocks);
+        assertTrue(new File(compactionFile, "blocker").delete());
+        reopen();
+        assertChain(blocks);
+    }
+
+    @Test
+    public void recoversCompactedLog() throws Exception {
+        List<StoredBlock> blocks = connectChain(10);
+        store.compact();
+        store.close();
+        // As left on Windows by a crash after the old log was deleted and before the compacted one replaced it.
+        File compactionFile = new File(file.getPath() + ".compact");
+        assertTrue(file.renameTo(compactionFile));
+        store = new LogFullPrunedBlockStore(params, file, FULL_STORE_DEPTH);
+        assertFalse(compactionFile.exists());
+        assertChain(blocks);
+    }
+}
@@ -19,13 +19,30 @@ package com.matthewmitchell.peercoinj.store;
 import com.matthewmitchell.peercoinj.core.Address;
 import com.matthewmitchell.peercoinj.core.ECKey;
 import com.matthewmitchell.peercoinj.core.NetworkParameters;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
 import com.matthewmitchell.peercoinj.core.StoredBlock;
 import com.matthewmitchell.peercoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +75,191 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void ringWrapsAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10);
+
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(store.getChainHead());
+        for (int i = 1; i < 25; i++) {
+            StoredBlock prev = blocks.get(i - 1);
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+            // Putting a block again moves it to the newest slot.
+            if (i == 20)
+                store.put(blocks.get(12));
+        }
+        store.setChainHead(blocks.get(24));
+        store.close();
+
+        // Reopen so that the blocks come from the ring rather than the cache. The ring holds the last ten puts.
+        store = new SPVBlockStore(params, f, 10);
+        for (int i = 0; i < 25; i++) {
+            StoredBlock block = store.get(blocks.get(i).getHeader().getHash());
+            if (i == 12 || i >= 16)
+                assertEquals(blocks.get(i), block);
+            else
+                assertNull(block);
+        }
+        assertEquals(blocks.get(24), store.getChainHead());
+
+        // Overwriting the slots keeps the index in step.
+        StoredBlock prev = blocks.get(24);
+        for (int i = 0; i < 6; i++) {
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            prev = block;
+        }
+        store.close();
+        store = new SPVBlockStore(params, f, 10);
+        assertNull(store.get(blocks.get(12).getHeader().getHash()));
+        assertNull(store.get(blocks.get(19).getHeader().getHash()));
+        assertEquals(blocks.get(21), store.get(blocks.get(21).getHeader().getHash()));
+        assertEquals(prev, store.get(prev.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void getByHeight() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 20);
+
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(store.getChainHead());
+        for (int i = 1; i < 10; i++) {
+            StoredBlock prev = blocks.get(i - 1);
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+        }
+        for (int i = 0; i < 10; i++)
+            assertEquals(blocks.get(i), store.getByHeight(i));
+        assertNull(store.getByHeight(10));
+        assertEquals(blocks.subList(3, 10), store.getByHeight(3, 12));
+
+        // Re-org onto a fork from block 6, which the index follows.
+        StoredBlock fork = blocks.get(6);
+        for (int i = 0; i < 5; i++) {
+            fork = fork.build(fork.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+            store.put(fork);
+        }
+        store.setChainHead(fork);
+        assertEquals(blocks.get(6), store.getByHeight(6));
+        assertEquals(fork, store.getByHeight(11));
+        assertEquals(fork.getHeader().getPrevBlockHash(), store.getByHeight(10).getHeader().getHash());
+        assertFalse(blocks.get(7).equals(store.getByHeight(7)));
+
+        // Block times come from the index without the store's lock, even whilst another thread holds it.
+        final SPVBlockStore lockedStore = store;
+        store.lock.lock();
+        try {
+            Future<Long> time = Executors.newSingleThreadExecutor().submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return lockedStore.getTimeByHeight(11);
+                }
+            });
+            assertEquals(fork.getHeader().getTimeSeconds(), (long) time.get(10, TimeUnit.SECONDS));
+        } finally {
+            store.lock.unlock();
+        }
+        assertEquals(blocks.get(6).getHeader().getTimeSeconds(), store.getTimeByHeight(6));
+        assertEquals(-1, store.getTimeByHeight(12));
+        store.close();
+
+        // Reopened, the index is rebuilt backwards from the chain head as far as the ring goes, but only when exact
+        // blocks are asked for.
+        store = new SPVBlockStore(params, f, 20);
+        assertEquals(fork, store.getIndexedByHeight(11));
+        assertNull(store.getIndexedByHeight(3));
+        assertEquals(-1, store.getTimeByHeight(3));
+        assertEquals(fork, store.getByHeight(11));
+        List<StoredBlock> chain = store.getByHeight(0, 12);
+        assertEquals(12, chain.size());
+        assertEquals(chain.get(3), store.getIndexedByHeight(3));
+        assertEquals(chain.get(3).getHeader().getTimeSeconds(), store.getTimeByHeight(3));
+        assertEquals(blocks.subList(0, 7), chain.subList(0, 7));
+        for (int i = 1; i < chain.size(); i++)
+            assertEquals(chain.get(i - 1).getHeader().getHash(), chain.get(i).getHeader().getPrevBlockHash());
+        store.close();
+    }
+
+    @Test
+    public void readsDuringPuts() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f, 10);
+
+        Address to = new ECKey().toAddress(params);
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(store.getChainHead());
+        for (int i = 1; i < 500; i++) {
+            StoredBlock prev = blocks.get(i - 1);
+            blocks.add(prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader()));
+        }
+
+        // Readers race with the writer overwriting the small ring. Each read must find the block or nothing.
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 3; t++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; !done.get(); i = (i + 7) % blocks.size()) {
+                            // Go to the ring rather than the cache.
+                            store.blockCache.invalidateAll();
+                            StoredBlock block = store.get(blocks.get(i).getHeader().getHash());
+                            if (block != null)
+                                assertEquals(blocks.get(i), block);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 1; i < blocks.size(); i++)
+            store.put(blocks.get(i));
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        for (int i = blocks.size() - 10; i < blocks.size(); i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void zeroPrefixedHashesSpreadOverIndex() throws Exception {
+        // The hashes of proof of work blocks all start with zeros, which mustn't pile them into one run of the index.
+        int indexMask = 4095;
+        Random random = new Random(1);
+        Set<Integer> homes = new HashSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            Arrays.fill(hash, 0, 8, (byte) 0);
+            homes.add(SPVBlockStore.getHomeEntry(ByteBuffer.wrap(new Sha256Hash(hash).getBytes()), 0, indexMask));
+        }
+        assertTrue(homes.size() > 800);
+    }
 }
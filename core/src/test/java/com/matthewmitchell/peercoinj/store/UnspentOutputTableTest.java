@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.Coin;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.StoredTransactionOutput;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class UnspentOutputTableTest {
+    private static StoredTransactionOutput output(int tx, int index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) tx, (byte) (tx >> 8), (byte) (tx >> 16) });
+        byte[] script = new byte[25];
+        script[0] = (byte) index;
+        return new StoredTransactionOutput(hash, index, Coin.valueOf(tx * 1000 + index), tx, tx % 2 == 0, script);
+    }
+
+    private static void assertStored(UnspentOutputTable table, StoredTransactionOutput out) {
+        StoredTransactionOutput stored = table.get(out.getHash(), out.getIndex());
+        assertEquals(out, stored);
+        assertEquals(out.getValue(), stored.getValue());
+        assertEquals(out.getHeight(), stored.getHeight());
+        assertArrayEquals(out.getScriptBytes(), stored.getScriptBytes());
+    }
+
+    @Test
+    public void addGetRemove() throws Exception {
+        UnspentOutputTable table = new UnspentOutputTable();
+        // Enough to grow the table a few times and compact the data.
+        for (int tx = 0; tx < 20000; tx++)
+            for (int index = 0; index < 3; index++)
+                table.add(output(tx, index));
+        assertEquals(60000, table.size());
+        for (int tx = 0; tx < 20000; tx++) {
+            if (tx % 10 != 0) {
+                assertTrue(table.remove(output(tx, 0).getHash(), 0));
+                assertTrue(table.remove(output(tx, 2).getHash(), 2));
+            }
+        }
+        assertFalse(table.remove(output(1, 0).getHash(), 0));
+        assertEquals(24000, table.size());
+        for (int tx = 0; tx < 20000; tx++) {
+            if (tx % 10 == 0)
+                assertStored(table, output(tx, 0));
+            else
+                assertNull(table.get(output(tx, 0).getHash(), 0));
+            assertStored(table, output(tx, 1));
+        }
+        assertNull(table.get(output(20000, 0).getHash(), 0));
+    }
+
+    @Test
+    public void abortUndoesBatch() throws Exception {
+        UnspentOutputTable table = new UnspentOutputTable();
+        for (int tx = 0; tx < 100; tx++)
+            table.add(output(tx, 0));
+
+        table.beginDatabaseBatchWrite();
+        table.beginDatabaseBatchWrite();
+        for (int tx = 0; tx < 50; tx++)
+            assertTrue(table.remove(output(tx, 0).getHash(), 0));
+        for (int tx = 100; tx < 2000; tx++)
+            table.add(output(tx, 0));
+        // Spent and re-added within the batch.
+        assertTrue(table.remove(output(60, 0).getHash(), 0));
+        table.add(output(60, 0));
+        assertEquals(1950, table.size());
+        table.abortDatabaseBatchWrite();
+
+        assertEquals(100, table.size());
+        for (int tx = 0; tx < 100; tx++)
+            assertStored(table, output(tx, 0));
+        assertNull(table.get(output(100, 0).getHash(), 0));
+
+        table.beginDatabaseBatchWrite();
+        assertTrue(table.remove(output(0, 0).getHash(), 0));
+        table.add(output(100, 0));
+        table.commitDatabaseBatchWrite();
+        // With no batch open, aborting does nothing.
+        table.abortDatabaseBatchWrite();
+        assertNull(table.get(output(0, 0).getHash(), 0));
+        assertStored(table, output(100, 0));
+        assertEquals(100, table.size());
+    }
+
+    @Test
+    public void otherThreadsDontSeeBatch() throws Exception {
+        final UnspentOutputTable table = new UnspentOutputTable();
+        table.add(output(0, 0));
+        table.beginDatabaseBatchWrite();
+        assertTrue(table.remove(output(0, 0).getHash(), 0));
+        table.add(output(1, 0));
+
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    assertStored(table, output(0, 0));
+                    assertNull(table.get(output(1, 0).getHash(), 0));
+                    try {
+                        table.add(output(2, 0));
+                        fail();
+                    } catch (IllegalStateException expected) {
+                    }
+                    result.set(true);
+                } catch (Throwable e) {
+                    result.set(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertEquals(true, result.get());
+
+        table.commitDatabaseBatchWrite();
+        assertNull(table.get(output(0, 0).getHash(), 0));
+        assertStored(table, output(1, 0));
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright 2014 Matthew Mitchell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.matthewmitchell.peercoinj.store;
+
+import com.matthewmitchell.peercoinj.core.Block;
+import com.matthewmitchell.peercoinj.core.BlockChain;
+import com.matthewmitchell.peercoinj.core.ECKey;
+import com.matthewmitchell.peercoinj.core.NetworkParameters;
+import com.matthewmitchell.peercoinj.core.Sha256Hash;
+import com.matthewmitchell.peercoinj.core.Utils;
+import com.matthewmitchell.peercoinj.core.VerificationException;
+import com.matthewmitchell.peercoinj.params.MainNetParams;
+import com.matthewmitchell.peercoinj.params.UnitTestParams;
+import com.matthewmitchell.peercoinj.utils.Threading;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ValidHashStoreTest {
+
+    private static final ValidHashStore.TrustedServersInterface NO_SERVERS = new ValidHashStore.TrustedServersInterface() {
+        @Override
+        public URL getNext(boolean didFail) {
+            return null;
+        }
+
+        @Override
+        public boolean invalidated() {
+            return false;
+        }
+
+        @Override
+        public void markSuccess(boolean success) {
+        }
+    };
+
+    private HttpServer server;
+    private TrustedServer trustedServer;
+
+    // Serves the valid hashes it is given, the same way the real servers do.
+    private static class TrustedServer implements HttpHandler, ValidHashStore.TrustedServersInterface {
+        volatile byte[] hashes = new byte[0];
+        volatile byte[] lastLocator;
+        // If set, requests are held until this is counted down.
+        volatile CountDownLatch hold;
+        volatile boolean invalidated;
+        final URL url;
+
+        TrustedServer(URL url) {
+            this.url = url;
+        }
+
+        void setHashes(Sha256Hash... blockHashes) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            for (Sha256Hash hash : blockHashes)
+                bos.write(Utils.reverseBytes(hash.getBytes()), 0, 16);
+            hashes = bos.toByteArray();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            lastLocator = ByteStreams.toByteArray(exchange.getRequestBody());
+            if (hold != null)
+                Uninterruptibles.awaitUninterruptibly(hold);
+            byte[] response = hashes;
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+        }
+
+        @Override
+        public URL getNext(boolean didFail) {
+            return didFail ? null : url;
+        }
+
+        @Override
+        public boolean invalidated() {
+            return invalidated;
+        }
+
+        @Override
+        public void markSuccess(boolean success) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        trustedServer = new TrustedServer(new URL("http://localhost:" + server.getAddress().getPort() + "/getvalidhashes"));
+        server.createContext("/getvalidhashes", trustedServer);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        Utils.mockTime = null;
+    }
+
+    private static Sha256Hash hashFor(int i) {
+        return Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) });
+    }
+
+    @Test
+    public void basics() throws Exception {
+        File f = File.createTempFile("validhashstore", null);
+        f.delete();
+        f.deleteOnExit();
+        ValidHashStore store = new ValidHashStore(f, NO_SERVERS);
+
+        // A new store only knows about the genesis block.
+        Sha256Hash genesis = MainNetParams.get().getGenesisBlock().getHash();
+        assertTrue(store.isValidHash(genesis));
+        assertEquals(0, store.getHeight(genesis));
+        assertEquals(0, store.getHighestHeight());
+        assertTrue(store.isHashAtHeight(genesis, 0));
+        assertFalse(store.isValidHash(hashFor(1)));
+        assertEquals(-1, store.getHeight(hashFor(1)));
+        store.close();
+
+        // Check it is the same after reopening the store.
+        store = new ValidHashStore(f, NO_SERVERS);
+        assertTrue(store.isValidHash(genesis));
+        assertEquals(0, store.getHeight(genesis));
+        store.close();
+    }
+
+    @Test
+    public void convertsLegacyFile() throws Exception {
+        File f = File.createTempFile("validhashstore", null);
+        f.deleteOnExit();
+
+        // Older versions wrote the hashes back to back without any header.
+        final int numHashes = 3000;
+        FileOutputStream out = new FileOutputStream(f);
+        for (int i = 0; i < numHashes; i++)
+            out.write(Utils.reverseBytes(hashFor(i).getBytes()), 0, 16);
+        out.close();
+
+        ValidHashStore store = new ValidHashStore(f, NO_SERVERS);
+        for (int i = 0; i < numHashes; i++)
+            assertTrue(store.isValidHash(hashFor(i)));
+        assertFalse(store.isValidHash(hashFor(numHashes)));
+        // The heights are not known until the server is consulted.
+        assertEquals(-1, store.getHeight(hashFor(0)));
+        assertEquals(-1, store.getHighestHeight());
+        store.close();
+
+        store = new ValidHashStore(f, NO_SERVERS);
+        assertTrue(store.isValidHash(hashFor(numHashes - 1)));
+        assertEquals(store.getFileSize(), f.length());
+        store.close();
+    }
+
+    @Test
+    public void sync() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("validhashstore", null);
+        f.delete();
+        f.deleteOnExit();
+        ValidHashStore store = new ValidHashStore(f, trustedServer);
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params), null);
+
+        Sha256Hash genesis = params.getGenesisBlock().getHash();
+        trustedServer.setHashes(genesis, hashFor(1), hashFor(2));
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+
+        // The server started from the genesis block in the locator, so the heights are known.
+        assertTrue(store.isValidHash(hashFor(2)));
+        assertEquals(2, store.getHeight(hashFor(2)));
+        assertEquals(2, store.getHighestHeight());
+        assertTrue(store.isHashAtHeight(hashFor(1), 1));
+        assertFalse(store.isValidHash(hashFor(3)));
+        store.close();
+    }
+
+    @Test
+    public void mergesDownloadedHashes() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("validhashstore", null);
+        f.delete();
+        f.deleteOnExit();
+        ValidHashStore store = new ValidHashStore(f, trustedServer);
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params), null);
+        Sha256Hash genesis = params.getGenesisBlock().getHash();
+
+        trustedServer.setHashes(genesis, hashFor(1), hashFor(2));
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+
+        // New hashes are appended after those we already have.
+        trustedServer.setHashes(genesis, hashFor(1), hashFor(2), hashFor(3));
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+        assertEquals(3, store.getHighestHeight());
+        assertEquals(3, store.getHeight(hashFor(3)));
+        assertTrue(store.isValidHash(hashFor(2)));
+
+        // The servers re-organized, so the tail is rolled back and replaced.
+        trustedServer.setHashes(genesis, hashFor(1), hashFor(102));
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+        assertEquals(2, store.getHighestHeight());
+        assertTrue(store.isHashAtHeight(hashFor(102), 2));
+        assertFalse(store.isValidHash(hashFor(2)));
+        assertFalse(store.isValidHash(hashFor(3)));
+
+        // Receiving fewer hashes than we have doesn't lose any.
+        trustedServer.setHashes(genesis, hashFor(1));
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+        assertEquals(2, store.getHighestHeight());
+        assertTrue(store.isValidHash(hashFor(102)));
+        store.close();
+
+        store = new ValidHashStore(f, trustedServer);
+        assertEquals(2, store.getHighestHeight());
+        assertTrue(store.isHashAtHeight(hashFor(102), 2));
+        store.close();
+    }
+
+    @Test
+    public void dropsOldestHashesWhenFull() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("validhashstore", null);
+        f.delete();
+        f.deleteOnExit();
+        ValidHashStore store = new ValidHashStore(f, trustedServer);
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params), null);
+        Block b1 = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+
+        // Fill the store.
+        Sha256Hash[] hashes = new Sha256Hash[ValidHashStore.MAX_HASHES];
+        hashes[0] = params.getGenesisBlock().getHash();
+        hashes[1] = b1.getHash();
+        for (int i = 2; i < hashes.length; i++)
+            hashes[i] = hashFor(i);
+        trustedServer.setHashes(hashes);
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+        assertEquals(ValidHashStore.MAX_HASHES - 1, store.getHighestHeight());
+
+        // Once the chain has moved on the server starts from b1 and sends one more hash than before.
+        assertTrue(chain.add(b1));
+        Sha256Hash[] moreHashes = new Sha256Hash[ValidHashStore.MAX_HASHES];
+        System.arraycopy(hashes, 1, moreHashes, 0, hashes.length - 1);
+        moreHashes[moreHashes.length - 1] = hashFor(ValidHashStore.MAX_HASHES);
+        trustedServer.setHashes(moreHashes);
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+
+        // The oldest hashes were dropped to make room.
+        assertEquals(ValidHashStore.MAX_HASHES, store.getHighestHeight());
+        assertEquals(ValidHashStore.MAX_HASHES, store.getHeight(hashFor(ValidHashStore.MAX_HASHES)));
+        assertEquals(ValidHashStore.MAX_HASHES - 1, store.getHeight(hashFor(ValidHashStore.MAX_HASHES - 1)));
+        assertFalse(store.isValidHash(hashes[0]));
+        assertFalse(store.isValidHash(b1.getHash()));
+        store.close();
+    }
+
+    @Test
+    public void chainWaitsForValidHashes() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("validhashstore", null);
+        f.delete();
+        f.deleteOnExit();
+        ValidHashStore store = new ValidHashStore(f, trustedServer);
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params), store);
+
+        Block b1 = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        Block b2 = b1.createNextBlock(new ECKey().toAddress(params));
+        Block fork = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        trustedServer.setHashes(params.getGenesisBlock().getHash(), b1.getHash(), b2.getHash());
+
+        // Make the blocks look old so the store doesn't give the server time to see them.
+        Utils.setMockClock(b2.getTimeSeconds() + 60 * 60 * 24);
+
+        // The store doesn't know about b1 yet, so it waits whilst the hashes are fetched in the background.
+        trustedServer.hold = new CountDownLatch(1);
+        assertFalse(chain.add(b1));
+        assertTrue(chain.isAwaitingValidHash(b1.getHash()));
+        assertTrue(chain.isOrphan(b1.getHash()));
+        assertEquals(0, chain.getBestChainHeight());
+        ListenableFuture<Boolean> b1Future = chain.getValidHashFuture(b1.getHash());
+        trustedServer.hold.countDown();
+        // The future is how Peer knows to carry on downloading once the block has been connected.
+        assertTrue(b1Future.get(10, TimeUnit.SECONDS));
+        assertEquals(1, chain.getBestChainHeight());
+        assertFalse(chain.isAwaitingValidHash(b1.getHash()));
+        assertNull(chain.getValidHashFuture(b1.getHash()));
+        // As b2 is already known it is connected straight away.
+        assertTrue(chain.add(b2));
+        assertEquals(b2.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // The servers don't know about the fork, so it is thrown away once they have been asked, and fails
+        // verification like it would have if the hashes had been known. Syncs run in order and the chain is told
+        // about each first, so waiting for a new one means the chain has dealt with the fork.
+        trustedServer.hold = new CountDownLatch(1);
+        assertFalse(chain.add(fork));
+        assertTrue(chain.isAwaitingValidHash(fork.getHash()));
+        ListenableFuture<Boolean> forkFuture = chain.getValidHashFuture(fork.getHash());
+        trustedServer.hold.countDown();
+        try {
+            forkFuture.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        store.requestSync(chain, false).addListener(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, Threading.SAME_THREAD);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertFalse(chain.isAwaitingValidHash(fork.getHash()));
+        assertEquals(b2.getHash(), chain.getChainHead().getHeader().getHash());
+        store.close();
+    }
+
+    @Test
+    public void invalidatedServersDontInvalidateHashes() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("validhashstore", null);
+        f.delete();
+        f.deleteOnExit();
+        ValidHashStore store = new ValidHashStore(f, trustedServer);
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params), store);
+
+        Block b1 = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        trustedServer.setHashes(params.getGenesisBlock().getHash(), b1.getHash());
+        Utils.setMockClock(b1.getTimeSeconds() + 60 * 60 * 24);
+        store.requestSync(chain, false).get(10, TimeUnit.SECONDS);
+        assertTrue(store.isValidHash(b1.getHash()));
+
+        // Whilst the servers are invalidated the hashes held can't be relied upon, so b1 waits for a sync. The sync
+        // still tells us b1 is valid, so it is connected rather than thrown away.
+        trustedServer.invalidated = true;
+        assertTrue(store.isInvalidated());
+        assertTrue(store.isValidHash(b1.getHash()));
+        assertFalse(chain.add(b1));
+        assertTrue(chain.getValidHashFuture(b1.getHash()).get(10, TimeUnit.SECONDS));
+        assertEquals(b1.getHash(), chain.getChainHead().getHeader().getHash());
+        store.close();
+    }
+}